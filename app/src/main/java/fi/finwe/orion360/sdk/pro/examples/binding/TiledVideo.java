@@ -0,0 +1,282 @@
+/*
+ * Copyright (c) 2022, Finwe Ltd. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package fi.finwe.orion360.sdk.pro.examples.binding;
+
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+
+import fi.finwe.math.Quatf;
+import fi.finwe.math.Vec3f;
+import fi.finwe.orion360.sdk.pro.OrionActivity;
+import fi.finwe.orion360.sdk.pro.OrionScene;
+import fi.finwe.orion360.sdk.pro.controller.OrionSensorFusion;
+import fi.finwe.orion360.sdk.pro.examples.MainMenu;
+import fi.finwe.orion360.sdk.pro.examples.R;
+import fi.finwe.orion360.sdk.pro.examples.TouchControllerWidget;
+import fi.finwe.orion360.sdk.pro.examples.engine.TileGrid;
+import fi.finwe.orion360.sdk.pro.examples.engine.TiledVideoController;
+import fi.finwe.orion360.sdk.pro.item.OrionCamera;
+import fi.finwe.orion360.sdk.pro.item.OrionPanorama;
+import fi.finwe.orion360.sdk.pro.view.OrionView;
+import fi.finwe.orion360.sdk.pro.view.OrionViewContainer;
+import fi.finwe.orion360.sdk.pro.viewport.OrionDisplayViewport;
+
+/**
+ * An example of bindings for creating a player for viewport-dependent tiled 360 video.
+ * <p/>
+ * The Tiled example shows how a panorama can be assembled from several textures, each
+ * bound to a part of the sphere. Here the same idea is applied to video: the panorama
+ * is split into tiles that are encoded as independent video streams, and a low
+ * resolution base layer covers the whole sphere. Only the tiles that the user is looking
+ * at are streamed in high quality, while the rest of the sphere shows the base layer.
+ * This allows 8K-equivalent sharpness in the viewing direction with the bandwidth and
+ * decoders of a mid-range phone, which could never play a full 8K equirect.
+ * <p/>
+ * When the user turns, new tiles appear first from the base layer and switch to high
+ * quality as soon as their streams have started, so the panorama never has holes.
+ * See TiledVideoController for details.
+ * <p/>
+ * Since there is no tiled test content available, this example uses the high quality
+ * test video as the source of every tile and maps only the tile's part of it. In a real
+ * deployment each tile would be a separately encoded stream bound with
+ * TileGrid.FULL_TEXTURE, which is what actually saves bandwidth and decoding power.
+ * <p/>
+ * Features:
+ * <ul>
+ * <li>Plays one hard-coded full spherical (360x180) equirectangular video in 4x2 tiles
+ * <li>Creates a fullscreen view locked to landscape orientation
+ * <li>Renders the video using standard rectilinear projection
+ * <li>Allows navigation with touch & movement sensors (if supported by HW) as follows:
+ * <ul>
+ * <li>Panning (gyro or swipe)
+ * <li>Zooming (pinch)
+ * <li>Tilting (pinch rotate)
+ * </ul>
+ * <li>Auto Horizon Aligner (AHL) feature straightens the horizon</li>
+ * </ul>
+ */
+public class TiledVideo extends OrionActivity implements OrionSensorFusion.Listener {
+
+    /** Camera horizontal field of view at zoom level 1.0 (in degrees). */
+    private static final float CAMERA_FOV_DEG = 100.0f;
+
+    /** The number of tile columns. */
+    private static final int TILE_COLUMNS = 4;
+
+    /** The number of tile rows. */
+    private static final int TILE_ROWS = 2;
+
+    /**
+     * Maximum number of tile streams decoded at the same time. Kept low here because
+     * every tile of this example decodes a full high quality frame.
+     */
+    private static final int MAX_ACTIVE_TILES = 2;
+
+    /** Concurrent connections for downloading each high quality tile stream. */
+    private static final int TILE_PARALLEL_CONNECTIONS = 4;
+
+    /** Size of each range request of a tile stream, in bytes. */
+    private static final int TILE_PARALLEL_CHUNK_SIZE_BYTES = 1024 * 1024;
+
+    /** Interval for updating the viewing direction to the tile controller (in ms). */
+    private static final long VIEW_UPDATE_INTERVAL_MS = 200;
+
+    /** The Android view where our 3D scene (OrionView) will be added to. */
+    protected OrionViewContainer mViewContainer;
+
+    /** The Orion360 SDK view where our 3D scene will be rendered to. */
+    protected OrionView mView;
+
+    /** The 3D scene where our panorama sphere will be added to. */
+    protected OrionScene mScene;
+
+    /** The panorama sphere where our video textures will be mapped to. */
+    protected OrionPanorama mPanorama;
+
+    /** The controller that streams tiles in the viewing direction. */
+    protected TiledVideoController mTiledVideoController;
+
+    /** The camera which will project our 3D scene to a 2D (view) surface. */
+    protected OrionCamera mCamera;
+
+    /** The widget that will handle our touch gestures. */
+    protected TouchControllerWidget mTouchController;
+
+    /** The latest device orientation from sensor fusion. */
+    private volatile Quatf mDeviceOrientation;
+
+    /** Handler for updating the viewing direction. */
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+
+	@Override
+	public void onCreate(Bundle savedInstanceState) {
+		super.onCreate(savedInstanceState);
+		setContentView(R.layout.activity_main);
+
+        // Create a new scene. This represents a 3D world where various objects can be placed.
+        mScene = new OrionScene(mOrionContext);
+
+        // Bind sensor fusion as a controller. This will make it available for scene objects.
+        mScene.bindRoutine(mOrionContext.getSensorFusion());
+
+        // Create a new panorama. This is a 3D object that will represent a spherical video.
+        mPanorama = new OrionPanorama(mOrionContext);
+
+        // Create a tile controller. It binds the low quality base layer to every tile of
+        // the panorama, and later switches tiles in the viewing direction to high quality.
+        TileGrid grid = new TileGrid(TILE_COLUMNS, TILE_ROWS);
+        mTiledVideoController = new TiledVideoController(this, mOrionContext, mPanorama,
+                grid, MainMenu.TEST_VIDEO_URI_1280x640);
+        mTiledVideoController.setMaxActiveTiles(MAX_ACTIVE_TILES);
+
+        // The high quality tiles are large progressive files; fetch them over several
+        // connections, so that a tile switches to high quality sooner on high-latency links.
+        mTiledVideoController.setParallelDownload(TILE_PARALLEL_CONNECTIONS,
+                TILE_PARALLEL_CHUNK_SIZE_BYTES);
+
+        // Set the high quality source of each tile. Here every tile maps its own part of
+        // the same full-frame video; real tile streams would use TileGrid.FULL_TEXTURE.
+        for (int i = 0; i < grid.getTileCount(); i++) {
+            mTiledVideoController.setTileSource(i, MainMenu.TEST_VIDEO_URI_3840x1920,
+                    grid.getTextureRect(i));
+        }
+
+        // Bind the panorama to the scene. This will make it part of our 3D world.
+        mScene.bindSceneItem(mPanorama);
+
+        // Create a new camera. This will become the end-user's eyes into the 3D world.
+        mCamera = new OrionCamera(mOrionContext);
+
+        // Use a known field of view, as the tile controller needs to know what is visible.
+        mCamera.setProjectionPerspectiveDeg(OrionCamera.FovType.HORIZONTAL,
+                CAMERA_FOV_DEG, 0.1f, 100.0f);
+
+        // Reset view to the 'front' direction (horizontal center of the panorama).
+        mCamera.setDefaultRotationYaw(0);
+
+        // Bind camera as a controllable to sensor fusion. This will let sensors rotate the camera.
+        mOrionContext.getSensorFusion().bindControllable(mCamera);
+
+        // Create a new touch controller widget (convenience class), and let it control our camera.
+        mTouchController = new TouchControllerWidget(mOrionContext, mCamera);
+
+        // Bind the touch controller widget to the scene. This will make it functional in the scene.
+        mScene.bindWidget(mTouchController);
+
+        // Find Orion360 view container from the XML layout. This is an Android view for content.
+        mViewContainer = (OrionViewContainer)findViewById(R.id.orion_view_container);
+
+        // Create a new OrionView and bind it into the container.
+        mView = new OrionView(mOrionContext);
+        mViewContainer.bindView(mView);
+
+        // Bind the scene to the view. This is the 3D world that we will be rendering to this view.
+        mView.bindDefaultScene(mScene);
+
+        // Bind the camera to the view. We will look into the 3D world through this camera.
+        mView.bindDefaultCamera(mCamera);
+
+        // The view can be divided into one or more viewports. For example, in VR mode we have one
+        // viewport per eye. Here we fill the complete view with one (landscape) viewport.
+        mView.bindViewports(OrionDisplayViewport.VIEWPORT_CONFIG_FULL,
+                OrionDisplayViewport.CoordinateType.FIXED_LANDSCAPE);
+	}
+
+    @Override
+    public void onResume() {
+        super.onResume();
+
+        // Start listening for sensor fusion events, and tracking the viewing direction.
+        mOrionContext.getSensorFusion().bindOrientationListener(this);
+        mHandler.post(mViewUpdateTask);
+    }
+
+    @Override
+    public void onPause() {
+
+        // Stop tracking the viewing direction.
+        mHandler.removeCallbacks(mViewUpdateTask);
+        mOrionContext.getSensorFusion().releaseOrientationListener(this);
+
+        super.onPause();
+    }
+
+    @Override
+    public void onDestroy() {
+
+        // Release tile players and textures.
+        mTiledVideoController.release();
+
+        super.onDestroy();
+    }
+
+    @Override
+    public void onDeviceOrientationChanged(Quatf orientation) {
+
+        // Sensor fusion runs at a high rate; just store the latest orientation here.
+        mDeviceOrientation = orientation;
+    }
+
+    /** Task that tells the tile controller where the user is looking at. */
+    private final Runnable mViewUpdateTask = new Runnable() {
+        @Override
+        public void run() {
+            updateViewDirection();
+            mHandler.postDelayed(this, VIEW_UPDATE_INTERVAL_MS);
+        }
+    };
+
+    /**
+     * Calculate the viewing direction and field of view, and pass them to the tile
+     * controller. The direction combines the device orientation with the camera's
+     * rotation offset, which contains touch panning.
+     */
+    private void updateViewDirection() {
+        Quatf rotation = mCamera.getRotationOffset();
+        Quatf orientation = mDeviceOrientation;
+        if (null != orientation) {
+            rotation = rotation.multiply(orientation);
+        }
+        Vec3f lookAt = Vec3f.FRONT.rotate(rotation);
+        float yawDeg = (float) Math.toDegrees(lookAt.getYaw());
+        float pitchDeg = (float) Math.toDegrees(lookAt.getPitch());
+
+        float horizontalFovDeg = CAMERA_FOV_DEG / Math.max(1.0f, mCamera.getZoom());
+        float aspect = mViewContainer.getHeight() > 0
+                ? (float) mViewContainer.getWidth() / mViewContainer.getHeight() : 16.0f / 9.0f;
+        float verticalFovDeg = (float) Math.toDegrees(2.0 * Math.atan(
+                Math.tan(Math.toRadians(horizontalFovDeg / 2)) / aspect));
+
+        mTiledVideoController.setViewDirection(yawDeg, pitchDeg,
+                horizontalFovDeg, verticalFovDeg);
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2022, Finwe Ltd. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package fi.finwe.orion360.sdk.pro.examples.engine;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.upstream.DefaultBandwidthMeter;
+import com.google.android.exoplayer2.util.NetworkTypeObserver;
+
+import fi.finwe.log.Logger;
+
+/**
+ * Persistent store for bandwidth estimates, one per network type.
+ * <p/>
+ * DefaultBandwidthMeter starts every session from a country-based default estimate, which
+ * means that adaptive streams start from a low quality and take seconds to climb to a
+ * watchable resolution. This store saves the last measured estimate for Wi-Fi, cellular
+ * and ethernet networks, and seeds the next session's bandwidth meter with them.
+ */
+public final class BandwidthEstimateStore {
+
+    /** Tag for logging. */
+    public static final String TAG = BandwidthEstimateStore.class.getSimpleName();
+
+    /** Name of the shared preferences file. */
+    private static final String PREFS_NAME = "fi.finwe.orion360.bandwidth";
+
+    private static final String KEY_WIFI = "wifi";
+    private static final String KEY_CELLULAR = "cellular";
+    private static final String KEY_ETHERNET = "ethernet";
+
+    /** Cellular network types that share the cellular estimate. */
+    private static final int[] CELLULAR_TYPES = {
+            C.NETWORK_TYPE_2G,
+            C.NETWORK_TYPE_3G,
+            C.NETWORK_TYPE_4G,
+            C.NETWORK_TYPE_5G_NSA,
+            C.NETWORK_TYPE_5G_SA,
+            C.NETWORK_TYPE_CELLULAR_UNKNOWN
+    };
+
+    private final Context mContext;
+    private final SharedPreferences mPreferences;
+
+
+    public BandwidthEstimateStore(Context context) {
+        mContext = context.getApplicationContext();
+        mPreferences = mContext.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Set saved estimates as the initial estimates of a bandwidth meter.
+     *
+     * @param builder the bandwidth meter builder.
+     * @return the builder.
+     */
+    public DefaultBandwidthMeter.Builder applyTo(DefaultBandwidthMeter.Builder builder) {
+        long wifi = mPreferences.getLong(KEY_WIFI, 0);
+        if (wifi > 0) {
+            builder.setInitialBitrateEstimate(C.NETWORK_TYPE_WIFI, wifi);
+        }
+        long ethernet = mPreferences.getLong(KEY_ETHERNET, 0);
+        if (ethernet > 0) {
+            builder.setInitialBitrateEstimate(C.NETWORK_TYPE_ETHERNET, ethernet);
+        }
+        long cellular = mPreferences.getLong(KEY_CELLULAR, 0);
+        if (cellular > 0) {
+            for (int type : CELLULAR_TYPES) {
+                builder.setInitialBitrateEstimate(type, cellular);
+            }
+        }
+        return builder;
+    }
+
+    /**
+     * Save a measured estimate for the network type that it was measured on.
+     *
+     * @param networkType the ExoPlayer network type (C.NETWORK_TYPE_*).
+     * @param bitrateEstimate the estimate, in bits per second.
+     */
+    public void save(int networkType, long bitrateEstimate) {
+        String key = getKey(networkType);
+        if (null == key || bitrateEstimate <= 0) {
+            return;
+        }
+        Logger.logD(TAG, "Saving bandwidth estimate for " + key + ": " + bitrateEstimate + " bps");
+        mPreferences.edit().putLong(key, bitrateEstimate).apply();
+    }
+
+    /** Return the type of the network that is currently in use. */
+    public int getCurrentNetworkType() {
+        return NetworkTypeObserver.getInstance(mContext).getNetworkType();
+    }
+
+    private static String getKey(int networkType) {
+        switch (networkType) {
+            case C.NETWORK_TYPE_WIFI:
+                return KEY_WIFI;
+            case C.NETWORK_TYPE_ETHERNET:
+                return KEY_ETHERNET;
+            case C.NETWORK_TYPE_2G:
+            case C.NETWORK_TYPE_3G:
+            case C.NETWORK_TYPE_4G:
+            case C.NETWORK_TYPE_5G_NSA:
+            case C.NETWORK_TYPE_5G_SA:
+            case C.NETWORK_TYPE_CELLULAR_UNKNOWN:
+                return KEY_CELLULAR;
+            default:
+                return null;
+        }
+    }
+}
@@ -0,0 +1,304 @@
+/*
+ * Copyright (c) 2022, Finwe Ltd. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package fi.finwe.orion360.sdk.pro.examples.engine;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.DefaultLoadControl;
+import com.google.android.exoplayer2.LoadControl;
+import com.google.android.exoplayer2.upstream.DefaultAllocator;
+
+/**
+ * Buffering configuration for ExoPlayerWrapper.
+ * <p/>
+ * A profile sets how much media ExoPlayer keeps buffered ahead of the playback position,
+ * how much it needs before starting or resuming playback, and the size of the memory
+ * segments that the buffer is allocated in. ExoPlayer's own defaults are tuned for flat
+ * video; 360 content is typically 3840x1920 or more, which calls for different trade-offs
+ * depending on the device and the content.
+ * <p/>
+ * Use one of the presets, or create a custom profile with {@link Builder}. A profile is
+ * applied per player instance when the player is created, see
+ * {@link ExoPlayerWrapper#setBufferProfile(BufferProfile)}.
+ */
+public final class BufferProfile {
+
+    /** Buffer size for a single segment. */
+    private final static int BUFFER_SEGMENT_SIZE = 256 * 1024;
+    // above: in total 262144 bytes (256kB), value comes from ExoPlayer demo app.
+
+    /** Number of segments in the buffer. */
+    private final static int BUFFER_SEGMENTS = 64;
+    // above: in total 16777216 bytes (16MB), value comes from ExoPlayer demo app.
+
+    /** ExoPlayer's default configuration. */
+    public static final BufferProfile DEFAULT = new Builder().build();
+
+    /**
+     * Start playback as soon as possible, e.g. when the user is browsing a gallery.
+     * Small buffers and low start/rebuffer thresholds, at the risk of rebuffering more often.
+     */
+    public static final BufferProfile LOW_LATENCY_START = new Builder()
+            .setBufferDurationsMs(15000, 30000, 1000, 2000)
+            .build();
+
+    /**
+     * High bitrate VOD (4K-8K 360 video) on devices with plenty of memory. Large segments and
+     * a long buffer keep the network busy, and a byte limit keeps the buffer from growing
+     * without bounds.
+     */
+    public static final BufferProfile HIGH_THROUGHPUT_VOD = new Builder()
+            .setBufferDurationsMs(30000, 60000, 2500, 5000)
+            .setSegmentSize(BUFFER_SEGMENT_SIZE)
+            .setTargetBufferBytes(8 * BUFFER_SEGMENTS * BUFFER_SEGMENT_SIZE)
+            .setPrioritizeTimeOverSizeThresholds(false)
+            .build();
+
+    /**
+     * TV boxes and other devices with little memory. The buffer is capped in bytes rather
+     * than in time, and playback resumes only when a longer buffer has been built after
+     * rebuffering, to avoid repeated stalls with high bitrate content.
+     */
+    public static final BufferProfile MEMORY_CONSTRAINED_TV = new Builder()
+            .setBufferDurationsMs(15000, 30000, 2500, 8000)
+            .setSegmentSize(BUFFER_SEGMENT_SIZE)
+            .setTargetBufferBytes(2 * BUFFER_SEGMENTS * BUFFER_SEGMENT_SIZE)
+            .setPrioritizeTimeOverSizeThresholds(false)
+            .build();
+
+    /**
+     * Live streams. Buffering far ahead is not possible near the live edge, so keep the
+     * buffer short and start quickly.
+     */
+    public static final BufferProfile LIVE = new Builder()
+            .setBufferDurationsMs(10000, 20000, 1500, 3000)
+            .build();
+
+    /**
+     * Low-latency live streams, see {@link LiveProfile#LOW_LATENCY}. Playback starts and
+     * resumes with half a second of media, as the live edge is only a few seconds ahead.
+     */
+    public static final BufferProfile LIVE_LOW_LATENCY = new Builder()
+            .setBufferDurationsMs(4000, 10000, 500, 1000)
+            .build();
+
+    private final int mMinBufferMs;
+    private final int mMaxBufferMs;
+    private final int mBufferForPlaybackMs;
+    private final int mBufferForPlaybackAfterRebufferMs;
+    private final int mSegmentSize;
+    private final int mTargetBufferBytes;
+    private final boolean mPrioritizeTimeOverSizeThresholds;
+    private final int mBackBufferMs;
+
+
+    private BufferProfile(Builder builder) {
+        mMinBufferMs = builder.mMinBufferMs;
+        mMaxBufferMs = builder.mMaxBufferMs;
+        mBufferForPlaybackMs = builder.mBufferForPlaybackMs;
+        mBufferForPlaybackAfterRebufferMs = builder.mBufferForPlaybackAfterRebufferMs;
+        mSegmentSize = builder.mSegmentSize;
+        mTargetBufferBytes = builder.mTargetBufferBytes;
+        mPrioritizeTimeOverSizeThresholds = builder.mPrioritizeTimeOverSizeThresholds;
+        mBackBufferMs = builder.mBackBufferMs;
+    }
+
+    /** Minimum duration of media that the player will attempt to keep buffered, in ms. */
+    public int getMinBufferMs() {
+        return mMinBufferMs;
+    }
+
+    /** Maximum duration of media that the player will attempt to buffer, in ms. */
+    public int getMaxBufferMs() {
+        return mMaxBufferMs;
+    }
+
+    /** Duration of media that must be buffered for playback to start, in ms. */
+    public int getBufferForPlaybackMs() {
+        return mBufferForPlaybackMs;
+    }
+
+    /** Duration of media that must be buffered for playback to resume after a rebuffer. */
+    public int getBufferForPlaybackAfterRebufferMs() {
+        return mBufferForPlaybackAfterRebufferMs;
+    }
+
+    /** Size of a single allocator segment, in bytes. */
+    public int getSegmentSize() {
+        return mSegmentSize;
+    }
+
+    /** Target buffer size in bytes, or C.LENGTH_UNSET to let ExoPlayer decide per track. */
+    public int getTargetBufferBytes() {
+        return mTargetBufferBytes;
+    }
+
+    /**
+     * Create a new load control for one player instance. Each player needs its own
+     * load control, as the allocator is not shared.
+     *
+     * @return the load control.
+     */
+    LoadControl createLoadControl() {
+        return createLoadControl(0);
+    }
+
+    /**
+     * Create a new load control for one player instance, leaving part of the target
+     * buffer size to memory that is buffered outside the load control's allocator.
+     *
+     * @param reservedBytes the bytes to take out of the target buffer size; ignored if
+     *                      the target buffer size is not set.
+     * @return the load control.
+     */
+    LoadControl createLoadControl(int reservedBytes) {
+        int targetBufferBytes = mTargetBufferBytes > 0
+                ? Math.max(mSegmentSize, mTargetBufferBytes - reservedBytes)
+                : mTargetBufferBytes;
+        return new DefaultLoadControl.Builder()
+                .setAllocator(new DefaultAllocator(true, mSegmentSize))
+                .setBufferDurationsMs(mMinBufferMs, mMaxBufferMs,
+                        mBufferForPlaybackMs, mBufferForPlaybackAfterRebufferMs)
+                .setTargetBufferBytes(targetBufferBytes)
+                .setPrioritizeTimeOverSizeThresholds(mPrioritizeTimeOverSizeThresholds)
+                .setBackBuffer(mBackBufferMs, false)
+                .build();
+    }
+
+    @Override
+    public String toString() {
+        return "BufferProfile{min=" + mMinBufferMs + " ms, max=" + mMaxBufferMs
+                + " ms, playback=" + mBufferForPlaybackMs + " ms, rebuffer="
+                + mBufferForPlaybackAfterRebufferMs + " ms, segment=" + mSegmentSize
+                + " B, target=" + mTargetBufferBytes + " B}";
+    }
+
+    /**
+     * Builder for custom buffer profiles. Values that are not set default to ExoPlayer's
+     * DefaultLoadControl values.
+     */
+    public static final class Builder {
+
+        private int mMinBufferMs = DefaultLoadControl.DEFAULT_MIN_BUFFER_MS;
+        private int mMaxBufferMs = DefaultLoadControl.DEFAULT_MAX_BUFFER_MS;
+        private int mBufferForPlaybackMs = DefaultLoadControl.DEFAULT_BUFFER_FOR_PLAYBACK_MS;
+        private int mBufferForPlaybackAfterRebufferMs =
+                DefaultLoadControl.DEFAULT_BUFFER_FOR_PLAYBACK_AFTER_REBUFFER_MS;
+        private int mSegmentSize = C.DEFAULT_BUFFER_SEGMENT_SIZE;
+        private int mTargetBufferBytes = DefaultLoadControl.DEFAULT_TARGET_BUFFER_BYTES;
+        private boolean mPrioritizeTimeOverSizeThresholds =
+                DefaultLoadControl.DEFAULT_PRIORITIZE_TIME_OVER_SIZE_THRESHOLDS;
+        private int mBackBufferMs = DefaultLoadControl.DEFAULT_BACK_BUFFER_DURATION_MS;
+
+        /**
+         * Set buffer durations.
+         *
+         * @param minBufferMs the minimum duration of media to keep buffered, in ms.
+         * @param maxBufferMs the maximum duration of media to buffer, in ms.
+         * @param bufferForPlaybackMs the duration needed to start playback, in ms.
+         * @param bufferForPlaybackAfterRebufferMs the duration needed to resume playback
+         *                                         after a rebuffer, in ms.
+         * @return this builder.
+         */
+        public Builder setBufferDurationsMs(int minBufferMs, int maxBufferMs,
+                                            int bufferForPlaybackMs,
+                                            int bufferForPlaybackAfterRebufferMs) {
+            if (bufferForPlaybackMs < 0 || bufferForPlaybackAfterRebufferMs < 0
+                    || minBufferMs < bufferForPlaybackMs
+                    || minBufferMs < bufferForPlaybackAfterRebufferMs
+                    || maxBufferMs < minBufferMs) {
+                throw new IllegalArgumentException("Invalid buffer durations: min="
+                        + minBufferMs + ", max=" + maxBufferMs + ", playback="
+                        + bufferForPlaybackMs + ", rebuffer=" + bufferForPlaybackAfterRebufferMs);
+            }
+            mMinBufferMs = minBufferMs;
+            mMaxBufferMs = maxBufferMs;
+            mBufferForPlaybackMs = bufferForPlaybackMs;
+            mBufferForPlaybackAfterRebufferMs = bufferForPlaybackAfterRebufferMs;
+            return this;
+        }
+
+        /**
+         * Set the size of a single allocator segment.
+         *
+         * @param bytes the segment size, in bytes.
+         * @return this builder.
+         */
+        public Builder setSegmentSize(int bytes) {
+            if (bytes <= 0) {
+                throw new IllegalArgumentException("Invalid segment size: " + bytes);
+            }
+            mSegmentSize = bytes;
+            return this;
+        }
+
+        /**
+         * Set the target buffer size.
+         *
+         * @param bytes the target size in bytes, or C.LENGTH_UNSET for a track based default.
+         * @return this builder.
+         */
+        public Builder setTargetBufferBytes(int bytes) {
+            mTargetBufferBytes = bytes;
+            return this;
+        }
+
+        /**
+         * Set whether the buffer durations take precedence over the target buffer size.
+         *
+         * @param prioritizeTime true to prefer durations, false to respect the byte limit.
+         * @return this builder.
+         */
+        public Builder setPrioritizeTimeOverSizeThresholds(boolean prioritizeTime) {
+            mPrioritizeTimeOverSizeThresholds = prioritizeTime;
+            return this;
+        }
+
+        /**
+         * Set the duration of media to keep behind the playback position, for fast
+         * seeking backwards.
+         *
+         * @param backBufferMs the back buffer duration, in ms.
+         * @return this builder.
+         */
+        public Builder setBackBufferMs(int backBufferMs) {
+            mBackBufferMs = backBufferMs;
+            return this;
+        }
+
+        /**
+         * Build the profile.
+         *
+         * @return the buffer profile.
+         */
+        public BufferProfile build() {
+            return new BufferProfile(this);
+        }
+    }
+}
@@ -0,0 +1,681 @@
+/*
+ * Copyright (c) 2022, Finwe Ltd. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package fi.finwe.orion360.sdk.pro.examples.engine;
+
+import android.content.Context;
+import android.net.Uri;
+
+import androidx.annotation.Nullable;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.DefaultHttpDataSource;
+import com.google.android.exoplayer2.upstream.cache.Cache;
+import com.google.android.exoplayer2.upstream.cache.CacheDataSource;
+import com.google.android.exoplayer2.upstream.cache.CacheWriter;
+import com.google.android.exoplayer2.upstream.cache.ContentMetadata;
+import com.google.android.exoplayer2.upstream.cache.ContentMetadataMutations;
+import com.google.android.exoplayer2.util.Util;
+
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import fi.finwe.log.Logger;
+
+/**
+ * Caching HTTP proxy on the loopback interface, for players that fetch media by themselves.
+ * <p/>
+ * Android MediaPlayer reads straight from the network, so it gets no on-disk caching and
+ * no prefetch. Give it a URI from {@link #getProxyUri(String)} instead: the proxy then
+ * serves the byte ranges that the player asks for from a {@link MediaCache}, and fills
+ * misses from the origin.
+ * <p/>
+ * Files are read in aligned chunks, and a chunk that is being downloaded is locked in the
+ * cache. Concurrent readers of the same file therefore wait for the chunk instead of
+ * downloading it again. Chunks ahead of the latest read position are downloaded in the
+ * background, so the player finds them in the cache.
+ * <p/>
+ * Only progressive files are proxied. Streaming manifests (HLS, DASH, SmoothStreaming)
+ * refer to other files and are returned unchanged. The app must allow cleartext traffic
+ * to 127.0.0.1.
+ * <p/>
+ * Other apps on the device can connect to the loopback port too. Hence the proxy serves
+ * only URLs that have been registered with {@link #getProxyUri(String)}, each under a
+ * random token, and rejects other requests with 403 Forbidden.
+ */
+public final class CachingHttpProxy {
+
+    /** Tag for logging. */
+    public static final String TAG = CachingHttpProxy.class.getSimpleName();
+
+    /** Default number of chunks that are prefetched ahead of the read position. */
+    public static final int DEFAULT_PREFETCH_CHUNKS = 4;
+
+    /** Size of the aligned chunks that files are read and prefetched in. */
+    private static final int CHUNK_SIZE_BYTES = 1024 * 1024;
+
+    /** Size of the buffer for copying from the cache to the player. */
+    private static final int COPY_BUFFER_SIZE_BYTES = 32 * 1024;
+
+    /** Maximum number of player connections that are served at the same time. */
+    private static final int MAX_CONNECTIONS = 8;
+
+    /** Maximum number of concurrent prefetches. */
+    private static final int MAX_PREFETCHES = 2;
+
+    /** Timeout for reading the player's request. */
+    private static final int SOCKET_TIMEOUT_MS = 30000;
+
+    /** Maximum length of a request header line. */
+    private static final int MAX_LINE_LENGTH = 8192;
+
+    /** Maximum number of registered URLs; the least recently used ones stop working. */
+    private static final int MAX_REGISTERED_URLS = 64;
+
+    /** Maximum number of files whose length and prefetch state are remembered. */
+    private static final int MAX_TRACKED_FILES = 16;
+
+    /** Length of the random token of a registered URL, in bytes. */
+    private static final int TOKEN_LENGTH_BYTES = 16;
+
+    private static final String USER_AGENT = "Finwe Ltd. Orion360 VR Video Player v4.0 (Android)";
+
+    private static CachingHttpProxy sInstance;
+
+    private final MediaCache mMediaCache;
+    private final DataSource.Factory mUpstreamFactory;
+    private final CacheDataSource.Factory mCacheDataSourceFactory;
+
+    private final ExecutorService mConnectionExecutor;
+    private final ExecutorService mPrefetchExecutor;
+
+    private final SecureRandom mRandom = new SecureRandom();
+
+    /** Registered URLs by token. Guarded by itself. */
+    private final Map<String, String> mUrls = newLruMap(MAX_REGISTERED_URLS);
+
+    /** Tokens by registered URL. Guarded by mUrls. */
+    private final Map<String, String> mTokens = new HashMap<>();
+
+    /** Content lengths by URL; -1 if not known. */
+    private final Map<String, Long> mContentLengths = newLruMap(MAX_TRACKED_FILES);
+
+    /** Prefetches by URL, shared by the readers of the same file. */
+    private final Map<String, Prefetch> mPrefetches = newLruMap(MAX_TRACKED_FILES);
+
+    @Nullable
+    private ServerSocket mServerSocket;
+
+    private volatile int mPrefetchChunks = DEFAULT_PREFETCH_CHUNKS;
+
+    private final AtomicLong mBytesServed = new AtomicLong();
+    private final AtomicLong mBytesPrefetched = new AtomicLong();
+
+
+    private CachingHttpProxy(Context context, MediaCache mediaCache) {
+        mMediaCache = mediaCache;
+        mUpstreamFactory = new DefaultHttpDataSource.Factory()
+                .setUserAgent(Util.getUserAgent(context, USER_AGENT))
+                .setAllowCrossProtocolRedirects(true);
+        // Block on chunks that another reader is writing, then read them from the cache.
+        mCacheDataSourceFactory = mediaCache.buildCacheDataSourceFactory(mUpstreamFactory,
+                CacheDataSource.FLAG_BLOCK_ON_CACHE
+                        | CacheDataSource.FLAG_IGNORE_CACHE_ON_ERROR);
+        mConnectionExecutor = Executors.newFixedThreadPool(MAX_CONNECTIONS,
+                newThreadFactory(TAG + "-Connection-"));
+        mPrefetchExecutor = Executors.newFixedThreadPool(MAX_PREFETCHES,
+                newThreadFactory(TAG + "-Prefetch-"));
+    }
+
+    /**
+     * Get the shared proxy. The proxy is started when the first URI is proxied.
+     *
+     * @param context the context.
+     * @param mediaCache the cache to serve from; used only when the proxy is created.
+     * @return the proxy.
+     */
+    public static synchronized CachingHttpProxy getInstance(Context context,
+                                                            MediaCache mediaCache) {
+        if (null == sInstance) {
+            sInstance = new CachingHttpProxy(context.getApplicationContext(), mediaCache);
+        } else if (sInstance.mMediaCache != mediaCache) {
+            Logger.logW(TAG, "Proxy already serves from " + sInstance.mMediaCache.getDirectory()
+                    + ", ignoring " + mediaCache.getDirectory());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Return the URI to give to the player instead of the content URI. URIs that are not
+     * proxied, such as local files and streaming manifests, are returned unchanged. The
+     * proxy URIs of the 64 most recently used content URIs stay valid.
+     *
+     * @param uri the content URI.
+     * @return the proxy URI, or the content URI.
+     */
+    public String getProxyUri(String uri) {
+        Uri parsed = Uri.parse(uri);
+        String scheme = parsed.getScheme();
+        if (!("http".equalsIgnoreCase(scheme) || "https".equalsIgnoreCase(scheme))
+                || Util.inferContentType(parsed) != C.CONTENT_TYPE_OTHER) {
+            return uri;
+        }
+        int port = start();
+        if (port < 0) {
+            return uri;
+        }
+        // The file name keeps the extension, which the player may use as a hint.
+        String fileName = parsed.getLastPathSegment();
+        return "http://127.0.0.1:" + port + "/" + register(uri) + "/"
+                + Uri.encode(null == fileName ? "" : fileName);
+    }
+
+    /**
+     * Register a URL for serving, and return its token.
+     *
+     * @param url the content URL.
+     * @return the token that identifies the URL in proxy URIs.
+     */
+    private String register(String url) {
+        synchronized (mUrls) {
+            String token = mTokens.get(url);
+            if (token != null && mUrls.get(token) != null) {
+                return token;
+            }
+            byte[] bytes = new byte[TOKEN_LENGTH_BYTES];
+            mRandom.nextBytes(bytes);
+            StringBuilder hex = new StringBuilder(2 * bytes.length);
+            for (byte b : bytes) {
+                hex.append(String.format(Locale.US, "%02x", b));
+            }
+            token = hex.toString();
+            mUrls.put(token, url);
+            // Drop the tokens that the LRU map has evicted.
+            mTokens.values().retainAll(mUrls.keySet());
+            mTokens.put(url, token);
+            return token;
+        }
+    }
+
+    /**
+     * Set the number of chunks that are prefetched ahead of the read position.
+     *
+     * @param chunks the number of chunks; 0 disables prefetch.
+     */
+    public void setPrefetchChunks(int chunks) {
+        mPrefetchChunks = Math.max(0, chunks);
+    }
+
+    /** Return the number of bytes served to players. */
+    public long getBytesServed() {
+        return mBytesServed.get();
+    }
+
+    /** Return the number of bytes downloaded ahead of the read position. */
+    public long getBytesPrefetched() {
+        return mBytesPrefetched.get();
+    }
+
+    /**
+     * Stop the proxy. URIs that have been given to players stop working.
+     */
+    public void release() {
+        synchronized (CachingHttpProxy.class) {
+            if (sInstance == this) {
+                sInstance = null;
+            }
+        }
+        synchronized (this) {
+            if (mServerSocket != null) {
+                try {
+                    mServerSocket.close();
+                } catch (IOException e) {
+                    Logger.logD(TAG, "Failed to close server socket: " + e.getMessage());
+                }
+                mServerSocket = null;
+            }
+        }
+        mConnectionExecutor.shutdownNow();
+        mPrefetchExecutor.shutdownNow();
+    }
+
+    /**
+     * Start listening on a free loopback port, if not started yet.
+     *
+     * @return the port, or -1 if the proxy could not be started.
+     */
+    private synchronized int start() {
+        if (mServerSocket != null) {
+            return mServerSocket.getLocalPort();
+        }
+        if (mConnectionExecutor.isShutdown()) {
+            return -1;
+        }
+        final ServerSocket serverSocket;
+        try {
+            serverSocket = new ServerSocket(0, MAX_CONNECTIONS,
+                    InetAddress.getByName("127.0.0.1"));
+        } catch (IOException e) {
+            Logger.logW(TAG, "Failed to start proxy: " + e.getMessage());
+            return -1;
+        }
+        mServerSocket = serverSocket;
+        Thread acceptThread = new Thread(() -> accept(serverSocket), TAG + "-Accept");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+        Logger.logD(TAG, "Proxy listening on port " + serverSocket.getLocalPort());
+        return serverSocket.getLocalPort();
+    }
+
+    private void accept(ServerSocket serverSocket) {
+        while (!serverSocket.isClosed()) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                break; // Closed by release().
+            }
+            try {
+                mConnectionExecutor.execute(() -> handle(socket));
+            } catch (RuntimeException e) {
+                closeQuietly(socket);
+            }
+        }
+    }
+
+    private void handle(Socket socket) {
+        try {
+            socket.setSoTimeout(SOCKET_TIMEOUT_MS);
+            InputStream in = socket.getInputStream();
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream(),
+                    COPY_BUFFER_SIZE_BYTES);
+            String requestLine = readLine(in);
+            Map<String, String> headers = new HashMap<>();
+            String line;
+            while ((line = readLine(in)) != null && !line.isEmpty()) {
+                int colon = line.indexOf(':');
+                if (colon > 0) {
+                    headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US),
+                            line.substring(colon + 1).trim());
+                }
+            }
+            String[] parts = null == requestLine ? new String[0] : requestLine.split(" ");
+            if (parts.length < 2 || !("GET".equals(parts[0]) || "HEAD".equals(parts[0]))
+                    || !parts[1].startsWith("/")) {
+                writeStatus(out, "400 Bad Request");
+                return;
+            }
+            String path = parts[1];
+            int slash = path.indexOf('/', 1);
+            String token = slash < 0 ? path.substring(1) : path.substring(1, slash);
+            String url;
+            synchronized (mUrls) {
+                url = mUrls.get(token);
+            }
+            if (null == url) {
+                writeStatus(out, "403 Forbidden");
+                return;
+            }
+            serve(url, headers.get("range"), "HEAD".equals(parts[0]), out);
+        } catch (IOException e) {
+            // Players close the connection whenever they seek.
+            Logger.logV(TAG, "Connection closed: " + e.getMessage());
+        } finally {
+            closeQuietly(socket);
+        }
+    }
+
+    private void serve(String url, @Nullable String range, boolean headOnly, OutputStream out)
+            throws IOException {
+        long contentLength;
+        try {
+            contentLength = getContentLength(url);
+        } catch (IOException e) {
+            Logger.logW(TAG, "Failed to open " + url + ": " + e.getMessage());
+            writeStatus(out, "502 Bad Gateway");
+            return;
+        }
+        long start = 0;
+        long end = contentLength - 1;
+        boolean partial = false;
+        if (range != null && contentLength != C.LENGTH_UNSET) {
+            long[] bounds = parseRange(range, contentLength);
+            if (null == bounds) {
+                out.write(("HTTP/1.1 416 Range Not Satisfiable\r\nContent-Range: bytes */"
+                        + contentLength + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n")
+                        .getBytes(StandardCharsets.US_ASCII));
+                out.flush();
+                return;
+            }
+            start = bounds[0];
+            end = bounds[1];
+            partial = true;
+        }
+
+        StringBuilder header = new StringBuilder();
+        header.append(partial ? "HTTP/1.1 206 Partial Content\r\n" : "HTTP/1.1 200 OK\r\n");
+        header.append("Content-Type: ").append(getContentType(url)).append("\r\n");
+        header.append("Accept-Ranges: bytes\r\n");
+        if (contentLength != C.LENGTH_UNSET) {
+            header.append("Content-Length: ").append(end - start + 1).append("\r\n");
+        }
+        if (partial) {
+            header.append("Content-Range: bytes ").append(start).append('-').append(end)
+                    .append('/').append(contentLength).append("\r\n");
+        }
+        header.append("Connection: close\r\n\r\n");
+        out.write(header.toString().getBytes(StandardCharsets.US_ASCII));
+        if (headOnly) {
+            out.flush();
+            return;
+        }
+
+        byte[] buffer = new byte[COPY_BUFFER_SIZE_BYTES];
+        if (contentLength == C.LENGTH_UNSET) {
+            // Without a length there are no chunks; stream the file in one go.
+            copy(url, 0, C.LENGTH_UNSET, buffer, out);
+        } else {
+            long position = start;
+            while (position <= end) {
+                long chunkEnd = Math.min(end + 1,
+                        (position / CHUNK_SIZE_BYTES + 1) * CHUNK_SIZE_BYTES);
+                position += copy(url, position, chunkEnd - position, buffer, out);
+                prefetch(url, position, contentLength);
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * Copy a range of the file from the cache, filling it from upstream if needed.
+     *
+     * @return the number of bytes copied.
+     */
+    private long copy(String url, long position, long length, byte[] buffer, OutputStream out)
+            throws IOException {
+        CacheDataSource dataSource = mCacheDataSourceFactory.createDataSource();
+        long copied = 0;
+        try {
+            dataSource.open(new DataSpec(Uri.parse(url), position, length));
+            int read;
+            while ((read = dataSource.read(buffer, 0, buffer.length)) != C.RESULT_END_OF_INPUT) {
+                out.write(buffer, 0, read);
+                copied += read;
+            }
+        } finally {
+            dataSource.close();
+        }
+        if (0 == copied && length != 0) {
+            throw new EOFException("No data at " + position + " of " + url);
+        }
+        mBytesServed.addAndGet(copied);
+        return copied;
+    }
+
+    /**
+     * Return the length of the file, from the cache or else from the origin.
+     *
+     * @return the length, or C.LENGTH_UNSET if the origin does not tell it.
+     */
+    private long getContentLength(String url) throws IOException {
+        synchronized (mContentLengths) {
+            Long known = mContentLengths.get(url);
+            if (known != null) {
+                return known;
+            }
+        }
+        Cache cache = mMediaCache.getCache();
+        long length = ContentMetadata.getContentLength(cache.getContentMetadata(url));
+        if (C.LENGTH_UNSET == length) {
+            // Only the headers are needed; closing aborts the transfer.
+            DataSource upstream = mUpstreamFactory.createDataSource();
+            try {
+                length = upstream.open(new DataSpec(Uri.parse(url)));
+            } finally {
+                upstream.close();
+            }
+            if (length != C.LENGTH_UNSET) {
+                ContentMetadataMutations mutations = new ContentMetadataMutations();
+                ContentMetadataMutations.setContentLength(mutations, length);
+                cache.applyContentMetadataMutations(url, mutations);
+            }
+        }
+        synchronized (mContentLengths) {
+            mContentLengths.put(url, length);
+        }
+        return length;
+    }
+
+    /** Schedule downloading the chunks that follow the read position. */
+    private void prefetch(String url, long readPosition, long contentLength) {
+        if (0 == mPrefetchChunks || readPosition >= contentLength) {
+            return;
+        }
+        Prefetch prefetch;
+        synchronized (mPrefetches) {
+            prefetch = mPrefetches.get(url);
+            if (null == prefetch) {
+                prefetch = new Prefetch(url, contentLength);
+                mPrefetches.put(url, prefetch);
+            }
+        }
+        prefetch.onRead(readPosition);
+    }
+
+    /** Downloads chunks of one file ahead of its readers, one chunk at a time. */
+    private final class Prefetch implements Runnable {
+
+        private final String mUrl;
+        private final long mContentLength;
+
+        /** Start of the chunk that a reader reads next. */
+        private volatile long mReadPosition;
+
+        /** True while the prefetch is queued or running. Guarded by this. */
+        private boolean mScheduled;
+
+        Prefetch(String url, long contentLength) {
+            mUrl = url;
+            mContentLength = contentLength;
+        }
+
+        void onRead(long readPosition) {
+            mReadPosition = readPosition;
+            synchronized (this) {
+                if (mScheduled) {
+                    return;
+                }
+                mScheduled = true;
+            }
+            try {
+                mPrefetchExecutor.execute(this);
+            } catch (RuntimeException e) {
+                synchronized (this) {
+                    mScheduled = false;
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            Cache cache = mMediaCache.getCache();
+            try {
+                long chunk;
+                while ((chunk = nextUncachedChunk(cache)) >= 0
+                        && !Thread.currentThread().isInterrupted()) {
+                    long length = Math.min(CHUNK_SIZE_BYTES, mContentLength - chunk);
+                    new CacheWriter(mCacheDataSourceFactory.createDataSource(),
+                            new DataSpec(Uri.parse(mUrl), chunk, length), null, null).cache();
+                    mBytesPrefetched.addAndGet(length);
+                }
+            } catch (IOException e) {
+                Logger.logD(TAG, "Prefetch of " + mUrl + " stopped: " + e.getMessage());
+            } finally {
+                synchronized (this) {
+                    mScheduled = false;
+                }
+            }
+        }
+
+        /** Return the first chunk within the prefetch window that is not cached, or -1. */
+        private long nextUncachedChunk(Cache cache) {
+            // The chunk at the read position is left to the reader, which is about to read it.
+            long readChunk = mReadPosition / CHUNK_SIZE_BYTES * CHUNK_SIZE_BYTES;
+            for (int i = 1; i <= mPrefetchChunks; i++) {
+                long chunk = readChunk + (long) i * CHUNK_SIZE_BYTES;
+                if (chunk >= mContentLength) {
+                    break;
+                }
+                long length = Math.min(CHUNK_SIZE_BYTES, mContentLength - chunk);
+                if (!cache.isCached(mUrl, chunk, length)) {
+                    return chunk;
+                }
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * Parse a single byte range.
+     *
+     * @return the first and last byte, or null if the range cannot be satisfied.
+     */
+    @Nullable
+    private static long[] parseRange(String range, long contentLength) {
+        if (!range.startsWith("bytes=") || range.indexOf(',') >= 0) {
+            return null;
+        }
+        String spec = range.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+        try {
+            long start;
+            long end;
+            if (0 == dash) {
+                // Suffix range: the last N bytes.
+                long suffix = Long.parseLong(spec.substring(1));
+                start = Math.max(0, contentLength - suffix);
+                end = contentLength - 1;
+            } else {
+                start = Long.parseLong(spec.substring(0, dash));
+                end = dash == spec.length() - 1
+                        ? contentLength - 1
+                        : Math.min(contentLength - 1, Long.parseLong(spec.substring(dash + 1)));
+            }
+            return start <= end && start < contentLength ? new long[] {start, end} : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static String getContentType(String url) {
+        String type = URLConnection.guessContentTypeFromName(Uri.parse(url).getPath());
+        return null == type ? "application/octet-stream" : type;
+    }
+
+    /** Read a header line, without the line terminator, or null at the end of input. */
+    @Nullable
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1) {
+            if ('\n' == c) {
+                int length = line.length();
+                if (length > 0 && line.charAt(length - 1) == '\r') {
+                    line.setLength(length - 1);
+                }
+                return line.toString();
+            }
+            if (line.length() >= MAX_LINE_LENGTH) {
+                throw new IOException("Header line too long");
+            }
+            line.append((char) c);
+        }
+        return line.length() > 0 ? line.toString() : null;
+    }
+
+    private static void writeStatus(OutputStream out, String status) throws IOException {
+        out.write(("HTTP/1.1 " + status + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n")
+                .getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Ignore.
+        }
+    }
+
+    /** Return a map that keeps the most recently used maxSize entries. */
+    private static <K, V> Map<K, V> newLruMap(final int maxSize) {
+        return new LinkedHashMap<K, V>(maxSize, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    private static ThreadFactory newThreadFactory(final String namePrefix) {
+        return new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, namePrefix + mCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+}
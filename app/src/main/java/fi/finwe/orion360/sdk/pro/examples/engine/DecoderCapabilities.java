@@ -0,0 +1,479 @@
+/*
+ * Copyright (c) 2022, Finwe Ltd. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package fi.finwe.orion360.sdk.pro.examples.engine;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Range;
+
+import androidx.annotation.Nullable;
+
+import com.google.android.exoplayer2.util.MimeTypes;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import fi.finwe.log.Logger;
+
+/**
+ * Video decoder capabilities of the device, and selection of the best content variant.
+ * <p/>
+ * Querying MediaCodecList is slow, and an unsupported resolution (typically 4K on low-end
+ * TV boxes) only fails after the video has been downloaded and prepared. The decoders are
+ * therefore probed once per device and OS build, and the result is saved on disk. With it,
+ * {@link #selectVariant(List)} picks the biggest variant that the device can decode from
+ * the candidates of the same content, before playback starts. Use
+ * {@link #selectVariant(List, VariantListener)} on the main thread, as the first call
+ * after an OS update probes the decoders.
+ * <p/>
+ * Hardware decoders are preferred; software decoders count only for MIME types without a
+ * hardware decoder.
+ */
+public final class DecoderCapabilities {
+
+    /** Tag for logging. */
+    public static final String TAG = DecoderCapabilities.class.getSimpleName();
+
+    /** Name of the shared preferences file. */
+    private static final String PREFS_NAME = "fi.finwe.orion360.decoders";
+
+    /** Key for the build that the saved capabilities were probed on. */
+    private static final String KEY_BUILD = "build";
+
+    /** MIME types that are probed. */
+    private static final String[] VIDEO_MIME_TYPES = {
+            MimeTypes.VIDEO_H264,
+            MimeTypes.VIDEO_H265,
+            MimeTypes.VIDEO_VP9,
+            MimeTypes.VIDEO_AV1
+    };
+
+    /** Sizes at which the frame rate is probed: 2:1 equirectangular and 16:9 ladders. */
+    private static final int[][] PROBE_SIZES = {
+            {1280, 640}, {1920, 960}, {2560, 1280}, {3840, 1920}, {4096, 2048},
+            {5760, 2880}, {7680, 3840},
+            {1280, 720}, {1920, 1080}, {2560, 1440}, {3840, 2160}, {7680, 4320}
+    };
+
+    /** Maximum capabilities of the decoders of one MIME type. */
+    public static final class Capability {
+
+        /** Maximum width, in pixels. */
+        public final int maxWidth;
+
+        /** Maximum height, in pixels. */
+        public final int maxHeight;
+
+        /** Maximum frame size, in pixels. */
+        public final long maxPixels;
+
+        /** Maximum decoding rate, in pixels per second. */
+        public final long maxPixelRate;
+
+        /** Maximum frame rate at any size, in frames per second. */
+        public final int maxFrameRate;
+
+        /** Bitwise OR of the supported profiles (MediaCodecInfo.CodecProfileLevel). */
+        public final int profiles;
+
+        /** True if the capability is of a hardware decoder. */
+        public final boolean hardware;
+
+        Capability(int maxWidth, int maxHeight, long maxPixels, long maxPixelRate,
+                   int maxFrameRate, int profiles, boolean hardware) {
+            this.maxWidth = maxWidth;
+            this.maxHeight = maxHeight;
+            this.maxPixels = maxPixels;
+            this.maxPixelRate = maxPixelRate;
+            this.maxFrameRate = maxFrameRate;
+            this.profiles = profiles;
+            this.hardware = hardware;
+        }
+
+        /**
+         * Return true if a video of the given size, frame rate and profile can be decoded.
+         *
+         * @param width the width, in pixels.
+         * @param height the height, in pixels.
+         * @param frameRate the frame rate, or 0 if not known.
+         * @param profile the profile (MediaCodecInfo.CodecProfileLevel), or 0 if not known.
+         * @return true if supported.
+         */
+        public boolean isSupported(int width, int height, float frameRate, int profile) {
+            long pixels = (long) width * height;
+            return width <= maxWidth && height <= maxHeight && pixels <= maxPixels
+                    && (frameRate <= 0 || pixels * frameRate <= maxPixelRate)
+                    && (profile == 0 || (profiles & profile) != 0);
+        }
+
+        private Capability combine(Capability other) {
+            return new Capability(Math.max(maxWidth, other.maxWidth),
+                    Math.max(maxHeight, other.maxHeight),
+                    Math.max(maxPixels, other.maxPixels),
+                    Math.max(maxPixelRate, other.maxPixelRate),
+                    Math.max(maxFrameRate, other.maxFrameRate),
+                    profiles | other.profiles, hardware);
+        }
+
+        private String encode() {
+            return maxWidth + "," + maxHeight + "," + maxPixels + "," + maxPixelRate + ","
+                    + maxFrameRate + "," + profiles + "," + hardware;
+        }
+
+        @Nullable
+        private static Capability decode(@Nullable String value) {
+            if (null == value) {
+                return null;
+            }
+            String[] parts = value.split(",");
+            if (parts.length != 7) {
+                return null;
+            }
+            try {
+                return new Capability(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]),
+                        Long.parseLong(parts[2]), Long.parseLong(parts[3]),
+                        Integer.parseInt(parts[4]), Integer.parseInt(parts[5]),
+                        Boolean.parseBoolean(parts[6]));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%dx%d max, %.1f Mpx/s, %d fps, profiles 0x%x%s",
+                    maxWidth, maxHeight, maxPixelRate / 1e6, maxFrameRate, profiles,
+                    hardware ? "" : " (software)");
+        }
+    }
+
+    /** One variant of the content, such as a resolution. */
+    public static final class Variant {
+
+        /** The URI of the variant. */
+        public final String uri;
+
+        /** The video MIME type, for example MimeTypes.VIDEO_H264. */
+        public final String mimeType;
+
+        /** The width, in pixels. */
+        public final int width;
+
+        /** The height, in pixels. */
+        public final int height;
+
+        /** The frame rate, or 0 if not known. */
+        public final float frameRate;
+
+        /** The profile (MediaCodecInfo.CodecProfileLevel), or 0 if not known. */
+        public final int profile;
+
+        public Variant(String uri, String mimeType, int width, int height, float frameRate) {
+            this(uri, mimeType, width, height, frameRate, 0);
+        }
+
+        public Variant(String uri, String mimeType, int width, int height, float frameRate,
+                       int profile) {
+            this.uri = uri;
+            this.mimeType = mimeType;
+            this.width = width;
+            this.height = height;
+            this.frameRate = frameRate;
+            this.profile = profile;
+        }
+
+        private double getPixelRate() {
+            return (double) width * height * (frameRate > 0 ? frameRate : 30);
+        }
+
+        @Override
+        public String toString() {
+            return width + "x" + height + "@" + frameRate + " " + mimeType;
+        }
+    }
+
+    private static DecoderCapabilities sInstance;
+
+    /** Thread for probing the decoders off the main thread. */
+    private static final ExecutorService sProbeExecutor = Executors.newSingleThreadExecutor();
+
+    /** Listener for {@link #selectVariant(List, VariantListener)}. */
+    public interface VariantListener {
+
+        /**
+         * Called on the main thread when a variant has been selected.
+         *
+         * @param variant the selected variant, or null if there were no candidates.
+         */
+        void onVariantSelected(@Nullable Variant variant);
+    }
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    private final SharedPreferences mPreferences;
+
+    /** Capabilities by MIME type; null until loaded or probed. */
+    @Nullable
+    private Map<String, Capability> mCapabilities;
+
+
+    private DecoderCapabilities(Context context) {
+        mPreferences = context.getApplicationContext().getSharedPreferences(
+                PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Get the shared instance.
+     *
+     * @param context the context.
+     * @return the decoder capabilities.
+     */
+    public static synchronized DecoderCapabilities getInstance(Context context) {
+        if (null == sInstance) {
+            sInstance = new DecoderCapabilities(context);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Return the capabilities for a MIME type. On the first call after an OS update the
+     * decoders are probed, which may take a few hundred milliseconds.
+     *
+     * @param mimeType the video MIME type.
+     * @return the capabilities, or null if there is no decoder for the type.
+     */
+    @Nullable
+    public Capability getCapability(String mimeType) {
+        return getCapabilities().get(mimeType);
+    }
+
+    /**
+     * Return true if the device can decode the variant.
+     *
+     * @param variant the variant.
+     * @return true if supported.
+     */
+    public boolean isSupported(Variant variant) {
+        Capability capability = getCapability(variant.mimeType);
+        return capability != null && capability.isSupported(
+                variant.width, variant.height, variant.frameRate, variant.profile);
+    }
+
+    /**
+     * Select the variant with the highest pixel rate that the device can decode. If none
+     * is supported, the smallest variant is returned, which is the most likely to play.
+     *
+     * @param candidates the variants of the same content.
+     * @return the selected variant, or null if there are no candidates.
+     */
+    @Nullable
+    public Variant selectVariant(List<Variant> candidates) {
+        Variant best = null;
+        Variant smallest = null;
+        for (Variant variant : candidates) {
+            if (null == smallest || variant.getPixelRate() < smallest.getPixelRate()) {
+                smallest = variant;
+            }
+            if (isSupported(variant)
+                    && (null == best || variant.getPixelRate() > best.getPixelRate())) {
+                best = variant;
+            }
+        }
+        if (null == best && smallest != null) {
+            Logger.logW(TAG, "No supported variant, trying the smallest: " + smallest);
+            return smallest;
+        }
+        Logger.logD(TAG, "Selected variant " + best);
+        return best;
+    }
+
+    /**
+     * Select the variant like {@link #selectVariant(List)}, but probe the decoders on a
+     * background thread if needed, and report the result on the main thread.
+     *
+     * @param candidates the variants of the same content.
+     * @param listener the listener for the selected variant.
+     */
+    public void selectVariant(final List<Variant> candidates, final VariantListener listener) {
+        sProbeExecutor.execute(() -> {
+            final Variant variant = selectVariant(candidates);
+            mMainHandler.post(() -> listener.onVariantSelected(variant));
+        });
+    }
+
+    /** Forget the saved capabilities; the decoders are probed again on next use. */
+    public synchronized void invalidate() {
+        mCapabilities = null;
+        mPreferences.edit().clear().apply();
+    }
+
+    private synchronized Map<String, Capability> getCapabilities() {
+        if (null == mCapabilities) {
+            mCapabilities = load();
+            if (null == mCapabilities) {
+                mCapabilities = probe();
+                save(mCapabilities);
+            }
+        }
+        return mCapabilities;
+    }
+
+    @Nullable
+    private Map<String, Capability> load() {
+        if (!Build.FINGERPRINT.equals(mPreferences.getString(KEY_BUILD, null))) {
+            return null;
+        }
+        Map<String, Capability> capabilities = new HashMap<>();
+        for (String mimeType : VIDEO_MIME_TYPES) {
+            Capability capability = Capability.decode(mPreferences.getString(mimeType, null));
+            if (capability != null) {
+                capabilities.put(mimeType, capability);
+            }
+        }
+        return capabilities;
+    }
+
+    private void save(Map<String, Capability> capabilities) {
+        SharedPreferences.Editor editor = mPreferences.edit().clear()
+                .putString(KEY_BUILD, Build.FINGERPRINT);
+        for (Map.Entry<String, Capability> entry : capabilities.entrySet()) {
+            editor.putString(entry.getKey(), entry.getValue().encode());
+        }
+        editor.apply();
+    }
+
+    private static Map<String, Capability> probe() {
+        long startMs = SystemClock.elapsedRealtime();
+        Map<String, Capability> capabilities = new HashMap<>();
+        MediaCodecInfo[] codecInfos;
+        try {
+            codecInfos = new MediaCodecList(MediaCodecList.REGULAR_CODECS).getCodecInfos();
+        } catch (RuntimeException e) {
+            Logger.logE(TAG, "Failed to list decoders: " + e.getMessage());
+            return capabilities;
+        }
+        for (MediaCodecInfo codecInfo : codecInfos) {
+            if (codecInfo.isEncoder()) {
+                continue;
+            }
+            for (String mimeType : VIDEO_MIME_TYPES) {
+                Capability capability = probe(codecInfo, mimeType);
+                if (null == capability) {
+                    continue;
+                }
+                Capability previous = capabilities.get(mimeType);
+                if (null == previous || (capability.hardware && !previous.hardware)) {
+                    capabilities.put(mimeType, capability);
+                } else if (capability.hardware == previous.hardware) {
+                    capabilities.put(mimeType, previous.combine(capability));
+                }
+            }
+        }
+        for (Map.Entry<String, Capability> entry : capabilities.entrySet()) {
+            Logger.logD(TAG, entry.getKey() + ": " + entry.getValue());
+        }
+        Logger.logD(TAG, "Probed decoders in " + (SystemClock.elapsedRealtime() - startMs)
+                + " ms");
+        return capabilities;
+    }
+
+    @Nullable
+    private static Capability probe(MediaCodecInfo codecInfo, String mimeType) {
+        MediaCodecInfo.VideoCapabilities video;
+        MediaCodecInfo.CodecProfileLevel[] profileLevels;
+        try {
+            MediaCodecInfo.CodecCapabilities codecCapabilities =
+                    codecInfo.getCapabilitiesForType(mimeType);
+            video = codecCapabilities.getVideoCapabilities();
+            profileLevels = codecCapabilities.profileLevels;
+        } catch (IllegalArgumentException e) {
+            return null; // The codec does not support the type.
+        }
+        if (null == video) {
+            return null;
+        }
+        long maxPixels = 0;
+        long maxPixelRate = 0;
+        int maxFrameRate = video.getSupportedFrameRates().getUpper();
+        for (int[] size : PROBE_SIZES) {
+            if (!video.isSizeSupported(size[0], size[1])) {
+                continue;
+            }
+            long pixels = (long) size[0] * size[1];
+            maxPixels = Math.max(maxPixels, pixels);
+            maxPixelRate = Math.max(maxPixelRate, (long) (pixels * getMaxFrameRate(
+                    video, size[0], size[1])));
+        }
+        int profiles = 0;
+        if (profileLevels != null) {
+            for (MediaCodecInfo.CodecProfileLevel profileLevel : profileLevels) {
+                profiles |= profileLevel.profile;
+            }
+        }
+        return new Capability(video.getSupportedWidths().getUpper(),
+                video.getSupportedHeights().getUpper(), maxPixels, maxPixelRate, maxFrameRate,
+                profiles, isHardware(codecInfo));
+    }
+
+    /**
+     * Return the frame rate that the decoder can achieve at the given size. Devices that
+     * publish measured rates report what they actually sustain, rather than what the
+     * codec level allows.
+     */
+    private static double getMaxFrameRate(MediaCodecInfo.VideoCapabilities video,
+                                          int width, int height) {
+        if (Build.VERSION.SDK_INT >= 23) {
+            Range<Double> achievable = video.getAchievableFrameRatesFor(width, height);
+            if (achievable != null) {
+                return achievable.getUpper();
+            }
+        }
+        return video.getSupportedFrameRatesFor(width, height).getUpper();
+    }
+
+    private static boolean isHardware(MediaCodecInfo codecInfo) {
+        if (Build.VERSION.SDK_INT >= 29) {
+            return codecInfo.isHardwareAccelerated();
+        }
+        String name = codecInfo.getName().toLowerCase(Locale.US);
+        return !name.startsWith("omx.google.") && !name.startsWith("c2.android.")
+                && !name.startsWith("omx.ffmpeg.") && !name.contains(".sw.");
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2022, Finwe Ltd. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package fi.finwe.orion360.sdk.pro.examples.engine;
+
+import com.google.android.exoplayer2.PlaybackException;
+import com.google.android.exoplayer2.upstream.HttpDataSource;
+
+import java.util.Random;
+
+/**
+ * Policy for recovering from transient player errors in place.
+ * <p/>
+ * Errors are classified as retryable (network failures and timeouts, HTTP 408, 429 and 5xx,
+ * falling behind the live window) or fatal (missing files, other HTTP errors, unsupported
+ * content, decoder and DRM failures). A retryable error is retried by re-preparing the
+ * same player after an exponentially growing delay with jitter, so that the player keeps
+ * its playlist, position and renderers. After the maximum number of consecutive retries
+ * the error is treated as fatal.
+ * <p/>
+ * Retry counts and recovery latencies are collected; they may be read from any thread.
+ */
+public class ErrorRecoveryPolicy {
+
+    /** Default maximum number of consecutive retries. */
+    public static final int DEFAULT_MAX_RETRIES = 5;
+
+    /** Default delay before the first retry, in ms. */
+    public static final long DEFAULT_INITIAL_DELAY_MS = 500;
+
+    /** Default maximum delay between retries, in ms. */
+    public static final long DEFAULT_MAX_DELAY_MS = 30000;
+
+    private final int mMaxRetries;
+    private final long mInitialDelayMs;
+    private final long mMaxDelayMs;
+    private final Random mRandom = new Random();
+
+    /** Retries since the last recovery. */
+    private int mAttempt = 0;
+
+    /** Time of the first error since the last recovery, or -1. */
+    private long mFirstErrorTimeMs = -1;
+
+    private int mRetryCount = 0;
+    private int mRecoveredCount = 0;
+    private int mFailedCount = 0;
+    private long mLastRecoveryLatencyMs = -1;
+    private long mTotalRecoveryLatencyMs = 0;
+
+
+    public ErrorRecoveryPolicy() {
+        this(DEFAULT_MAX_RETRIES, DEFAULT_INITIAL_DELAY_MS, DEFAULT_MAX_DELAY_MS);
+    }
+
+    /**
+     * Create a policy.
+     *
+     * @param maxRetries the maximum number of consecutive retries.
+     * @param initialDelayMs the delay before the first retry, in ms.
+     * @param maxDelayMs the maximum delay between retries, in ms.
+     */
+    public ErrorRecoveryPolicy(int maxRetries, long initialDelayMs, long maxDelayMs) {
+        mMaxRetries = Math.max(0, maxRetries);
+        mInitialDelayMs = Math.max(1, initialDelayMs);
+        mMaxDelayMs = Math.max(mInitialDelayMs, maxDelayMs);
+    }
+
+    /**
+     * Return true if the error is transient, i.e. worth retrying.
+     *
+     * @param error the player error.
+     * @return true if retryable, false if fatal.
+     */
+    public boolean isRetryable(PlaybackException error) {
+        switch (error.errorCode) {
+            case PlaybackException.ERROR_CODE_BEHIND_LIVE_WINDOW:
+            case PlaybackException.ERROR_CODE_TIMEOUT:
+            case PlaybackException.ERROR_CODE_IO_UNSPECIFIED:
+            case PlaybackException.ERROR_CODE_IO_NETWORK_CONNECTION_FAILED:
+            case PlaybackException.ERROR_CODE_IO_NETWORK_CONNECTION_TIMEOUT:
+                return true;
+            case PlaybackException.ERROR_CODE_IO_BAD_HTTP_STATUS:
+                int responseCode = getResponseCode(error);
+                return responseCode == 408 || responseCode == 429 || responseCode >= 500;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Handle an error. Call from the player's thread.
+     *
+     * @param error the player error.
+     * @param nowMs the current time, in elapsed realtime ms.
+     * @return the delay before retrying in ms, or -1 if the error is fatal.
+     */
+    public synchronized long onError(PlaybackException error, long nowMs) {
+        if (!isRetryable(error) || mAttempt >= mMaxRetries) {
+            mFailedCount++;
+            mAttempt = 0;
+            mFirstErrorTimeMs = -1;
+            return -1;
+        }
+        if (mFirstErrorTimeMs < 0) {
+            mFirstErrorTimeMs = nowMs;
+        }
+        // Exponential backoff with equal jitter: half of the delay is random, so that many
+        // clients that failed at the same time do not retry at the same time.
+        long delayMs = Math.min(mMaxDelayMs, mInitialDelayMs << Math.min(mAttempt, 30));
+        delayMs = delayMs / 2 + (long) (mRandom.nextDouble() * (delayMs / 2 + 1));
+        mAttempt++;
+        mRetryCount++;
+        return delayMs;
+    }
+
+    /**
+     * Handle a successful recovery, i.e. the player is ready again after retrying.
+     *
+     * @param nowMs the current time, in elapsed realtime ms.
+     * @return the recovery latency (from the first error to ready) in ms.
+     */
+    public synchronized long onRecovered(long nowMs) {
+        long latencyMs = mFirstErrorTimeMs < 0 ? 0 : nowMs - mFirstErrorTimeMs;
+        mRecoveredCount++;
+        mLastRecoveryLatencyMs = latencyMs;
+        mTotalRecoveryLatencyMs += latencyMs;
+        mAttempt = 0;
+        mFirstErrorTimeMs = -1;
+        return latencyMs;
+    }
+
+    /** Forget retries in progress, e.g. when a new source is set. Counters are kept. */
+    public synchronized void reset() {
+        mAttempt = 0;
+        mFirstErrorTimeMs = -1;
+    }
+
+    /** Return the number of retries since the last recovery. */
+    public synchronized int getAttempt() {
+        return mAttempt;
+    }
+
+    /** Return the total number of retries. */
+    public synchronized int getRetryCount() {
+        return mRetryCount;
+    }
+
+    /** Return the number of errors that were recovered from. */
+    public synchronized int getRecoveredCount() {
+        return mRecoveredCount;
+    }
+
+    /** Return the number of errors that were fatal or not recovered from. */
+    public synchronized int getFailedCount() {
+        return mFailedCount;
+    }
+
+    /** Return the latency of the latest recovery in ms, or -1 if none. */
+    public synchronized long getLastRecoveryLatencyMs() {
+        return mLastRecoveryLatencyMs;
+    }
+
+    /** Return the total time spent recovering, in ms. */
+    public synchronized long getTotalRecoveryLatencyMs() {
+        return mTotalRecoveryLatencyMs;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "retries=" + mRetryCount + ", recovered=" + mRecoveredCount
+                + ", failed=" + mFailedCount + ", lastLatency=" + mLastRecoveryLatencyMs
+                + " ms, totalLatency=" + mTotalRecoveryLatencyMs + " ms";
+    }
+
+    private static int getResponseCode(PlaybackException error) {
+        Throwable cause = error.getCause();
+        while (cause != null) {
+            if (cause instanceof HttpDataSource.InvalidResponseCodeException) {
+                return ((HttpDataSource.InvalidResponseCodeException) cause).responseCode;
+            }
+            cause = cause.getCause();
+        }
+        return -1;
+    }
+}
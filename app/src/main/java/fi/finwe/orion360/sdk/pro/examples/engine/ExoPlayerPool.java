@@ -0,0 +1,295 @@
+/*
+ * Copyright (c) 2022, Finwe Ltd. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package fi.finwe.orion360.sdk.pro.examples.engine;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+
+import androidx.annotation.Nullable;
+
+import com.google.android.exoplayer2.DefaultRenderersFactory;
+import com.google.android.exoplayer2.ExoPlayer;
+import com.google.android.exoplayer2.analytics.DefaultAnalyticsCollector;
+import com.google.android.exoplayer2.source.DefaultMediaSourceFactory;
+import com.google.android.exoplayer2.trackselection.AdaptiveTrackSelection;
+import com.google.android.exoplayer2.trackselection.DefaultTrackSelector;
+import com.google.android.exoplayer2.upstream.DefaultBandwidthMeter;
+import com.google.android.exoplayer2.upstream.DefaultDataSource;
+import com.google.android.exoplayer2.util.Clock;
+
+import java.util.ArrayDeque;
+
+import fi.finwe.log.Logger;
+
+/**
+ * Pool of pre-built, idle ExoPlayer instances.
+ * <p/>
+ * Building an ExoPlayer creates renderers, a track selector, an analytics collector and an
+ * internal playback thread, which is a noticeable part of the time-to-first-frame when the
+ * user taps between gallery items. An ExoPlayerWrapper that is created with a pool leases a
+ * ready player from it instead, and returns the player to the pool when it is released.
+ * <p/>
+ * Players in the pool share one bandwidth meter and use the pool's buffer profile. Idle
+ * players are released after the idle timeout. The pooled players run on the pool's
+ * playback thread, which is also where they are built, and where leased players must be
+ * called and recycled. Other methods may be called from any thread.
+ */
+public class ExoPlayerPool {
+
+    /** Tag for logging. */
+    public static final String TAG = ExoPlayerPool.class.getSimpleName();
+
+    /** Default number of idle players to keep. */
+    public static final int DEFAULT_POOL_SIZE = 2;
+
+    /** Default time after which idle players are released, in ms. */
+    public static final long DEFAULT_IDLE_TIMEOUT_MS = 60000;
+
+    /** A player together with the track selector it was built with. */
+    public static final class PooledPlayer {
+        final ExoPlayer player;
+        final DefaultTrackSelector trackSelector;
+
+        PooledPlayer(ExoPlayer player, DefaultTrackSelector trackSelector) {
+            this.player = player;
+            this.trackSelector = trackSelector;
+        }
+    }
+
+    private final Context mContext;
+    private final int mPoolSize;
+    private final long mIdleTimeoutMs;
+    private final BufferProfile mBufferProfile;
+    private final DefaultBandwidthMeter mBandwidthMeter;
+    private final HandlerThread mPlaybackThread;
+    private final Handler mHandler;
+    private final ArrayDeque<PooledPlayer> mIdlePlayers = new ArrayDeque<>();
+
+    /** Number of players that are currently leased. */
+    private int mLeasedCount = 0;
+
+    private boolean mReleased = false;
+
+
+    public ExoPlayerPool(Context context) {
+        this(context, DEFAULT_POOL_SIZE, DEFAULT_IDLE_TIMEOUT_MS, BufferProfile.DEFAULT);
+    }
+
+    /**
+     * Create a pool.
+     *
+     * @param context the context.
+     * @param poolSize the maximum number of idle players to keep.
+     * @param idleTimeoutMs the time after which idle players are released, in ms.
+     * @param bufferProfile the buffer profile of the pooled players.
+     */
+    public ExoPlayerPool(Context context, int poolSize, long idleTimeoutMs,
+                         BufferProfile bufferProfile) {
+        mContext = context.getApplicationContext();
+        mPoolSize = Math.max(0, poolSize);
+        mIdleTimeoutMs = idleTimeoutMs;
+        mBufferProfile = bufferProfile;
+        mBandwidthMeter = new BandwidthEstimateStore(mContext).applyTo(
+                new DefaultBandwidthMeter.Builder(mContext)).build();
+        mPlaybackThread = new HandlerThread(TAG + ":Playback", Process.THREAD_PRIORITY_DISPLAY);
+        mPlaybackThread.start();
+        mHandler = new Handler(mPlaybackThread.getLooper());
+    }
+
+    /** Return the buffer profile of the pooled players. */
+    public BufferProfile getBufferProfile() {
+        return mBufferProfile;
+    }
+
+    /** Return the bandwidth meter that the pooled players share. */
+    public DefaultBandwidthMeter getBandwidthMeter() {
+        return mBandwidthMeter;
+    }
+
+    /** Return the application looper of the pooled players. */
+    public Looper getPlaybackLooper() {
+        return mPlaybackThread.getLooper();
+    }
+
+    /** Return the number of idle players in the pool. */
+    public synchronized int getIdleCount() {
+        return mIdlePlayers.size();
+    }
+
+    /**
+     * Fill the pool with idle players. Players are built one per playback thread message,
+     * so that pre-warming neither blocks the UI nor the pooled players for long.
+     */
+    public void prewarm() {
+        mHandler.removeCallbacks(mPrewarmTask);
+        mHandler.post(mPrewarmTask);
+    }
+
+    /**
+     * Lease an idle player. The pool is refilled in the background, also when it was empty,
+     * so that the next caller finds a player.
+     *
+     * @return an idle player, or null if none is available.
+     */
+    @Nullable
+    public synchronized PooledPlayer acquire() {
+        PooledPlayer pooled = mIdlePlayers.pollFirst();
+        if (pooled != null) {
+            mLeasedCount++;
+            Logger.logD(TAG, "Leased a pooled player, " + mIdlePlayers.size() + " left");
+        } else {
+            Logger.logD(TAG, "No pooled player available");
+        }
+        prewarm();
+        return pooled;
+    }
+
+    /**
+     * Return a leased player. The caller must have removed its own listeners. The player is
+     * stopped and kept for reuse, or released if the pool is full. Call from the playback
+     * thread.
+     *
+     * @param pooled the player to return.
+     */
+    public synchronized void recycle(PooledPlayer pooled) {
+        ExoPlayer player = pooled.player;
+        mLeasedCount = Math.max(0, mLeasedCount - 1);
+        if (mReleased || mIdlePlayers.size() >= mPoolSize) {
+            player.release();
+            maybeQuitPlaybackThread();
+            return;
+        }
+        player.stop();
+        player.clearMediaItems();
+        player.clearVideoSurface();
+        player.setPlayWhenReady(false);
+        player.setRepeatMode(ExoPlayer.REPEAT_MODE_OFF);
+        player.setVolume(1.0f);
+        pooled.trackSelector.setParameters(
+                pooled.trackSelector.buildUponParameters()
+                        .clearVideoSizeConstraints()
+                        .setViewportSizeToPhysicalDisplaySize(mContext, true));
+        mIdlePlayers.addLast(pooled);
+        scheduleIdleTimeout();
+    }
+
+    /**
+     * Release all idle players and stop pooling. Players that are currently leased are
+     * released when they are returned, and the playback thread quits after the last one.
+     */
+    public synchronized void release() {
+        mReleased = true;
+        mHandler.removeCallbacks(mPrewarmTask);
+        mHandler.removeCallbacks(mIdleTimeoutTask);
+        mHandler.post(mIdleTimeoutTask);
+        maybeQuitPlaybackThread();
+    }
+
+    // Quit the playback thread once it has no players left. Pending messages are handled first.
+    private void maybeQuitPlaybackThread() {
+        if (mReleased && 0 == mLeasedCount) {
+            mPlaybackThread.quitSafely();
+        }
+    }
+
+    /**
+     * Build a new player with the pool's configuration.
+     *
+     * @return the player.
+     */
+    PooledPlayer build() {
+        DefaultTrackSelector trackSelector = new DefaultTrackSelector(mContext,
+                new AdaptiveTrackSelection.Factory());
+        ExoPlayer player = new ExoPlayer.Builder(mContext,
+                new DefaultRenderersFactory(mContext),
+                new DefaultMediaSourceFactory(new DefaultDataSource.Factory(mContext)),
+                trackSelector,
+                mBufferProfile.createLoadControl(),
+                mBandwidthMeter,
+                new DefaultAnalyticsCollector(Clock.DEFAULT))
+                .setLooper(mPlaybackThread.getLooper())
+                .build();
+        return new PooledPlayer(player, trackSelector);
+    }
+
+    private void scheduleIdleTimeout() {
+        mHandler.removeCallbacks(mIdleTimeoutTask);
+        if (mIdleTimeoutMs > 0) {
+            mHandler.postDelayed(mIdleTimeoutTask, mIdleTimeoutMs);
+        }
+    }
+
+    // Release the idle players. Runs on the playback thread.
+    private void releaseIdlePlayers() {
+        ArrayDeque<PooledPlayer> idlePlayers;
+        synchronized (this) {
+            idlePlayers = new ArrayDeque<>(mIdlePlayers);
+            mIdlePlayers.clear();
+        }
+        for (PooledPlayer pooled : idlePlayers) {
+            pooled.player.release();
+        }
+    }
+
+    private final Runnable mPrewarmTask = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (ExoPlayerPool.this) {
+                if (mReleased || mIdlePlayers.size() >= mPoolSize) {
+                    return;
+                }
+            }
+            // Build outside the lock, so that acquire() does not wait for it.
+            PooledPlayer pooled = build();
+            synchronized (ExoPlayerPool.this) {
+                if (mReleased) {
+                    pooled.player.release();
+                    return;
+                }
+                mIdlePlayers.addLast(pooled);
+                scheduleIdleTimeout();
+                if (mIdlePlayers.size() < mPoolSize) {
+                    mHandler.post(this);
+                }
+            }
+        }
+    };
+
+    private final Runnable mIdleTimeoutTask = new Runnable() {
+        @Override
+        public void run() {
+            Logger.logD(TAG, "Releasing " + getIdleCount() + " idle players");
+            releaseIdlePlayers();
+        }
+    };
+}
@@ -31,11 +31,18 @@ package fi.finwe.orion360.sdk.pro.examples.engine;
 
 import android.content.Context;
 import android.net.Uri;
+import android.os.ConditionVariable;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.view.Choreographer;
+import android.view.Surface;
 
 import androidx.annotation.Nullable;
 
 import com.google.android.exoplayer2.C;
-import com.google.android.exoplayer2.DefaultLoadControl;
 import com.google.android.exoplayer2.DefaultRenderersFactory;
 import com.google.android.exoplayer2.ExoPlayer;
 import com.google.android.exoplayer2.Format;
@@ -43,30 +50,28 @@ import com.google.android.exoplayer2.MediaItem;
 import com.google.android.exoplayer2.PlaybackException;
 import com.google.android.exoplayer2.PlaybackParameters;
 import com.google.android.exoplayer2.Player;
+import com.google.android.exoplayer2.SeekParameters;
 import com.google.android.exoplayer2.Timeline;
 import com.google.android.exoplayer2.Tracks;
 import com.google.android.exoplayer2.analytics.AnalyticsListener;
 import com.google.android.exoplayer2.analytics.DefaultAnalyticsCollector;
 import com.google.android.exoplayer2.decoder.DecoderCounters;
 import com.google.android.exoplayer2.decoder.DecoderReuseEvaluation;
-import com.google.android.exoplayer2.extractor.DefaultExtractorsFactory;
 import com.google.android.exoplayer2.source.DefaultMediaSourceFactory;
 import com.google.android.exoplayer2.source.LoadEventInfo;
 import com.google.android.exoplayer2.source.MediaLoadData;
 import com.google.android.exoplayer2.source.MediaSource;
 import com.google.android.exoplayer2.source.MediaSourceEventListener;
-import com.google.android.exoplayer2.source.ProgressiveMediaSource;
 import com.google.android.exoplayer2.source.ads.AdsLoader;
 import com.google.android.exoplayer2.source.ads.AdsMediaSource;
-import com.google.android.exoplayer2.source.dash.DashMediaSource;
-import com.google.android.exoplayer2.source.dash.DefaultDashChunkSource;
-import com.google.android.exoplayer2.source.hls.HlsMediaSource;
-import com.google.android.exoplayer2.source.smoothstreaming.DefaultSsChunkSource;
-import com.google.android.exoplayer2.source.smoothstreaming.SsMediaSource;
+import com.google.android.exoplayer2.source.hls.HlsManifest;
+import com.google.android.exoplayer2.source.hls.playlist.HlsMediaPlaylist;
+import com.google.android.exoplayer2.source.hls.playlist.HlsMultivariantPlaylist;
 import com.google.android.exoplayer2.trackselection.AdaptiveTrackSelection;
 import com.google.android.exoplayer2.trackselection.DefaultTrackSelector;
 import com.google.android.exoplayer2.trackselection.MappingTrackSelector;
 import com.google.android.exoplayer2.ui.AdViewProvider;
+import com.google.android.exoplayer2.upstream.BandwidthMeter;
 import com.google.android.exoplayer2.upstream.DataSource;
 import com.google.android.exoplayer2.upstream.DataSpec;
 import com.google.android.exoplayer2.upstream.DefaultBandwidthMeter;
@@ -74,37 +79,93 @@ import com.google.android.exoplayer2.upstream.DefaultDataSource;
 import com.google.android.exoplayer2.upstream.DefaultHttpDataSource;
 import com.google.android.exoplayer2.util.Clock;
 import com.google.android.exoplayer2.util.Util;
+import com.google.android.exoplayer2.video.PlaceholderSurface;
 import com.google.android.exoplayer2.video.VideoSize;
 import com.google.common.collect.ImmutableList;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import fi.finwe.log.Logger;
 import fi.finwe.orion360.sdk.pro.texture.VideoPlayerWrapper;
 
 /**
  * Wrapper for Google ExoPlayer.
+ * <p/>
+ * The player runs on a dedicated playback thread: ExoPlayer callbacks, media source events
+ * and player calls are handled there, so that a busy main thread (list scrolling, Leanback
+ * UI) does not delay them. Listener notifications are marshalled to the main thread, and
+ * buffering updates are coalesced. When an ads loader is set the player runs on the main
+ * thread instead, as IMA requires.
  */
 public class ExoPlayerWrapper extends VideoPlayerWrapper implements Player.Listener {
 
     /** Tag for logging. */
     public static final String TAG = ExoPlayerWrapper.class.getSimpleName();
 
+    /**
+     * Interface for listening to playlist item transitions. Transitions are also reported
+     * to OrionVideoTexture listeners as source URI set and duration update events.
+     */
+    public interface PlaylistListener {
+
+        /**
+         * Called when playback moves to another playlist item.
+         *
+         * @param index the index of the new item; 0 is the texture's own video.
+         * @param uri the URI of the new item.
+         * @param reason the ExoPlayer transition reason (Player.MEDIA_ITEM_TRANSITION_REASON_*).
+         */
+        void onPlaylistItemChanged(int index, @Nullable Uri uri, int reason);
+    }
+
+    /**
+     * How a seek position is resolved. Seeking to a sync frame (keyframe) is fast, as
+     * frames between the keyframe and the target need not be decoded; with long GOPs an
+     * exact seek may decode several seconds of video.
+     */
+    public enum SeekMode {
+        /** Seek exactly to the requested position. */
+        EXACT,
+        /** Seek to the sync frame at or before the requested position. */
+        PREVIOUS_SYNC,
+        /** Seek to the sync frame at or after the requested position. */
+        NEXT_SYNC,
+        /** Seek to the sync frame closest to the requested position. */
+        CLOSEST_SYNC
+    }
+
     /** User agent string. */
     private final static String USER_AGENT = "Finwe Ltd. Orion360 VR Video Player v4.0 (Android)";
 
+    /** Default number of concurrent connections for downloading a progressive file. */
+    private final static int DEFAULT_PARALLEL_CONNECTIONS = 1;
+
+    /** Default size of each range request when downloading over several connections. */
+    private final static int DEFAULT_PARALLEL_CHUNK_SIZE_BYTES = 1024 * 1024;
+
+    /** HLS staging buffer size when the buffer profile has no byte limit. */
+    private final static long DEFAULT_HLS_STAGING_BUDGET_BYTES = 16 * 1024 * 1024;
+
+    /** Maximum time to wait for the playback thread to let go of a surface (in ms). */
+    private final static long SURFACE_RESET_TIMEOUT_MS = 500;
+
     private final DefaultBandwidthMeter BANDWIDTH_METER;
 
-    /** HLS filename extension. */
-    private final static String HLS_FILENAME_EXT = ".m3u8";
+    /** Persistent bandwidth estimates, used as initial estimates for the next session. */
+    private final BandwidthEstimateStore mBandwidthEstimateStore;
+
+    /** Latest measured bandwidth estimate in bps, or 0 if nothing has been measured yet. */
+    private long mMeasuredBitrateEstimate = 0;
 
-    /** Buffer size for a single segment. */
-    private final static int BUFFER_SEGMENT_SIZE = 256 * 1024;
-    // above: in total 262144 bytes (256kB), value comes from ExoPlayer demo app.
+    /** Network type where the latest bandwidth estimate was measured. */
+    private int mMeasuredNetworkType = C.NETWORK_TYPE_UNKNOWN;
 
-    /** Number of segments in the buffer. */
-    private final static int BUFFER_SEGMENTS = 64;
-    // above: in total 16777216 bytes (16MB), value comes from ExoPlayer demo app.
+    /** HLS filename extension. */
+    private final static String HLS_FILENAME_EXT = ".m3u8";
 
     private static final long	DEFAULT_ALLOWED_JOINING_TIME_MS = 5000;
     private static final int	DEFAULT_MAX_DROPPED_FRAME_COUNT_TO_NOTIFY = 50;
@@ -112,25 +173,179 @@ public class ExoPlayerWrapper extends VideoPlayerWrapper implements Player.Liste
 //	private static final int ERROR_EXTRA_SECURITY_EXCEPTION_WHEN_SET_DATA_SOURCE= 0x1FF;
 //	private static final int ERROR_EXTRA_ILLEGAL_STATE= 0x2FF;
 
-    /** Handle for ExoPlayer instance. */
-    private ExoPlayer mExoPlayer;
+    /** Handle for ExoPlayer instance. Called on its application thread only. */
+    private volatile ExoPlayer mExoPlayer;
 
-    private final DataSource.Factory mDataSourceFactory;
-    private final DefaultMediaSourceFactory mMediaSourceFactory;
+    /** Thread whose looper runs the players built by this wrapper, or null if not started. */
+    @Nullable
+    private HandlerThread mPlaybackThread;
+
+    /** Handler on the current player's application looper. */
+    private volatile Handler mPlaybackHandler = new Handler(Looper.getMainLooper());
+
+    private DataSource.Factory mDataSourceFactory;
+    private DefaultMediaSourceFactory mMediaSourceFactory;
+
+    /** Media source factories per content type, sharing mDataSourceFactory. */
+    private MediaSourceFactoryRegistry mMediaSourceFactories;
+
+    /** Optional on-disk cache for streamed media. */
+    @Nullable
+    private MediaCache mMediaCache = null;
+
+    /** Concurrent connections for downloading a progressive file; 1 disables (opt-in). */
+    private int mParallelConnections = DEFAULT_PARALLEL_CONNECTIONS;
+
+    /** Size of each range request when downloading over several connections. */
+    private int mParallelChunkSizeBytes = DEFAULT_PARALLEL_CHUNK_SIZE_BYTES;
+
+    /** Selects between equivalent origins, or null if streaming from a single host. */
+    @Nullable
+    private OriginSelector mOriginSelector;
+
+    /** Plain HTTP data source factory, for probing origins. */
+    private DataSource.Factory mHttpDataSourceFactory;
+
+    /** True if slow requests are duplicated (opt-in). */
+    private boolean mRequestHedgingEnabled = false;
+
+    /** Host for duplicate requests, or null to use the original host. */
+    @Nullable
+    private String mHedgeAlternateHost;
+
+    /** Counters for hedged requests. */
+    private final HedgedDataSource.Stats mHedgeStats = new HedgedDataSource.Stats();
+
+    /** True if upcoming HLS segments are fetched concurrently ahead of the player (opt-in). */
+    private boolean mHlsLookaheadEnabled = false;
+
+    /** Fetches upcoming HLS segments, or null if HLS lookahead is disabled. */
+    @Nullable
+    private HlsSegmentPrefetcher mSegmentPrefetcher;
 
     private DefaultTrackSelector mTrackSelector;
 
+    /** Buffering configuration, applied when the player is created. */
+    private BufferProfile mBufferProfile = BufferProfile.DEFAULT;
+
+    /** Optional pool of pre-built players to lease from. */
+    @Nullable
+    private final ExoPlayerPool mPlayerPool;
+
+    /** The player leased from the pool, or null if the player was built by this wrapper. */
+    @Nullable
+    private ExoPlayerPool.PooledPlayer mLeasedPlayer = null;
+
     private MediaSource mMediaSource;
+
+    /** Playlist items that follow mMediaSource, in playback order. */
+    private final List<MediaSource> mPlaylist = new ArrayList<>();
+
+    /** Listener for playlist item transitions. */
+    @Nullable
+    private PlaylistListener mPlaylistListener = null;
+
+    /** Index of the playlist item that is currently playing. */
+    private volatile int mPlaylistIndex = 0;
+
+    /** Looping flag that has been applied to the player as its repeat mode. */
+    private volatile boolean mRepeatModeLooping = false;
+
+    /** Flag for posting a duration update when the new playlist item's duration is known. */
+    private boolean mPlaylistDurationPending = false;
     private String mOverrideExtension = "";  // Set to override media type inference from the uri
     private int	mAudioSessionID = 0;
 
     /** Task that handles video position update notifications. */
     private final VideoPositionUpdateTask mPositionUpdater = new VideoPositionUpdateTask();
 
+    /** Buffered percentage last reported to listeners. Accessed on the main thread. */
+    private int mReportedBufferedPercentage = 0;
+
+    /** Flag for a buffering update that has been posted to the main thread but not run. */
+    private final AtomicBoolean mBufferingUpdatePending = new AtomicBoolean();
+
+    /** Task that reports the latest buffered percentage to listeners. */
+    private final Runnable mBufferingUpdateTask = this::notifyBufferedPercentage;
+
+    /** Minimum interval between video position update notifications, in ms. */
     private int	mPositionUpdateTimeoutMs = 200;
 
-    /** Task that handles video buffer update notifications. */
-    private final VideoBufferUpdateTask mBufferUpdater = new VideoBufferUpdateTask();
+    /** Flag for indicating if position updates should be reported while playing. */
+    private boolean mPositionUpdatesEnabled = true;
+
+    /** Policy for sizing video tracks to the visible pixel density of 360 video. */
+    private final ViewportTrackSelectionPolicy mViewportPolicy = new ViewportTrackSelectionPolicy();
+
+    /** Latest viewing parameters given with setViewport(), or 0 if none. */
+    private float mViewportFovDeg = 0;
+    private float mViewportZoom = 0;
+    private int mViewportWidth = 0;
+    private int mViewportHeight = 0;
+
+    /** True if the decoder is kept alive while the view has no surface. */
+    private volatile boolean mSurfaceKeepAliveEnabled = true;
+
+    /** Surface that takes the decoded frames while the view has none. Playback thread only. */
+    @Nullable
+    private PlaceholderSurface mPlaceholderSurface;
+
+    /** True while the placeholder surface is attached. Accessed on the playback thread. */
+    private boolean mSurfaceDetached = false;
+
+    /** Store that keeps the player alive for the next wrapper, or null to release it. */
+    @Nullable
+    private volatile PlaybackSessionStore mSessionStore;
+
+    /** Key of the retained session in mSessionStore. */
+    @Nullable
+    private volatile String mSessionKey;
+
+    /** True if the session is retained when this wrapper is released. */
+    private volatile boolean mRetainOnRelease = true;
+
+    /** Session that has been taken over, until it is prepared. */
+    @Nullable
+    private PlaybackSessionStore.Session mResumedSession;
+
+    /** Task that retries a viewport update that was held back by the hysteresis. */
+    private final Runnable mViewportUpdateTask = this::updateViewportTrackSelection;
+
+    /** Policy for recovering from transient errors in place, or null to fail on any error. */
+    @Nullable
+    private volatile ErrorRecoveryPolicy mErrorRecoveryPolicy = new ErrorRecoveryPolicy();
+
+    /** True while the player is re-prepared after a retryable error. */
+    private volatile boolean mRecovering = false;
+
+    /** True if the retry must jump to the live edge. Accessed on the playback thread. */
+    private boolean mRecoverToLiveEdge = false;
+
+    /** Task that retries playback after a retryable error. */
+    private final Runnable mRecoveryTask = this::recoverFromError;
+
+    /** Live playback configuration, or null for the stream's own. */
+    @Nullable
+    private volatile LiveProfile mLiveProfile = null;
+
+    /** Trace for per-event diagnostics, instead of building log strings in hot paths. */
+    private final PlaybackTrace mTrace = PlaybackTrace.getInstance();
+
+    /** Quality of experience metrics, collected from player events. */
+    private final QoeMetrics mQoeMetrics = new QoeMetrics();
+
+    /** How seek positions are resolved. */
+    private volatile SeekMode mSeekMode = SeekMode.EXACT;
+
+    /** True while the user drags a seek bar; seeks then snap to sync frames. */
+    private volatile boolean mScrubbing = false;
+
+    /** The latest position requested while scrubbing, or -1. */
+    private long mLastScrubPositionMs = -1;
+
+    /** Latest player status, written by the player thread and read without locking. */
+    private final AtomicReference<PlaybackSnapshot> mSnapshot =
+            new AtomicReference<>(PlaybackSnapshot.RELEASED);
 
     private String mAdTag = null;
     private AdsLoader mAdsLoader = null;
@@ -138,9 +353,37 @@ public class ExoPlayerWrapper extends VideoPlayerWrapper implements Player.Liste
 
 
     public ExoPlayerWrapper(Context context) {
+        this(context, BufferProfile.DEFAULT);
+    }
+
+    public ExoPlayerWrapper(Context context, BufferProfile bufferProfile) {
+        this(context, bufferProfile, null);
+    }
+
+    /**
+     * Create a wrapper that leases its player from a pool of pre-built players, when one is
+     * available. The pool's buffer profile and bandwidth meter are used.
+     *
+     * @param context the context.
+     * @param pool the player pool.
+     */
+    public ExoPlayerWrapper(Context context, ExoPlayerPool pool) {
+        this(context, pool.getBufferProfile(), pool);
+    }
+
+    private ExoPlayerWrapper(Context context, BufferProfile bufferProfile,
+                             @Nullable ExoPlayerPool pool) {
         mContext = context;
+        mBufferProfile = bufferProfile;
+        mPlayerPool = pool;
 
-        BANDWIDTH_METER = new DefaultBandwidthMeter.Builder(mContext).build();
+        mBandwidthEstimateStore = new BandwidthEstimateStore(mContext);
+        if (pool != null) {
+            BANDWIDTH_METER = pool.getBandwidthMeter();
+        } else {
+            BANDWIDTH_METER = mBandwidthEstimateStore.applyTo(
+                    new DefaultBandwidthMeter.Builder(mContext)).build();
+        }
 
         // Produces DataSource instances through which media data is loaded.
 //		mDataSourceFactory = buildDataSourceFactory(true);
@@ -149,52 +392,355 @@ public class ExoPlayerWrapper extends VideoPlayerWrapper implements Player.Liste
                 mDataSourceFactory
                 //mContext, new DefaultExtractorsFactory()
         );
+        mMediaSourceFactories = new MediaSourceFactoryRegistry(mDataSourceFactory);
 
         updateState();
     }
 
-    // TODO: There seems to be nowhere to input the DefaultBandwidthMeter. Find out what happened to it.
-//	private DataSource.Factory buildDataSourceFactory(boolean useBandwidthMeter) {
-////		DefaultBandwidthMeter meter = useBandwidthMeter ? BANDWIDTH_METER : null;
-//
-//		String userAgent = Util.getUserAgent(mContext, USER_AGENT);
-//		DefaultHttpDataSource.Factory defaultHttpDataSourceFactory = new DefaultHttpDataSource.Factory()
-//				.setUserAgent(userAgent);
-//		return new DefaultDataSource.Factory(mContext, defaultHttpDataSourceFactory);
-//	}
+    /** Operation on the player, run on its application thread. */
+    private interface PlayerTask {
+        void run(ExoPlayer player);
+    }
+
+    private boolean isOnPlaybackThread() {
+        return Looper.myLooper() == mPlaybackHandler.getLooper();
+    }
+
+    // Run a task on the given handler's thread: immediately when already there, otherwise
+    // posted in call order.
+    private static void runOn(Handler handler, Runnable task) {
+        if (Looper.myLooper() == handler.getLooper()) {
+            task.run();
+        } else {
+            handler.post(task);
+        }
+    }
+
+    /**
+     * Run a task on the current player, on its application thread. A posted task is dropped
+     * if the player has been released by the time it runs. Never blocks, hence it is safe to
+     * call while holding the status locks.
+     *
+     * @param task the task.
+     */
+    private void runOnPlayer(final PlayerTask task) {
+        final ExoPlayer player = mExoPlayer;
+        if (null == player) {
+            return;
+        }
+        runOn(mPlaybackHandler, () -> {
+            if (player == mExoPlayer) {
+                task.run(player);
+            }
+        });
+    }
+
+    // Run a listener notification on the main thread.
+    private void runOnMainThread(Runnable task) {
+        runOn(mMainHandler, task);
+    }
+
+    private Looper getPlaybackThreadLooper() {
+        if (null == mPlaybackThread) {
+            mPlaybackThread = new HandlerThread(TAG + ":Playback",
+                    Process.THREAD_PRIORITY_DISPLAY);
+            mPlaybackThread.start();
+        }
+        return mPlaybackThread.getLooper();
+    }
+
+    // (Re-)register for load events on the current player's application thread.
+    private void listenToMediaSource(MediaSource mediaSource, MediaSourceEventListener listener) {
+        mediaSource.removeEventListener(listener);
+        mediaSource.addEventListener(mPlaybackHandler, listener);
+    }
 
     private DataSource.Factory buildDataSourceFactory() {
         String userAgent = Util.getUserAgent(mContext, USER_AGENT);
+        // Measure all network transfers with the same meter that drives adaptive track selection.
+        // ExoPlayer also adds the meter to media loads; data sources ignore duplicate listeners.
         DefaultHttpDataSource.Factory defaultHttpDataSourceFactory = new DefaultHttpDataSource.Factory()
-                .setUserAgent(userAgent);
-        return new DefaultDataSource.Factory(mContext, defaultHttpDataSourceFactory);
+                .setUserAgent(userAgent)
+                .setTransferListener(BANDWIDTH_METER);
+        mHttpDataSourceFactory = defaultHttpDataSourceFactory;
+        DataSource.Factory networkDataSourceFactory = defaultHttpDataSourceFactory;
+        if (mRequestHedgingEnabled) {
+            networkDataSourceFactory = new HedgedDataSource.Factory(
+                    networkDataSourceFactory, mHedgeStats, mHedgeAlternateHost);
+        }
+        if (mOriginSelector != null) {
+            networkDataSourceFactory = new MultiOriginDataSource.Factory(
+                    networkDataSourceFactory, mOriginSelector);
+        }
+        if (mParallelConnections > 1) {
+            networkDataSourceFactory = new ParallelRangeDataSource.Factory(
+                    networkDataSourceFactory, mParallelConnections, mParallelChunkSizeBytes);
+        }
+        if (mSegmentPrefetcher != null) {
+            mSegmentPrefetcher.clear();
+            mSegmentPrefetcher = null;
+        }
+        if (mHlsLookaheadEnabled) {
+            mSegmentPrefetcher = new HlsSegmentPrefetcher(networkDataSourceFactory,
+                    getHlsStagingBudgetBytes());
+            networkDataSourceFactory = mSegmentPrefetcher.getDataSourceFactory();
+        }
+        if (mMediaCache != null) {
+            networkDataSourceFactory = mMediaCache.buildDataSourceFactory(networkDataSourceFactory);
+        }
+        return new DefaultDataSource.Factory(mContext, networkDataSourceFactory);
+    }
+
+    /**
+     * Set on-disk cache for streamed media. Media that is read through the cache is not
+     * downloaded again when it is replayed. The cache is applied to data sources that are
+     * set after calling this method.
+     *
+     * @param cache the media cache, or null to stream without caching.
+     */
+    public void setMediaCache(@Nullable MediaCache cache) {
+        if (mMediaCache == cache) {
+            return;
+        }
+        mMediaCache = cache;
+        rebuildDataSourceFactories();
+    }
+
+    @Nullable
+    public MediaCache getMediaCache() {
+        return mMediaCache;
+    }
+
+    /**
+     * Set how large progressive files (e.g. MP4) are downloaded. With more than one
+     * connection, the file is fetched with concurrent byte-range requests of the given
+     * size and reassembled in order, which helps reaching the available throughput on
+     * high-latency links. Adaptive streams' manifests are not affected. Applied to data
+     * sources that are set after calling this method.
+     *
+     * @param connections the number of concurrent connections per file, 1 to disable
+     *                    (default).
+     * @param chunkSizeBytes the size of each range request, in bytes.
+     */
+    public void setParallelDownload(int connections, int chunkSizeBytes) {
+        if (mParallelConnections == connections && mParallelChunkSizeBytes == chunkSizeBytes) {
+            return;
+        }
+        mParallelConnections = connections;
+        mParallelChunkSizeBytes = chunkSizeBytes;
+        rebuildDataSourceFactories();
+    }
+
+    /**
+     * Set equivalent origins (e.g. CDNs) that serve the same content with the same paths.
+     * Requests to any of these hosts are routed to the fastest healthy one, and fail
+     * over to the next one mid-stream without a player error. The origins are probed
+     * when a data source on one of them is set. Applied to data sources that are set
+     * after calling this method.
+     *
+     * @param hosts the origin hosts, optionally with ports, in order of preference;
+     *              null or empty to stream from the host in the URI only.
+     */
+    public void setOrigins(@Nullable List<String> hosts) {
+        mOriginSelector = null == hosts || hosts.isEmpty() ? null : new OriginSelector(hosts);
+        rebuildDataSourceFactories();
+    }
+
+    /** Return the origin selector with per-origin scores, or null if not set. */
+    @Nullable
+    public OriginSelector getOriginSelector() {
+        return mOriginSelector;
+    }
+
+    /**
+     * Set whether slow requests are hedged. When a segment or range request has not
+     * produced its first byte within the 95th percentile of recent response times, a
+     * duplicate request is sent and the first one to respond is used. Applied to data
+     * sources that are set after calling this method.
+     *
+     * @param enabled true to enable request hedging, false to disable (default).
+     * @param alternateHost the host (and port) for duplicate requests, e.g. a second CDN,
+     *                      or null to send them to the original host.
+     */
+    public void setRequestHedging(boolean enabled, @Nullable String alternateHost) {
+        mRequestHedgingEnabled = enabled;
+        mHedgeAlternateHost = alternateHost;
+        rebuildDataSourceFactories();
+    }
+
+    /** Return the number of duplicate requests sent for slow requests. */
+    public long getHedgesFired() {
+        return mHedgeStats.getHedgesFired();
+    }
+
+    /** Return the number of duplicate requests that responded before the original. */
+    public long getHedgesWon() {
+        return mHedgeStats.getHedgesWon();
+    }
+
+    /**
+     * Set whether upcoming HLS segments are fetched concurrently ahead of the player. The
+     * number of segments is chosen from the measured round trip time and throughput, and
+     * the staged bytes are limited by the buffer profile. Applied to data sources that
+     * are set after calling this method.
+     * <p/>
+     * With a byte limit in the buffer profile, a quarter of it is used for staging and the
+     * player's own buffer gets the rest, so that the total stays within the limit. Without
+     * one, up to 16 MB are staged on top of ExoPlayer's default buffer.
+     *
+     * @param enabled true to enable HLS lookahead, false to disable (default).
+     */
+    public void setHlsLookaheadEnabled(boolean enabled) {
+        if (mHlsLookaheadEnabled == enabled) {
+            return;
+        }
+        mHlsLookaheadEnabled = enabled;
+        rebuildDataSourceFactories();
+    }
+
+    private long getHlsStagingBudgetBytes() {
+        int reservedBytes = getHlsStagingReservedBytes();
+        return reservedBytes > 0 ? reservedBytes : DEFAULT_HLS_STAGING_BUDGET_BYTES;
+    }
+
+    /**
+     * Return the bytes that staged segments take out of the buffer profile's byte limit,
+     * or 0 if lookahead is disabled or the profile has no limit.
+     */
+    private int getHlsStagingReservedBytes() {
+        int targetBufferBytes = mBufferProfile.getTargetBufferBytes();
+        return mHlsLookaheadEnabled && targetBufferBytes > 0 ? targetBufferBytes / 4 : 0;
     }
 
+    private void rebuildDataSourceFactories() {
+        mDataSourceFactory = buildDataSourceFactory();
+        mMediaSourceFactory = new DefaultMediaSourceFactory(mDataSourceFactory);
+        mMediaSourceFactories = new MediaSourceFactoryRegistry(mDataSourceFactory);
+    }
+
+    // Call only from the player thread, with mCurrentStatus locked.
     private boolean isInPlaybackState() {
+        return (mExoPlayer != null
+                && mCurrentStatus.playerState != PlayerState.END
+                && mCurrentStatus.playerState != PlayerState.ERROR
+                && mCurrentStatus.playerState != PlayerState.IDLE
+                && mCurrentStatus.playerState != PlayerState.PREPARING);
+    }
+
+    /**
+     * Publish a new status snapshot for lock-free readers. Call after every change to the
+     * current status or to the ExoPlayer state; off the playback thread the player is
+     * sampled there, after the player calls posted so far.
+     */
+    private void publishSnapshot() {
+        final ExoPlayer player = mExoPlayer;
+        if (player != null && !isOnPlaybackThread()) {
+            mPlaybackHandler.post(this::publishSnapshot);
+            return;
+        }
+        PlaybackSnapshot snapshot;
         synchronized (mCurrentStatus) {
-            return (mExoPlayer != null
-                    && mCurrentStatus.playerState != PlayerState.END
-                    && mCurrentStatus.playerState != PlayerState.ERROR
-                    && mCurrentStatus.playerState != PlayerState.IDLE
-                    && mCurrentStatus.playerState != PlayerState.PREPARING);
+            if (player == null) {
+                snapshot = mCurrentStatus.playerState == PlayerState.END
+                        ? PlaybackSnapshot.RELEASED
+                        : new PlaybackSnapshot(false, false, false, false, 1.0f, -1, -1, 0,
+                                SystemClock.elapsedRealtime());
+            } else {
+                boolean inPlaybackState = isInPlaybackState();
+                long durationMs = player.getDuration();
+                long positionMs = -1;
+                if (inPlaybackState && durationMs != C.TIME_UNSET) {
+                    // ExoPlayer may report bigger current position than the duration when
+                    // playback has been completed. Clamp the position to the duration.
+                    positionMs = Math.min(player.getCurrentPosition(), durationMs);
+                } else {
+                    durationMs = -1;
+                }
+                snapshot = new PlaybackSnapshot(
+                        mCurrentStatus.playerState == PlayerState.END,
+                        inPlaybackState,
+                        player.getPlayWhenReady(),
+                        player.isPlaying(),
+                        player.getPlaybackParameters().speed,
+                        positionMs,
+                        durationMs,
+                        player.getBufferedPercentage(),
+                        SystemClock.elapsedRealtime(),
+                        getLiveOffsetMs(player));
+            }
+        }
+        if (player == mExoPlayer) {
+            // Not released meanwhile.
+            mSnapshot.set(snapshot);
         }
     }
 
-    public boolean isPlaying() {
-        synchronized (mCurrentStatus) {
-            return isInPlaybackState() && mExoPlayer.getPlayWhenReady();
+    // Return the player's offset from the live edge, or -1 if not live. Call on the playback thread.
+    private static long getLiveOffsetMs(ExoPlayer player) {
+        if (!player.isCurrentMediaItemLive()) {
+            return -1;
+        }
+        long offsetMs = player.getCurrentLiveOffset();
+        return offsetMs == C.TIME_UNSET ? -1 : offsetMs;
+    }
+
+    /** Return true if the current video is a live stream. */
+    public boolean isLive() {
+        return mSnapshot.get().liveOffsetMs >= 0;
+    }
+
+    /**
+     * Return the current latency to the live edge, i.e. how far behind real time the
+     * picture is. Compare with the target offset of the live profile, see
+     * {@link #setLiveProfile(LiveProfile)}.
+     *
+     * @return the latency in ms, or -1 if not playing a live stream.
+     */
+    public long getLiveLatencyMs() {
+        return mSnapshot.get().getLiveOffsetAt(SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * Set the live playback configuration: the target offset from the live edge and the
+     * playback speeds used to catch up with it. Applied to sources set after this call,
+     * including playlist items. Consider also a live buffer profile, such as
+     * BufferProfile.LIVE_LOW_LATENCY.
+     *
+     * @param profile the live profile, or null for the stream's own configuration.
+     */
+    public void setLiveProfile(@Nullable LiveProfile profile) {
+        mLiveProfile = profile;
+    }
+
+    @Nullable
+    public LiveProfile getLiveProfile() {
+        return mLiveProfile;
+    }
+
+    // Create a media item with the live profile, if set.
+    private MediaItem.Builder newMediaItemBuilder() {
+        MediaItem.Builder builder = new MediaItem.Builder();
+        LiveProfile liveProfile = mLiveProfile;
+        if (liveProfile != null) {
+            builder.setLiveConfiguration(liveProfile.toLiveConfiguration());
         }
+        return builder;
+    }
+
+    public boolean isPlaying() {
+        PlaybackSnapshot snapshot = mSnapshot.get();
+        return snapshot.inPlaybackState && snapshot.playWhenReady;
     }
 
     @Override
     public boolean isReleased() {
-        synchronized (mCurrentStatus) {
-            return mCurrentStatus.playerState == PlayerState.END;
-        }
+        return mSnapshot.get().released;
     }
 
     // Gets the ExoPlayer handle, if it happens to be created at call time. Use at own peril.
     // The player is created just before the call to onVideoPlayerCreated callback until just after the call to onVideoPlayerReleased
+    // Call the player only on its application thread, see ExoPlayer.getApplicationLooper().
+    // That is the main thread only if an ads loader has been set.
     public ExoPlayer getExoPlayer() {
         return mExoPlayer;
     }
@@ -203,6 +749,281 @@ public class ExoPlayerWrapper extends VideoPlayerWrapper implements Player.Liste
         return mMediaSourceFactory;
     }
 
+    /**
+     * Set buffering configuration. The profile is applied when the player is created, hence
+     * set it before binding this wrapper to a video texture.
+     *
+     * @param profile the buffer profile, for example one of the BufferProfile presets.
+     */
+    public void setBufferProfile(BufferProfile profile) {
+        if (null == profile) {
+            profile = BufferProfile.DEFAULT;
+        }
+        mBufferProfile = profile;
+        if (mSegmentPrefetcher != null) {
+            mSegmentPrefetcher.setBudgetBytes(getHlsStagingBudgetBytes());
+        }
+        if (mExoPlayer != null) {
+            Logger.logW(TAG, "Buffer profile will be applied when the player is created next time");
+        }
+    }
+
+    public BufferProfile getBufferProfile() {
+        return mBufferProfile;
+    }
+
+    /**
+     * Append a video to the playlist. The texture's own video is the first item, and items
+     * play back-to-back without re-preparing; the next item is buffered while the current one
+     * plays. Call from the main thread.
+     *
+     * @param uri the URI of the video.
+     */
+    public void appendToPlaylist(String uri) {
+        Uri parsedUri = Uri.parse(uri);
+        MediaSource.Factory mediaSourceFactory = mMediaSourceFactories.get(
+                Util.inferContentType(parsedUri));
+        if (null == mediaSourceFactory) {
+            throw new IllegalArgumentException("Unsupported playlist item: " + uri);
+        }
+        final MediaSource mediaSource = mediaSourceFactory.createMediaSource(
+                newMediaItemBuilder().setUri(parsedUri).build());
+        listenToMediaSource(mediaSource, mAdaptiveMediaSourceEventListener);
+        mPlaylist.add(mediaSource);
+        runOnPlayer(player -> {
+            if (player.getMediaItemCount() > 0) {
+                player.addMediaSource(mediaSource);
+            }
+        });
+    }
+
+    /**
+     * Remove a video from the playlist. Call from the main thread.
+     *
+     * @param index the index of the item; 0 (the texture's own video) cannot be removed.
+     */
+    public void removeFromPlaylist(final int index) {
+        if (index < 1 || index > mPlaylist.size()) {
+            throw new IndexOutOfBoundsException("Invalid playlist index: " + index);
+        }
+        mPlaylist.remove(index - 1);
+        runOnPlayer(player -> {
+            if (index < player.getMediaItemCount()) {
+                player.removeMediaItem(index);
+            }
+        });
+    }
+
+    /** Remove all appended videos from the playlist. Call from the main thread. */
+    public void clearPlaylist() {
+        mPlaylist.clear();
+        runOnPlayer(player -> {
+            if (player.getMediaItemCount() > 1) {
+                player.removeMediaItems(1, player.getMediaItemCount());
+            }
+        });
+    }
+
+    /** Return the number of items in the playlist, including the texture's own video. */
+    public int getPlaylistSize() {
+        return 1 + mPlaylist.size();
+    }
+
+    /** Return the index of the playlist item that is currently playing. */
+    public int getPlaylistIndex() {
+        return mPlaylistIndex;
+    }
+
+    /**
+     * Skip to the given playlist item. Call from the main thread.
+     *
+     * @param index the index of the item.
+     */
+    public void skipToPlaylistItem(final int index) {
+        if (index < 0 || index >= getPlaylistSize()) {
+            throw new IndexOutOfBoundsException("Invalid playlist index: " + index);
+        }
+        runOnPlayer(player -> {
+            if (index < player.getMediaItemCount()) {
+                player.seekToDefaultPosition(index);
+            }
+        });
+    }
+
+    /** Skip to the next playlist item, if there is one. Call from the main thread. */
+    public void skipToNext() {
+        runOnPlayer(player -> {
+            if (player.hasNextMediaItem()) {
+                player.seekToNextMediaItem();
+            }
+        });
+    }
+
+    /** Skip to the previous playlist item, if there is one. Call from the main thread. */
+    public void skipToPrevious() {
+        runOnPlayer(player -> {
+            if (player.hasPreviousMediaItem()) {
+                player.seekToPreviousMediaItem();
+            }
+        });
+    }
+
+    public void setPlaylistListener(@Nullable PlaylistListener listener) {
+        mPlaylistListener = listener;
+    }
+
+    // Set the texture's own video and the playlist to the player, from the beginning.
+    private void setPlayerMediaSources() {
+        final MediaSource mediaSource = mMediaSource;
+        final List<MediaSource> playlist = new ArrayList<>(mPlaylist);
+        for (MediaSource item : playlist) {
+            listenToMediaSource(item, mAdaptiveMediaSourceEventListener);
+        }
+        mPlaylistIndex = 0;
+        runOnPlayer(player -> {
+            player.setMediaSource(mediaSource, true);
+            if (!playlist.isEmpty()) {
+                player.addMediaSources(playlist);
+            }
+        });
+    }
+
+    /**
+     * Set the viewing parameters that determine the visible pixel density of 360 video.
+     * Video tracks are then selected to match it: tracks that are much bigger than what can
+     * be seen are excluded, and a zoomed-in view allows bigger tracks than the display size
+     * alone would. Call again whenever the zoom, field of view or viewport size changes.
+     *
+     * @param horizontalFovDeg the camera's horizontal field of view at zoom 1.0, in degrees.
+     * @param zoom the camera's zoom factor (OrionCamera.getZoom()).
+     * @param widthPx the viewport width, in pixels.
+     * @param heightPx the viewport height, in pixels.
+     */
+    public void setViewport(float horizontalFovDeg, float zoom, int widthPx, int heightPx) {
+        mViewportFovDeg = horizontalFovDeg;
+        mViewportZoom = zoom;
+        mViewportWidth = widthPx;
+        mViewportHeight = heightPx;
+        updateViewportTrackSelection();
+    }
+
+    /**
+     * Set hysteresis for viewport based track selection.
+     *
+     * @param switchThreshold the relative size change needed for reselection, e.g. 0.25.
+     * @param minSwitchIntervalMs the minimum time between two reselections, in ms.
+     */
+    public void setViewportHysteresis(float switchThreshold, long minSwitchIntervalMs) {
+        mViewportPolicy.setHysteresis(switchThreshold, minSwitchIntervalMs);
+    }
+
+    /**
+     * Set the number of video pixels wanted per screen pixel in viewport based track
+     * selection. Values below 1.0 save bandwidth at the cost of sharpness.
+     *
+     * @param factor the pixel density factor, default 1.0.
+     */
+    public void setViewportPixelDensityFactor(float factor) {
+        mViewportPolicy.setPixelDensityFactor(factor);
+    }
+
+    private void updateViewportTrackSelection() {
+        mMainHandler.removeCallbacks(mViewportUpdateTask);
+        long nowMs = SystemClock.elapsedRealtime();
+        if (mViewportPolicy.update(mViewportFovDeg, mViewportZoom,
+                mViewportWidth, mViewportHeight, nowMs)) {
+            applyViewportConstraint();
+        } else {
+            long delayMs = mViewportPolicy.getPendingDelayMs(nowMs);
+            if (delayMs > 0) {
+                mMainHandler.postDelayed(mViewportUpdateTask, delayMs);
+            }
+        }
+    }
+
+    private void applyViewportConstraint() {
+        DefaultTrackSelector trackSelector = mTrackSelector;
+        if (null == trackSelector || mViewportPolicy.getWidth() <= 0) {
+            return;
+        }
+        Logger.logD(TAG, "Video size for viewport: " + mViewportPolicy.getWidth()
+                + " x " + mViewportPolicy.getHeight());
+        trackSelector.setParameters(trackSelector.buildUponParameters()
+                .setViewportSize(mViewportPolicy.getWidth(), mViewportPolicy.getHeight(), false));
+    }
+
+    /**
+     * Set whether the decoder is kept alive while the view has no surface, such as during
+     * rotation or a fragment swap. Decoded frames then go to a placeholder surface, audio
+     * and buffering go on, and the next surface is attached without preparing again.
+     * Otherwise the player has no output while detached, and the video decoder may be
+     * released. Enabled by default.
+     *
+     * @param enabled true to keep the decoder alive.
+     */
+    public void setSurfaceKeepAliveEnabled(boolean enabled) {
+        mSurfaceKeepAliveEnabled = enabled;
+    }
+
+    /** Return true if the decoder is kept alive while the view has no surface. */
+    public boolean isSurfaceKeepAliveEnabled() {
+        return mSurfaceKeepAliveEnabled;
+    }
+
+    /**
+     * Keep the prepared player alive when this wrapper is released, for example during a
+     * rotation or a quick app switch. A new wrapper with the same session key and source
+     * then resumes the player, with its position and buffer, without preparing again.
+     * Sessions with ads or a playlist are not retained. See {@link PlaybackSessionStore}.
+     *
+     * @param store the store, or null to release the player with the wrapper.
+     * @param key the session key, for example the content URI.
+     */
+    public void setRetainedSession(@Nullable PlaybackSessionStore store, @Nullable String key) {
+        mSessionStore = store;
+        mSessionKey = key;
+    }
+
+    /**
+     * Set whether the session set with {@link #setRetainedSession(PlaybackSessionStore,
+     * String)} is retained when this wrapper is released. Call before the release, for
+     * example with {@code !isFinishing()} in the activity's onDestroy(), so that a player
+     * is not kept alive for a next activity instance that will never come.
+     *
+     * @param retain true to retain the session (default), false to release the player.
+     */
+    public void setRetainOnRelease(boolean retain) {
+        mRetainOnRelease = retain;
+    }
+
+    /**
+     * Set the policy for recovering from transient errors (network failures, HTTP 5xx) in
+     * place. The player is then re-prepared after a backoff delay, resuming from the same
+     * position, instead of going to the error state.
+     *
+     * @param policy the policy, or null to treat every error as fatal.
+     */
+    public void setErrorRecoveryPolicy(@Nullable ErrorRecoveryPolicy policy) {
+        mErrorRecoveryPolicy = policy;
+    }
+
+    /** Return the error recovery policy, with retry counts and latencies; may be null. */
+    @Nullable
+    public ErrorRecoveryPolicy getErrorRecoveryPolicy() {
+        return mErrorRecoveryPolicy;
+    }
+
+    /**
+     * Return quality of experience metrics: time-to-first-frame, rebuffering, dropped frames,
+     * bitrate switches and decoder initialization times, for the current session (live) and
+     * the previous session (summary).
+     *
+     * @return the metrics.
+     */
+    public QoeMetrics getQoeMetrics() {
+        return mQoeMetrics;
+    }
+
     public void setAdTag(@Nullable String adTag) {
         mAdTag = adTag;
     }
@@ -217,29 +1038,17 @@ public class ExoPlayerWrapper extends VideoPlayerWrapper implements Player.Liste
 
     @Override
     public long getCurrentPosition() {
-        synchronized (mCurrentStatus) {
-            if (isInPlaybackState() && mExoPlayer.getDuration() != C.TIME_UNSET) {
-                return mExoPlayer.getCurrentPosition();
-            } else {
-                return -1;
-            }
-        }
+        return mSnapshot.get().getPositionAt(SystemClock.elapsedRealtime());
     }
 
     @Override
     public long getDuration() {
-        synchronized (mCurrentStatus) {
-            if (isInPlaybackState() && mExoPlayer.getDuration() != C.TIME_UNSET) {
-                return mExoPlayer.getDuration();
-            } else {
-                return -1;
-            }
-        }
+        return mSnapshot.get().durationMs;
     }
 
     @Override
     public int getBufferPercentage() {
-        return mExoPlayer.getBufferedPercentage();
+        return mSnapshot.get().bufferedPercentage;
     }
 
     @Override
@@ -257,27 +1066,75 @@ public class ExoPlayerWrapper extends VideoPlayerWrapper implements Player.Liste
 
     @Override
     protected boolean processCreatePlayer() {
+        return mTrace.traceStep("ExoPlayerWrapper.processCreatePlayer",
+                this::doProcessCreatePlayer);
+    }
+
+    private boolean doProcessCreatePlayer() {
         // At this moment the player should be in the END state.
         synchronized (mCurrentStatus) {
             if (mCurrentStatus.playerState == PlayerState.END) {
-                mMainHandler.postDelayed(mPositionUpdater, mPositionUpdateTimeoutMs);
-
-                DefaultRenderersFactory defaultRenderersFactory = new DefaultRenderersFactory(mContext);
-
-                AdaptiveTrackSelection.Factory videoTrackSelectionFactory =	new AdaptiveTrackSelection.Factory();
-                mTrackSelector = new DefaultTrackSelector(mContext, videoTrackSelectionFactory);
-
-                DefaultAnalyticsCollector defaultAnalyticsCollector = new DefaultAnalyticsCollector(Clock.DEFAULT);
-
-                ExoPlayer.Builder exoplayerBuilder = new ExoPlayer.Builder(mContext, defaultRenderersFactory, mMediaSourceFactory, mTrackSelector, new DefaultLoadControl(), BANDWIDTH_METER, defaultAnalyticsCollector);
-                mExoPlayer = exoplayerBuilder.build();
-                if (null != mAdsLoader) {
-                    mAdsLoader.setPlayer(mExoPlayer);
+                mQoeMetrics.onSessionStart(SystemClock.elapsedRealtime());
+
+                // Take over a player that was retained for this session, or else lease a
+                // pre-built player, if there is one with our buffer profile. Pooled
+                // players run on the pool's thread, which IMA ads do not allow.
+                final PlaybackSessionStore.Session session = claimRetainedSession();
+                // Pooled players have the full byte limit, with nothing left for staging.
+                if (null == session && mPlayerPool != null
+                        && mPlayerPool.getBufferProfile() == mBufferProfile
+                        && 0 == getHlsStagingReservedBytes() && null == mAdsLoader) {
+                    mLeasedPlayer = mPlayerPool.acquire();
                 }
-                mExoPlayer.addListener(this);
-                mExoPlayer.addAnalyticsListener(mAnalyticsListener);
+                ExoPlayer player;
+                if (session != null) {
+                    player = session.player;
+                    mTrackSelector = session.trackSelector;
+                    mPlaybackThread = session.playbackThread;
+                    mLeasedPlayer = session.leasedPlayer;
+                    mResumedSession = session;
+                } else if (mLeasedPlayer != null) {
+                    player = mLeasedPlayer.player;
+                    mTrackSelector = mLeasedPlayer.trackSelector;
+                } else {
+                    DefaultRenderersFactory defaultRenderersFactory = new DefaultRenderersFactory(mContext);
+
+                    AdaptiveTrackSelection.Factory videoTrackSelectionFactory =	new AdaptiveTrackSelection.Factory();
+                    mTrackSelector = new DefaultTrackSelector(mContext, videoTrackSelectionFactory);
+
+                    DefaultAnalyticsCollector defaultAnalyticsCollector = new DefaultAnalyticsCollector(Clock.DEFAULT);
+
+                    ExoPlayer.Builder exoplayerBuilder = new ExoPlayer.Builder(mContext, defaultRenderersFactory, mMediaSourceFactory, mTrackSelector, mBufferProfile.createLoadControl(getHlsStagingReservedBytes()), BANDWIDTH_METER, defaultAnalyticsCollector);
+                    Logger.logD(TAG, "Using " + mBufferProfile);
+                    // IMA ads require the player to run on the main thread.
+                    exoplayerBuilder.setLooper(null == mAdsLoader
+                            ? getPlaybackThreadLooper() : Looper.getMainLooper());
+                    player = exoplayerBuilder.build();
+                }
+                mPlaybackHandler = new Handler(player.getApplicationLooper());
+                mExoPlayer = player;
+                mRepeatModeLooping = false;
+                if (session != null) {
+                    final PlaceholderSurface placeholderSurface = session.placeholderSurface;
+                    runOnPlayer(p -> {
+                        mPlaceholderSurface = placeholderSurface;
+                        mSurfaceDetached = placeholderSurface != null;
+                        p.setRepeatMode(Player.REPEAT_MODE_OFF);
+                    });
+                }
+                applyViewportConstraint();
+                BANDWIDTH_METER.addEventListener(mPlaybackHandler, mBandwidthMeterListener);
+                final AdsLoader adsLoader = mAdsLoader;
+                runOnPlayer(p -> {
+                    if (null != adsLoader) {
+                        adsLoader.setPlayer(p);
+                    }
+                    p.addListener(this);
+                    p.addAnalyticsListener(mAnalyticsListener);
+                });
 
                 mCurrentStatus.playerState = PlayerState.IDLE;
+                publishSnapshot();
                 postVideoPlayerCreated();
             } else {
                 return false;
@@ -288,6 +1145,11 @@ public class ExoPlayerWrapper extends VideoPlayerWrapper implements Player.Liste
 
     @Override
     protected boolean processSetDataSource() {
+        return mTrace.traceStep("ExoPlayerWrapper.processSetDataSource",
+                this::doProcessSetDataSource);
+    }
+
+    private boolean doProcessSetDataSource() {
         // At this point we know we are in the IDLE state.
 //		int notifyError = 0, errorextra = 0;
         synchronized (mCurrentStatus) {
@@ -301,17 +1163,32 @@ public class ExoPlayerWrapper extends VideoPlayerWrapper implements Player.Liste
                 }
             }
 
+            // A new source starts a new metrics session.
+            long nowMs = SystemClock.elapsedRealtime();
+            if (mCurrentStatus.uri != null) {
+                logSessionSummary(mQoeMetrics.onSessionEnd(nowMs));
+            }
+            mQoeMetrics.onSessionStart(nowMs);
+            cancelRecovery();
+            if (mSegmentPrefetcher != null) {
+                mSegmentPrefetcher.clear();
+            }
+            if (mOriginSelector != null) {
+                mOriginSelector.probe(Uri.parse(mTargetStatus.uri.toString()),
+                        mHttpDataSourceFactory);
+            }
+
             // Deduce the type of data source we need to set, branch accordingly
             MediaItem mediaItem;
             if (null != mAdTag && !mAdTag.isEmpty()) {
-                mediaItem = new MediaItem.Builder()
+                mediaItem = newMediaItemBuilder()
                         .setUri(mTargetStatus.uri)
                         .setAdsConfiguration(
                                 new MediaItem.AdsConfiguration.Builder(Uri.parse(mAdTag)).build())
                         .build();
                 Logger.logD(TAG, "Using ad tag: " + mAdTag);
             } else {
-                mediaItem = MediaItem.fromUri(mTargetStatus.uri);
+                mediaItem = newMediaItemBuilder().setUri(mTargetStatus.uri).build();
             }
 
             int type;
@@ -320,120 +1197,57 @@ public class ExoPlayerWrapper extends VideoPlayerWrapper implements Player.Liste
             } else {
                 type = Util.inferContentTypeForExtension(mOverrideExtension);
             }
-            DataSource.Factory factory;
-            switch (type) {
-                case C.CONTENT_TYPE_SS:
-                    SsMediaSource.Factory ssMediaSourceFactory = new SsMediaSource.Factory(
-                        new DefaultSsChunkSource.Factory(mDataSourceFactory),
-//							buildDataSourceFactory(false)
-                        buildDataSourceFactory());
-                    SsMediaSource ssMediaSource =
-                            ssMediaSourceFactory.createMediaSource(mediaItem);
-                    if (null != mAdTag && !mAdTag.isEmpty()) {
-                        DataSpec adTagDataSpec = new DataSpec(Uri.parse(mAdTag));
-                        Object adsId = mAdTag;
-                        mMediaSource = new AdsMediaSource(
-                                ssMediaSource,
-                                adTagDataSpec,
-                                adsId,
-                                ssMediaSourceFactory,
-                                mAdsLoader,
-                                mAdViewProvider);
-                    } else {
-                        mMediaSource = ssMediaSource;
-                    }
-                    mMediaSource.addEventListener(mMainHandler, mAdaptiveMediaSourceEventListener);
-                    break;
-                case C.CONTENT_TYPE_DASH:
-                    DashMediaSource.Factory dashMediaSourceFactory = new DashMediaSource.Factory(
-                            new DefaultDashChunkSource.Factory(mDataSourceFactory),
-//							buildDataSourceFactory(false)
-                            buildDataSourceFactory());
-                    DashMediaSource dashMediaSource =
-                            dashMediaSourceFactory.createMediaSource(mediaItem);
-                    if (null != mAdTag && !mAdTag.isEmpty()) {
-                        DataSpec adTagDataSpec = new DataSpec(Uri.parse(mAdTag));
-                        Object adsId = mAdTag;
-                        mMediaSource = new AdsMediaSource(
-                                dashMediaSource,
-                                adTagDataSpec,
-                                adsId,
-                                dashMediaSourceFactory,
-                                mAdsLoader,
-                                mAdViewProvider);
-                    } else {
-                        mMediaSource = dashMediaSource;
-                    }
-                    mMediaSource.addEventListener(mMainHandler, mAdaptiveMediaSourceEventListener);
-                    break;
-                case C.CONTENT_TYPE_HLS:
-                    HlsMediaSource.Factory hlsMediaSourceFactory = new HlsMediaSource.Factory(
-                            mDataSourceFactory);
-                    HlsMediaSource hlsMediaSource =
-                            hlsMediaSourceFactory.createMediaSource(mediaItem);
-                    if (null != mAdTag && !mAdTag.isEmpty()) {
-                        DataSpec adTagDataSpec = new DataSpec(Uri.parse(mAdTag));
-                        Object adsId = mAdTag;
-                        mMediaSource = new AdsMediaSource(
-                                hlsMediaSource,
-                                adTagDataSpec,
-                                adsId,
-                                hlsMediaSourceFactory,
-                                mAdsLoader,
-                                mAdViewProvider);
-                    } else {
-                        mMediaSource = hlsMediaSource;
-                    }
-                    mMediaSource.addEventListener(mMainHandler, mAdaptiveMediaSourceEventListener);
-                    break;
-                case C.CONTENT_TYPE_OTHER:
-                    ProgressiveMediaSource.Factory progressiveMediaSourceFactory =
-                            new ProgressiveMediaSource.Factory(mDataSourceFactory,
-                                    new DefaultExtractorsFactory());
-                    ProgressiveMediaSource progressiveMediaSource =
-                            progressiveMediaSourceFactory.createMediaSource(mediaItem);
-                    if (null != mAdTag && !mAdTag.isEmpty()) {
-                        DataSpec adTagDataSpec = new DataSpec(Uri.parse(mAdTag));
-                        Object adsId = mAdTag;
-                        mMediaSource = new AdsMediaSource(
-                                progressiveMediaSource,
-                                adTagDataSpec,
-                                adsId,
-                                progressiveMediaSourceFactory,
-                                mAdsLoader,
-                                mAdViewProvider);
-                    } else {
-                        mMediaSource = progressiveMediaSource;
-                    }
-                    mMediaSource.addEventListener(mMainHandler, new MediaSourceEventListener() {
-                        @Override
-                        public void onLoadError(int windowIndex, @Nullable MediaSource.MediaPeriodId mediaPeriodId, LoadEventInfo loadEventInfo,
-                                                MediaLoadData mediaLoadData, IOException error, boolean wasCanceled)
-                        {
-                            Logger.logE(TAG, "MediaSourceEventListener.onLoadError(): " + error.toString());
-                            postException(error);
-                            // FIXME this API does not work for ExoPlayer errors. We have an Exception, not error codes!
-                            postVideoError(0, 0);
-                        }
-                    });
-                    break;
-                default: {
-                    mMediaSource = null;
-                    throw new IllegalStateException("Unsupported type: " + type);
-                }
+            MediaSource.Factory mediaSourceFactory = mMediaSourceFactories.get(type);
+            if (null == mediaSourceFactory) {
+                mMediaSource = null;
+                throw new IllegalStateException("Unsupported type: " + type);
+            }
+            final PlaybackSessionStore.Session session = mResumedSession;
+            if (session != null && session.uri.equals(mTargetStatus.uri.toString())) {
+                // The retained player has this source already, and its buffer.
+                mMediaSource = session.mediaSource;
+            } else {
+                mResumedSession = null;
+                mMediaSource = maybeWrapWithAds(
+                        mediaSourceFactory.createMediaSource(mediaItem), mediaSourceFactory);
             }
+            listenToMediaSource(mMediaSource, type == C.CONTENT_TYPE_OTHER
+                    ? mProgressiveMediaSourceEventListener : mAdaptiveMediaSourceEventListener);
 
             // No exceptions? Everything went better than expected
             mCurrentStatus.uri = mTargetStatus.uri;
             mCurrentStatus.playerState = PlayerState.INITIALIZED;
+            publishSnapshot();
             postVideoSourceUriSet();
         }
         return false;
     }
 
+    private MediaSource maybeWrapWithAds(MediaSource contentMediaSource,
+                                         MediaSource.Factory adMediaSourceFactory) {
+        if (null == mAdTag || mAdTag.isEmpty()) {
+            return contentMediaSource;
+        }
+        DataSpec adTagDataSpec = new DataSpec(Uri.parse(mAdTag));
+        Object adsId = mAdTag;
+        return new AdsMediaSource(
+                contentMediaSource,
+                adTagDataSpec,
+                adsId,
+                adMediaSourceFactory,
+                mAdsLoader,
+                mAdViewProvider);
+    }
+
     @Override
     protected boolean processResetSurface() {
+        return mTrace.traceStep("ExoPlayerWrapper.processResetSurface",
+                this::doProcessResetSurface);
+    }
+
+    private boolean doProcessResetSurface() {
 //		boolean stop = false;
+        ConditionVariable surfaceReset = null;
         synchronized (mCurrentStatus) {
             switch (mCurrentStatus.playerState) {
                 case STARTED:
@@ -448,15 +1262,34 @@ public class ExoPlayerWrapper extends VideoPlayerWrapper implements Player.Liste
                 case ERROR:
                 case IDLE:
                     if (mCurrentStatus.surface != null) {
-                        // TODO: Previously this was done with blockingSendMessage, do we need to block here as well?
-                        mExoPlayer.setVideoSurface(null);
-                        // note: above operation is synchronous, so we can release surface.
-                        // TODO: Really?
+                        final Surface surface = mCurrentStatus.surface;
+                        final boolean releaseSurface;
                         synchronized (mTargetStatus) {
-                            if (mTargetStatus.surface != mCurrentStatus.surface) {
-                                mCurrentStatus.surface.release();
-                            }
+                            releaseSurface = mTargetStatus.surface != surface;
                         }
+                        final ExoPlayer player = mExoPlayer;
+                        final boolean keepAlive = mSurfaceKeepAliveEnabled
+                                && isDecoding(mCurrentStatus.playerState);
+                        // Detach and release on the playback thread, in this order. There
+                        // setVideoSurface() is synchronous, so the surface can be released.
+                        // The caller is waiting for the surface to go; see below.
+                        final ConditionVariable reset = new ConditionVariable();
+                        surfaceReset = reset;
+                        runOn(mPlaybackHandler, () -> {
+                            if (player != null && player == mExoPlayer) {
+                                // Swapping to a placeholder keeps the codec configured,
+                                // whereas no output at all may release it.
+                                Surface placeholder = keepAlive ? getPlaceholderSurface() : null;
+                                player.setVideoSurface(placeholder);
+                                mSurfaceDetached = placeholder != null;
+                                mTrace.record(PlaybackTrace.SURFACE_DETACHED,
+                                        mSurfaceDetached ? 1 : 0);
+                            }
+                            if (releaseSurface) {
+                                surface.release();
+                            }
+                            reset.open();
+                        });
                         mCurrentStatus.surface = null;
                     }
                     break;
@@ -464,6 +1297,11 @@ public class ExoPlayerWrapper extends VideoPlayerWrapper implements Player.Liste
                     break;
             }
         }
+        // The view destroys the surface when this returns, so the decoder must not render
+        // to it anymore. Wait outside the status lock, which the playback thread takes too.
+        if (surfaceReset != null && !surfaceReset.block(SURFACE_RESET_TIMEOUT_MS)) {
+            Logger.logW(TAG, "Timed out waiting for the player to release the surface");
+        }
 //		if (stop) {
 //			doStop();
 //		}
@@ -472,6 +1310,10 @@ public class ExoPlayerWrapper extends VideoPlayerWrapper implements Player.Liste
 
     @Override
     protected boolean processSetSurface() {
+        return mTrace.traceStep("ExoPlayerWrapper.processSetSurface", this::doProcessSetSurface);
+    }
+
+    private boolean doProcessSetSurface() {
         // At this point we can be in any state.
         synchronized (mCurrentStatus) {
             synchronized (mTargetStatus) {
@@ -481,7 +1323,8 @@ public class ExoPlayerWrapper extends VideoPlayerWrapper implements Player.Liste
                 mCurrentStatus.surface = mTargetStatus.surface;
             }
             if (mCurrentStatus.surface != null) {
-                mExoPlayer.setVideoSurface(mCurrentStatus.surface);
+                final Surface surface = mCurrentStatus.surface;
+                runOnPlayer(player -> attachSurface(player, surface));
                 return false;
             } else {
                 return true;
@@ -489,8 +1332,72 @@ public class ExoPlayerWrapper extends VideoPlayerWrapper implements Player.Liste
         }
     }
 
+    /** Return true if the player has a decoder that is worth keeping without a surface. */
+    private static boolean isDecoding(PlayerState state) {
+        switch (state) {
+            case PREPARING:
+            case PREPARED:
+            case STARTED:
+            case PAUSED:
+            case PLAYBACK_COMPLETED:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Return the placeholder surface, creating it on first use, or null if it is not
+     * supported. Call on the playback thread.
+     */
+    @Nullable
+    private Surface getPlaceholderSurface() {
+        if (null == mPlaceholderSurface) {
+            try {
+                mPlaceholderSurface = PlaceholderSurface.newInstanceV17(mContext, false);
+            } catch (RuntimeException e) {
+                Logger.logW(TAG, "Placeholder surface is not available: " + e.getMessage());
+            }
+        }
+        return mPlaceholderSurface;
+    }
+
+    /** Attach the view's surface to the player. Call on the playback thread. */
+    private void attachSurface(ExoPlayer player, Surface surface) {
+        final boolean reattach = mSurfaceDetached;
+        mSurfaceDetached = false;
+        // On API 23+ the codec switches its output surface in place.
+        player.setVideoSurface(surface);
+        mTrace.record(PlaybackTrace.SURFACE_ATTACHED, reattach ? 1 : 0);
+        if (reattach && !player.getPlayWhenReady()
+                && player.getPlaybackState() == Player.STATE_READY) {
+            // A paused player does not render again by itself; seeking exactly to the current
+            // position renders the current frame from the buffer onto the new surface. The
+            // seek is tracked like any other, so the buffering it causes is accounted for.
+            // A seek that is already active renders a frame anyway.
+            final long positionMs = player.getCurrentPosition();
+            synchronized (mCurrentStatus) {
+                if (mCurrentStatus.seekActive) {
+                    return;
+                }
+                mCurrentStatus.seekActive = true;
+                mCurrentStatus.seekPosition = positionMs;
+                mQoeMetrics.onSeekStart();
+            }
+            final SeekParameters seekParameters = player.getSeekParameters();
+            player.setSeekParameters(SeekParameters.EXACT);
+            player.seekTo(positionMs);
+            player.setSeekParameters(seekParameters);
+            publishSnapshot();
+        }
+    }
+
     @Override
     protected boolean processPrepare() {
+        return mTrace.traceStep("ExoPlayerWrapper.processPrepare", this::doProcessPrepare);
+    }
+
+    private boolean doProcessPrepare() {
         synchronized (mCurrentStatus) {
             mCurrentStatus.playerState = PlayerState.PREPARING;
             if (mMediaSource == null) {
@@ -498,14 +1405,31 @@ public class ExoPlayerWrapper extends VideoPlayerWrapper implements Player.Liste
                 return false;
             }
             mCurrentStatus.preparing = true;
-            mExoPlayer.setMediaSource(mMediaSource, true);
-            mExoPlayer.prepare();
+            mQoeMetrics.onPrepareStart(SystemClock.elapsedRealtime());
+            if (mResumedSession != null) {
+                mResumedSession = null;
+                // The retained player is prepared and positioned; report it when ready.
+                runOnPlayer(player -> {
+                    if (player.getPlaybackState() == Player.STATE_READY) {
+                        onPlaybackStateChanged(Player.STATE_READY);
+                    }
+                });
+            } else {
+                setPlayerMediaSources();
+            }
+            syncRepeatMode();
+            runOnPlayer(ExoPlayer::prepare);
+            publishSnapshot();
             return true;
         }
     }
 
     @Override
     protected boolean processSeek() {
+        return mTrace.traceStep("ExoPlayerWrapper.processSeek", this::doProcessSeek);
+    }
+
+    private boolean doProcessSeek() {
         synchronized (mCurrentStatus) {
             switch (mCurrentStatus.playerState) {
                 case STARTED:
@@ -514,15 +1438,30 @@ public class ExoPlayerWrapper extends VideoPlayerWrapper implements Player.Liste
                 case PLAYBACK_COMPLETED:
                     synchronized (mTargetStatus) {
                         // Cannot seek if duration is C.TIME_UNSET (is this correct?)
-                        if (mExoPlayer.getDuration() == C.TIME_UNSET) {
+                        // The snapshot has it as -1; it is published before prepared is posted.
+                        long durationMs = mSnapshot.get().durationMs;
+                        if (durationMs < 0) {
                             mCurrentStatus.seekPosition = mTargetStatus.seekPosition = -1;
                             return false;
                         }
 
-                        mCurrentStatus.seekPosition = mTargetStatus.seekPosition = Math.max(0, Math.min(mTargetStatus.seekPosition, getDuration()));
+                        mCurrentStatus.seekPosition = mTargetStatus.seekPosition = Math.max(0, Math.min(mTargetStatus.seekPosition, durationMs));
                     }
                     mCurrentStatus.seekActive = true;
-                    mExoPlayer.seekTo(mCurrentStatus.seekPosition);
+                    mQoeMetrics.onSeekStart();
+                    final SeekParameters seekParameters;
+                    if (mScrubbing) {
+                        mLastScrubPositionMs = mCurrentStatus.seekPosition;
+                        seekParameters = SeekParameters.CLOSEST_SYNC;
+                    } else {
+                        seekParameters = toSeekParameters(mSeekMode);
+                    }
+                    final long seekPositionMs = mCurrentStatus.seekPosition;
+                    runOnPlayer(player -> {
+                        player.setSeekParameters(seekParameters);
+                        player.seekTo(seekPositionMs);
+                    });
+                    publishSnapshot();
                     break;
                 // Illegal states. Re-evaluate the logic.
                 case STOPPED:
@@ -537,8 +1476,83 @@ public class ExoPlayerWrapper extends VideoPlayerWrapper implements Player.Liste
         return true;
     }
 
+    /**
+     * Set how seek positions are resolved.
+     *
+     * @param mode the seek mode; EXACT by default.
+     */
+    public void setSeekMode(SeekMode mode) {
+        mSeekMode = null == mode ? SeekMode.EXACT : mode;
+    }
+
+    public SeekMode getSeekMode() {
+        return mSeekMode;
+    }
+
+    /**
+     * Set scrub mode. Call with true when the user starts dragging a seek bar: seeks
+     * then snap to the closest sync frame, so that the picture follows the finger. Call
+     * with false when the user lets go: the last scrub position is then sought once with
+     * the normal seek mode.
+     *
+     * @param scrubbing true when scrubbing starts, false when it ends.
+     */
+    public void setScrubbing(final boolean scrubbing) {
+        if (mScrubbing == scrubbing) {
+            return;
+        }
+        mScrubbing = scrubbing;
+        mMainHandler.post(() -> {
+            if (!scrubbing) {
+                finishScrub();
+            } else {
+                mLastScrubPositionMs = -1;
+            }
+        });
+    }
+
+    private void finishScrub() {
+        long positionMs = mLastScrubPositionMs;
+        mLastScrubPositionMs = -1;
+        if (positionMs < 0 || mSeekMode != SeekMode.EXACT) {
+            // Nothing sought, or the normal mode snaps to sync frames anyway.
+            return;
+        }
+        synchronized (mCurrentStatus) {
+            if (!isInPlaybackState()) {
+                return;
+            }
+            mCurrentStatus.seekActive = true;
+            mCurrentStatus.seekPosition = positionMs;
+            mQoeMetrics.onSeekStart();
+            runOnPlayer(player -> {
+                player.setSeekParameters(SeekParameters.EXACT);
+                player.seekTo(positionMs);
+            });
+            publishSnapshot();
+        }
+    }
+
+    private static SeekParameters toSeekParameters(SeekMode mode) {
+        switch (mode) {
+            case PREVIOUS_SYNC:
+                return SeekParameters.PREVIOUS_SYNC;
+            case NEXT_SYNC:
+                return SeekParameters.NEXT_SYNC;
+            case CLOSEST_SYNC:
+                return SeekParameters.CLOSEST_SYNC;
+            case EXACT:
+            default:
+                return SeekParameters.EXACT;
+        }
+    }
+
     @Override
     protected boolean processSetVolume() {
+        return mTrace.traceStep("ExoPlayerWrapper.processSetVolume", this::doProcessSetVolume);
+    }
+
+    private boolean doProcessSetVolume() {
         synchronized (mCurrentStatus) {
             switch (mCurrentStatus.playerState) {
                 case STARTED:
@@ -548,7 +1562,8 @@ public class ExoPlayerWrapper extends VideoPlayerWrapper implements Player.Liste
                     synchronized (mTargetStatus) {
                         mCurrentStatus.volumeLevel = mTargetStatus.volumeLevel;
                     }
-                    mExoPlayer.setVolume(mCurrentStatus.volumeLevel);
+                    final float volume = mCurrentStatus.volumeLevel;
+                    runOnPlayer(player -> player.setVolume(volume));
                     break;
                 // Illegal states. Re-evaluate the logic.
                 case STOPPED:
@@ -565,6 +1580,10 @@ public class ExoPlayerWrapper extends VideoPlayerWrapper implements Player.Liste
 
     @Override
     protected boolean processStartPlayer() {
+        return mTrace.traceStep("ExoPlayerWrapper.processStartPlayer", this::doProcessStartPlayer);
+    }
+
+    private boolean doProcessStartPlayer() {
         boolean start = false;
         synchronized (mCurrentStatus) {
             switch (mCurrentStatus.playerState) {
@@ -575,16 +1594,27 @@ public class ExoPlayerWrapper extends VideoPlayerWrapper implements Player.Liste
                     if (mCurrentStatus.looping == false && mCurrentStatus.startAllowedInPlaybackCompleted == false) {
                         break;
                     }
-                    // Otherwise, restart the video by calling prepare again
-                    mCurrentStatus.playerState = PlayerState.PREPARING;
-                    mCurrentStatus.preparing = true;
-                    mExoPlayer.setMediaSource(mMediaSource, true);	 // Reset the position
-                    mExoPlayer.prepare();
-                    return true;
+                    // Otherwise, play again. The player stays prepared in its ended state,
+                    // so there is no need to set the sources and prepare again.
+                    final boolean rewind = !mCurrentStatus.startAllowedInPlaybackCompleted;
+                    mCurrentStatus.playerState = PlayerState.STARTED;
+                    syncRepeatMode();
+                    runOnPlayer(player -> {
+                        if (rewind) {
+                            // Looping was enabled after the end; restart the playlist.
+                            player.seekTo(0, 0);
+                        }
+                        player.setPlayWhenReady(true);
+                    });
+                    publishSnapshot();
+                    postVideoStarted();
+                    break;
                 case PREPARED:
                 case PAUSED:
                     mCurrentStatus.playerState = PlayerState.STARTED;
-                    mExoPlayer.setPlayWhenReady(true);
+                    syncRepeatMode();
+                    runOnPlayer(player -> player.setPlayWhenReady(true));
+                    publishSnapshot();
                     postVideoStarted();
                     break;
                 // Illegal states. Re-evaluate the logic.
@@ -602,6 +1632,10 @@ public class ExoPlayerWrapper extends VideoPlayerWrapper implements Player.Liste
 
     @Override
     protected boolean processPausePlayer() {
+        return mTrace.traceStep("ExoPlayerWrapper.processPausePlayer", this::doProcessPausePlayer);
+    }
+
+    private boolean doProcessPausePlayer() {
         synchronized (mCurrentStatus) {
             switch (mCurrentStatus.playerState) {
                 case PLAYBACK_COMPLETED:
@@ -625,6 +1659,11 @@ public class ExoPlayerWrapper extends VideoPlayerWrapper implements Player.Liste
     }
 
     protected boolean processSystemPausePlayer() {
+        return mTrace.traceStep("ExoPlayerWrapper.processSystemPausePlayer",
+                this::doProcessSystemPausePlayer);
+    }
+
+    private boolean doProcessSystemPausePlayer() {
         // If the playback has been paused by the system, pause the player only if it's in STARTED state,
         // i.e. NOT in PLAYBACK_COMPLETED state
         Logger.logD(TAG, "In processPausePlayer()");
@@ -639,7 +1678,8 @@ public class ExoPlayerWrapper extends VideoPlayerWrapper implements Player.Liste
     void doPause() {
         mCurrentStatus.playerState = PlayerState.PAUSED;
         mCurrentStatus.startAllowedInPlaybackCompleted = false;
-        mExoPlayer.setPlayWhenReady(false);
+        runOnPlayer(player -> player.setPlayWhenReady(false));
+        publishSnapshot();
         postVideoPaused();
     }
 
@@ -647,7 +1687,8 @@ public class ExoPlayerWrapper extends VideoPlayerWrapper implements Player.Liste
     protected void doStop() {
         mCurrentStatus.playerState = PlayerState.STOPPED;
         mCurrentStatus.startAllowedInPlaybackCompleted = false;
-        mExoPlayer.stop();
+        runOnPlayer(ExoPlayer::stop);
+        publishSnapshot();
         postVideoStopped();
     }
 
@@ -657,126 +1698,332 @@ public class ExoPlayerWrapper extends VideoPlayerWrapper implements Player.Liste
             mCurrentStatus.playerState = PlayerState.IDLE;
             mCurrentStatus.startAllowedInPlaybackCompleted = false;
             // TODO ExoPlayer does not have reset() method. Is this correct replacement?
-            mExoPlayer.stop();
-            mExoPlayer.seekTo(0);
+            runOnPlayer(player -> {
+                player.stop();
+                player.seekTo(0);
+            });
         } else {
             mCurrentStatus.playerState = PlayerState.END;
             Logger.logW(TAG, "Could not reset ExoPlayer in state "
                     + mCurrentStatus.playerState.name()
                     + ": ExoPlayer object was null. This could be due to failure to track state changes properly.");
         }
+        publishSnapshot();
     }
 
     @Override
     protected void doRelease() {
         postVideoReleased();
 
+        // Remember the bandwidth for the next session on the same type of network.
+        if (mMeasuredBitrateEstimate > 0) {
+            mBandwidthEstimateStore.save(mMeasuredNetworkType, mMeasuredBitrateEstimate);
+        }
+
+        BANDWIDTH_METER.removeEventListener(mBandwidthMeterListener);
+        cancelRecovery();
+        if (mSegmentPrefetcher != null) {
+            mSegmentPrefetcher.clear();
+        }
+        logSessionSummary(mQoeMetrics.onSessionEnd(SystemClock.elapsedRealtime()));
+
+        final boolean retain = canRetainSession();
+        mResumedSession = null;
         mCurrentStatus.playerState = PlayerState.END;
-        if (mExoPlayer != null) {
-            mExoPlayer.release();
-            mExoPlayer = null;
+        // Tasks that are still queued for the player are dropped from now on.
+        final ExoPlayer player = mExoPlayer;
+        mExoPlayer = null;
+        if (player != null && retain) {
+            // Hand the player over to the next wrapper of this session.
+            retainSession(player);
+        } else if (player != null && mLeasedPlayer != null) {
+            // Return the player to the pool for the next wrapper to use.
+            final ExoPlayerPool.PooledPlayer leasedPlayer = mLeasedPlayer;
+            runOn(mPlaybackHandler, () -> {
+                player.removeListener(this);
+                player.removeAnalyticsListener(mAnalyticsListener);
+                mPlayerPool.recycle(leasedPlayer);
+            });
+            mLeasedPlayer = null;
+        } else if (player != null) {
+            final AdsLoader adsLoader = mAdsLoader;
+            runOn(mPlaybackHandler, () -> {
+                if (null != adsLoader) {
+                    adsLoader.setPlayer(null);
+                }
+                player.release();
+            });
         } else {
             // This could be due to failure to track state changes properly.
             Logger.logW(TAG, "Could not release ExoPlayer in state " + mCurrentStatus.playerState.name() + ": ExoPlayer object was null. ");
         }
 
+        // Released after the player, which has let go of it by then.
+        runOn(mPlaybackHandler, () -> {
+            if (mPlaceholderSurface != null) {
+                mPlaceholderSurface.release();
+                mPlaceholderSurface = null;
+            }
+            mSurfaceDetached = false;
+        });
+
+        if (mPlaybackThread != null) {
+            // The release above is handled before the thread quits.
+            mPlaybackThread.quitSafely();
+            mPlaybackThread = null;
+        }
+
         mMediaSource = null;
+        mSnapshot.set(PlaybackSnapshot.RELEASED);
 
-        mMainHandler.removeCallbacks(mPositionUpdater);
+        mPositionUpdater.stop();
         mMainHandler.removeCallbacksAndMessages(mPositionUpdaterToken);
-        mMainHandler.removeCallbacks(mBufferUpdater);
+        mMainHandler.removeCallbacks(mViewportUpdateTask);
+        mMainHandler.removeCallbacks(mBufferingUpdateTask);
+        mBufferingUpdatePending.set(false);
+        mReportedBufferedPercentage = 0;
 
     }
 
     /**
-     * Handler task executed in the main thread. The sole function is to periodically
-     * notify any listeners about the updates to the current position of the video.
+     * Set whether position updates are reported to listeners. Disable them when the position
+     * is not visible (e.g. video controls are hidden) and no listener needs them, to avoid
+     * waking up the main thread on every display frame.
+     *
+     * @param enabled true to report position updates while the video is playing.
      */
-    private class VideoPositionUpdateTask implements Runnable {
-        @Override
-        public void run() {
-            long fromPosition;
-            long toPosition;
+    public void setPositionUpdatesEnabled(boolean enabled) {
+        mPositionUpdatesEnabled = enabled;
+        if (enabled && isPlaying()) {
+            mPositionUpdater.start();
+        } else if (!enabled) {
+            mPositionUpdater.stop();
+        }
+    }
 
-            synchronized (mCurrentStatus) {
-                fromPosition = mCurrentStatus.position;
-                toPosition = getCurrentPosition();
-
-                // ExoPlayer may report bigger current position than the duration when playback has
-                // been completed. Clamp the position to the duration.
-                long duration = getDuration();
-                if (duration != C.TIME_UNSET && toPosition > duration) {
-                    toPosition = duration;
-                }
-                mCurrentStatus.position = toPosition;
-            }
+    // Report the current position to listeners, if it has changed.
+    private void reportPosition() {
+        long fromPosition;
+        long toPosition;
 
-            if (toPosition != -1 && toPosition != fromPosition) {
-                postVideoPositionChanged(toPosition);
-            }
+        // Re-sample the player so that extrapolated positions do not drift. On the playback
+        // thread this is immediate, elsewhere the latest snapshot is extrapolated.
+        publishSnapshot();
+        toPosition = mSnapshot.get().getPositionAt(SystemClock.elapsedRealtime());
 
-            // Repost the position update task.
-            // TODO: No need to do this while paused
-            synchronized (mCurrentStatus) {
-                if (mExoPlayer != null) {
-                    mMainHandler.postDelayed(mPositionUpdater, mPositionUpdateTimeoutMs);
-                }
-            }
+        synchronized (mCurrentStatus) {
+            fromPosition = mCurrentStatus.position;
+            mCurrentStatus.position = toPosition;
+            // Looping may be toggled during playback.
+            syncRepeatMode();
+        }
+
+        if (toPosition != -1 && toPosition != fromPosition) {
+            final long positionMs = toPosition;
+            runOnMainThread(() -> postVideoPositionChanged(positionMs));
         }
     }
 
     /**
-     * Handler task executed in the main thread. The sole function is to periodically
-     * notify any listeners about the updates to the current buffer status of the video.
+     * Apply the looping flag as the player's repeat mode. With a repeat mode ExoPlayer
+     * buffers and decodes across the loop point like across playlist items, so a loop costs
+     * neither a rebuffer nor a black frame. Call with the current status locked.
      */
-    private class VideoBufferUpdateTask implements Runnable {
-        @Override
-        public void run() {
-            int fromPercent;
-            int toPercent;
+    private void syncRepeatMode() {
+        final boolean looping = mCurrentStatus.looping;
+        if (looping == mRepeatModeLooping) {
+            return;
+        }
+        mRepeatModeLooping = looping;
+        // Loop the whole playlist; with a single item this repeats the video.
+        runOnPlayer(player -> player.setRepeatMode(looping
+                ? Player.REPEAT_MODE_ALL : Player.REPEAT_MODE_OFF));
+    }
 
-            synchronized (mCurrentStatus) {
-                if (mExoPlayer == null) {
-                    return;
-                }
-                fromPercent = mCurrentStatus.bufferingPercentage;
-                toPercent = mExoPlayer.getBufferedPercentage();
-                mCurrentStatus.bufferingPercentage = toPercent;
-
-                // Note from API docs:
-                // "An estimate of the percentage into the media up to which data is buffered.
-                //  0 if the duration of the media is not known or if no estimate is available."
-                // For example in case of HLS stream, seems to return 0.
-            }
+    /**
+     * Take over the player retained for this wrapper's session.
+     *
+     * @return the session, or null if there is none that this wrapper can use.
+     */
+    @Nullable
+    private PlaybackSessionStore.Session claimRetainedSession() {
+        final PlaybackSessionStore store = mSessionStore;
+        final String key = mSessionKey;
+        if (null == store || null == key || mAdsLoader != null) {
+            return null;
+        }
+        PlaybackSessionStore.Session session = store.claim(key);
+        if (session != null && (session.bufferProfile != mBufferProfile
+                || (session.leasedPlayer != null && session.pool != mPlayerPool))) {
+            Logger.logD(TAG, "Retained session " + key + " does not match, releasing it");
+            session.release();
+            return null;
+        }
+        return session;
+    }
+
+    /** Return true if the player can be retained for the next wrapper of this session. */
+    private boolean canRetainSession() {
+        if (!mRetainOnRelease || null == mSessionStore || null == mSessionKey
+                || mAdsLoader != null || !mPlaylist.isEmpty() || null == mMediaSource
+                || null == mCurrentStatus.uri || mRecovering) {
+            return false;
+        }
+        switch (mCurrentStatus.playerState) {
+            case PREPARED:
+            case STARTED:
+            case PAUSED:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Pause the player and give it, with its thread, source and placeholder surface, to the
+     * session store. Call with the player already detached from this wrapper.
+     */
+    private void retainSession(final ExoPlayer player) {
+        final PlaybackSessionStore store = mSessionStore;
+        final String key = mSessionKey;
+        final String uri = mCurrentStatus.uri.toString();
+        final MediaSource mediaSource = mMediaSource;
+        final DefaultTrackSelector trackSelector = mTrackSelector;
+        final BufferProfile bufferProfile = mBufferProfile;
+        final HandlerThread playbackThread = mPlaybackThread;
+        final ExoPlayerPool.PooledPlayer leasedPlayer = mLeasedPlayer;
+        // Both go with the player; the thread must not quit.
+        mPlaybackThread = null;
+        mLeasedPlayer = null;
+        runOn(mPlaybackHandler, () -> {
+            player.removeListener(this);
+            player.removeAnalyticsListener(mAnalyticsListener);
+            mediaSource.removeEventListener(mProgressiveMediaSourceEventListener);
+            mediaSource.removeEventListener(mAdaptiveMediaSourceEventListener);
+            player.setPlayWhenReady(false);
+            // Keep the decoder configured until the next view surface is attached.
+            player.setVideoSurface(getPlaceholderSurface());
+            final PlaceholderSurface placeholderSurface = mPlaceholderSurface;
+            mPlaceholderSurface = null;
+            store.retain(key, new PlaybackSessionStore.Session(uri, player, trackSelector,
+                    mediaSource, bufferProfile, playbackThread, mPlayerPool, leasedPlayer,
+                    placeholderSurface, estimateBufferedBytes(player)));
+        });
+    }
+
+    /** Estimate the memory that the player's forward buffer takes, from the bitrates. */
+    private static long estimateBufferedBytes(ExoPlayer player) {
+        long bitrate = 0;
+        Format videoFormat = player.getVideoFormat();
+        if (videoFormat != null && videoFormat.bitrate != Format.NO_VALUE) {
+            bitrate += videoFormat.bitrate;
+        }
+        Format audioFormat = player.getAudioFormat();
+        if (audioFormat != null && audioFormat.bitrate != Format.NO_VALUE) {
+            bitrate += audioFormat.bitrate;
+        }
+        return player.getTotalBufferedDuration() * bitrate / 8000;
+    }
+
+    // Sample the buffered percentage and report it to listeners, if it has changed. Call from
+    // the playback thread. Bursts of segment loads are coalesced into one main thread report.
+    private void reportBufferedPercentage() {
+        int fromPercent;
+        int toPercent;
 
-            if (toPercent != 0 && toPercent != fromPercent) {
-                Logger.logD(TAG, "Video buffer changed: " + fromPercent + " -> " + toPercent);
-                postVideoBufferingUpdate(fromPercent, toPercent);
+        ExoPlayer player = mExoPlayer;
+        if (player == null) {
+            return;
+        }
+        toPercent = player.getBufferedPercentage();
+        synchronized (mCurrentStatus) {
+            fromPercent = mCurrentStatus.bufferingPercentage;
+            mCurrentStatus.bufferingPercentage = toPercent;
+        }
+        if (toPercent != fromPercent && mBufferingUpdatePending.compareAndSet(false, true)) {
+            mMainHandler.post(mBufferingUpdateTask);
+        }
+    }
+
+    // Report the latest buffered percentage to listeners. Runs on the main thread.
+    private void notifyBufferedPercentage() {
+        mBufferingUpdatePending.set(false);
+        int fromPercent = mReportedBufferedPercentage;
+        int toPercent;
+        synchronized (mCurrentStatus) {
+            toPercent = mCurrentStatus.bufferingPercentage;
+        }
+
+        // Note from API docs:
+        // "An estimate of the percentage into the media up to which data is buffered.
+        //  0 if the duration of the media is not known or if no estimate is available."
+        // For example in case of HLS stream, seems to return 0.
+        if (toPercent != 0 && toPercent != fromPercent) {
+            mTrace.record(PlaybackTrace.BUFFER_PERCENT, fromPercent, toPercent);
+            mReportedBufferedPercentage = toPercent;
+            postVideoBufferingUpdate(fromPercent, toPercent);
+        }
+    }
+
+    /**
+     * Frame callback executed in the main thread. The sole function is to notify any
+     * listeners about the updates to the current position of the video, aligned to display
+     * frames. It runs only while the video is playing and position updates are enabled.
+     */
+    private class VideoPositionUpdateTask implements Choreographer.FrameCallback {
+
+        /** Flag for indicating if the task is currently scheduled. */
+        private boolean mRunning = false;
+
+        /** Frame time of the latest position report, in ns. */
+        private long mLastReportNs = 0;
+
+        void start() {
+            if (Looper.myLooper() != mMainHandler.getLooper()) {
+                mMainHandler.post(this::start);
+                return;
+            }
+            if (!mRunning && mPositionUpdatesEnabled) {
+                mRunning = true;
+                mLastReportNs = 0;
+                Choreographer.getInstance().postFrameCallback(this);
             }
+        }
 
-            synchronized (mCurrentStatus) {
-                if (mExoPlayer != null) {
-                    mMainHandler.postDelayed(mBufferUpdater, 200);
-                }
+        void stop() {
+            if (Looper.myLooper() != mMainHandler.getLooper()) {
+                mMainHandler.post(this::stop);
+                return;
+            }
+            if (mRunning) {
+                mRunning = false;
+                Choreographer.getInstance().removeFrameCallback(this);
             }
         }
-    }
 
-    private static String getExoPlayerStateString(int state) {
-        switch (state) {
-            case ExoPlayer.STATE_BUFFERING: return "Buffering";
-            case ExoPlayer.STATE_ENDED: return "Ended";
-            case ExoPlayer.STATE_IDLE: return "Idle";
-            case ExoPlayer.STATE_READY: return "Ready";
-            default: return "Unknown(" + Integer.toString(state) + ")";
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            if (!mRunning) {
+                return;
+            }
+            if (frameTimeNanos - mLastReportNs >= mPositionUpdateTimeoutMs * 1000000L) {
+                mLastReportNs = frameTimeNanos;
+                reportPosition();
+            }
+            Choreographer.getInstance().postFrameCallback(this);
         }
     }
 
+
     // From Player.Listener:
     // Called when the value returned from getPlaybackState() changes.
     @Override
     public void onPlaybackStateChanged(@Player.State int playbackState) {
-        Logger.logV(TAG, "onPlayerStateChanged(): state = " + getExoPlayerStateString(playbackState));
+        mTrace.record(PlaybackTrace.PLAYER_STATE, playbackState);
+        ExoPlayer player = mExoPlayer;
+        if (null == player) {
+            return; // Released; the player's release is still pending on the playback thread
+        }
 
         switch (playbackState) {
             case ExoPlayer.STATE_BUFFERING:
@@ -784,8 +2031,8 @@ public class ExoPlayerWrapper extends VideoPlayerWrapper implements Player.Liste
                 synchronized (mCurrentStatus) {
                     mCurrentStatus.buffering = true;
                 }
-                mMainHandler.postDelayed(mBufferUpdater, 500);
-                postVideoBufferingStart();
+                reportBufferedPercentage();
+                runOnMainThread(this::postVideoBufferingStart);
                 break;
             case ExoPlayer.STATE_ENDED:
                 // The player has finished playing the media.
@@ -793,8 +2040,11 @@ public class ExoPlayerWrapper extends VideoPlayerWrapper implements Player.Liste
                     mCurrentStatus.playerState = PlayerState.PLAYBACK_COMPLETED;
                     mCurrentStatus.startAllowedInPlaybackCompleted = false;
                 }
-                postVideoCompleted();
-                postUpdateState();
+                publishSnapshot();
+                runOnMainThread(() -> {
+                    postVideoCompleted();
+                    postUpdateState();
+                });
                 break;
             case ExoPlayer.STATE_IDLE:
                 // The player is neither prepared or being prepared.
@@ -806,18 +2056,28 @@ public class ExoPlayerWrapper extends VideoPlayerWrapper implements Player.Liste
                     if (mCurrentStatus.preparing) {
                         mCurrentStatus.preparing = false;
                         mCurrentStatus.playerState = PlayerState.PREPARED;
-                        long durationMs = mExoPlayer.getDuration();
-                        if (durationMs == C.TIME_UNSET) {
-                            durationMs = -1;
+                        long duration = player.getDuration();
+                        final long durationMs = duration == C.TIME_UNSET ? -1 : duration;
+                        // Seeks that follow use the duration from the snapshot.
+                        publishSnapshot();
+                        runOnMainThread(() -> {
+                            postVideoDurationUpdate(durationMs);
+                            postVideoPrepared();
+                            postUpdateState();
+                        });
+                    }
+                    if (mRecovering) {
+                        mRecovering = false;
+                        ErrorRecoveryPolicy policy = mErrorRecoveryPolicy;
+                        if (policy != null) {
+                            long latencyMs = policy.onRecovered(SystemClock.elapsedRealtime());
+                            mTrace.record(PlaybackTrace.RECOVERY_DONE, policy.getRecoveredCount(), latencyMs);
+                            Logger.logI(TAG, "Recovered from error in " + latencyMs + " ms");
                         }
-                        postVideoDurationUpdate(durationMs);
-                        postVideoPrepared();
-                        postUpdateState();
                     }
                     if (mCurrentStatus.buffering) {
                         mCurrentStatus.buffering = false;
-                        mMainHandler.removeCallbacks(mBufferUpdater);
-                        postVideoBufferingEnd();
+                        runOnMainThread(this::postVideoBufferingEnd);
                     }
                     if (mCurrentStatus.seekActive) {
                         // Mark the seek position in the target status back to -1,
@@ -832,10 +2092,13 @@ public class ExoPlayerWrapper extends VideoPlayerWrapper implements Player.Liste
                         mCurrentStatus.seekPosition = -1;
                         // Allow proceeding from the PLAYBACK_COMPLETED state
                         mCurrentStatus.startAllowedInPlaybackCompleted = true;
-                        postVideoSeekCompleted(mExoPlayer.getCurrentPosition());
-                        postUpdateState();
+                        final long positionMs = player.getCurrentPosition();
+                        runOnMainThread(() -> postVideoSeekCompleted(positionMs));
+                        reportPosition();
+                        runOnMainThread(this::postUpdateState);
                     }
                 }
+                publishSnapshot();
                 break;
             }
             default:
@@ -846,7 +2109,22 @@ public class ExoPlayerWrapper extends VideoPlayerWrapper implements Player.Liste
 
     @Override
     public void onPlayWhenReadyChanged(boolean playWhenReady, @Player.PlayWhenReadyChangeReason int reason) {
-        Logger.logV(TAG, "onPlayWhenReadyChanged(): playWhenReady = " + playWhenReady + ", reason = " + reason);
+        mTrace.record(PlaybackTrace.PLAY_WHEN_READY, playWhenReady ? 1 : 0, reason);
+        publishSnapshot();
+    }
+
+    // From Player.Listener:
+    // Called when the value returned from isPlaying() changes.
+    @Override
+    public void onIsPlayingChanged(boolean isPlaying) {
+        // Position extrapolation starts or stops here, so take a fresh sample.
+        publishSnapshot();
+        if (isPlaying) {
+            mPositionUpdater.start();
+        } else {
+            mPositionUpdater.stop();
+            reportPosition();
+        }
     }
 
     // From Player.Listener:
@@ -854,6 +2132,53 @@ public class ExoPlayerWrapper extends VideoPlayerWrapper implements Player.Liste
     @Override
     public void onTimelineChanged(Timeline timeline, @Player.TimelineChangeReason int reason) {
         Logger.logV(TAG, "onTimelineChanged()");
+        maybePostPlaylistDuration();
+    }
+
+    // From Player.Listener:
+    // Called when playback transitions to another media item in the playlist.
+    @Override
+    public void onMediaItemTransition(@Nullable MediaItem mediaItem, @Player.MediaItemTransitionReason int reason) {
+        if (reason == Player.MEDIA_ITEM_TRANSITION_REASON_PLAYLIST_CHANGED) {
+            return; // The playlist was (re)set, not a transition between items
+        }
+        ExoPlayer player = mExoPlayer;
+        if (null == player) {
+            return;
+        }
+        final int index = player.getCurrentMediaItemIndex();
+        if (reason == Player.MEDIA_ITEM_TRANSITION_REASON_REPEAT && index == mPlaylistIndex) {
+            // Seamless loop back to the start of the same video.
+            mTrace.record(PlaybackTrace.LOOP, index);
+            reportPosition();
+            return;
+        }
+        final Uri uri = (mediaItem != null && mediaItem.localConfiguration != null)
+                ? mediaItem.localConfiguration.uri : null;
+        Logger.logD(TAG, "Playlist item changed: index = " + index + ", reason = " + reason);
+        mPlaylistIndex = index;
+
+        // Report the new item as if its source had been set to the texture.
+        runOnMainThread(this::postVideoSourceUriSet);
+        mPlaylistDurationPending = true;
+        maybePostPlaylistDuration();
+        publishSnapshot();
+
+        runOnMainThread(() -> {
+            if (mPlaylistListener != null) {
+                mPlaylistListener.onPlaylistItemChanged(index, uri, reason);
+            }
+        });
+    }
+
+    private void maybePostPlaylistDuration() {
+        ExoPlayer player = mExoPlayer;
+        if (mPlaylistDurationPending && player != null
+                && player.getDuration() != C.TIME_UNSET) {
+            mPlaylistDurationPending = false;
+            final long durationMs = player.getDuration();
+            runOnMainThread(() -> postVideoDurationUpdate(durationMs));
+        }
     }
 
     // From Player.Listener:
@@ -938,7 +2263,7 @@ public class ExoPlayerWrapper extends VideoPlayerWrapper implements Player.Liste
     // Called when the player starts or stops loading the source.
     @Override
     public void onIsLoadingChanged(boolean isLoading) {
-        Logger.logV(TAG, "onLoadingChanged(): " + isLoading);
+        mTrace.record(PlaybackTrace.LOADING, isLoading ? 1 : 0);
     }
 
     // From Player.Listener:
@@ -946,6 +2271,7 @@ public class ExoPlayerWrapper extends VideoPlayerWrapper implements Player.Liste
     @Override
     public void onPlaybackParametersChanged(PlaybackParameters playbackParameters) {
         Logger.logV(TAG, "onPlaybackParametersChanged()");
+        publishSnapshot();
     }
 
     // From Player.Listener:
@@ -953,20 +2279,64 @@ public class ExoPlayerWrapper extends VideoPlayerWrapper implements Player.Liste
     public void onPlayerError(PlaybackException e) {
         Logger.logE(TAG, "onPlayerError(): " + e.toString(), e.getCause());
 
-        // FIXME: ExoPlayer can actually be used even after getting this call.
-        // Internally the player is in ExoPlayer.STATE_IDLE immediately after this method is called
-        // Also, the player must be released with ExoPlayer.release() afterwards.
+        // Internally the player is in ExoPlayer.STATE_IDLE immediately after this method is called,
+        // but it can be used again: re-preparing retries from the same position, keeping the
+        // playlist and renderers. Do that for transient errors, after a backoff delay.
+        ErrorRecoveryPolicy policy = mErrorRecoveryPolicy;
+        long retryDelayMs = null == policy ? -1 : policy.onError(e, SystemClock.elapsedRealtime());
+        if (retryDelayMs >= 0) {
+            Logger.logW(TAG, "Retrying in " + retryDelayMs + " ms, attempt " + policy.getAttempt());
+            mTrace.record(PlaybackTrace.RECOVERY_RETRY, policy.getAttempt(), retryDelayMs);
+            mRecovering = true;
+            mRecoverToLiveEdge = e.errorCode == PlaybackException.ERROR_CODE_BEHIND_LIVE_WINDOW;
+            synchronized (mCurrentStatus) {
+                if (!mCurrentStatus.buffering) {
+                    // Let the UI show a buffering indicator while retrying.
+                    mCurrentStatus.buffering = true;
+                    runOnMainThread(this::postVideoBufferingStart);
+                }
+            }
+            mPlaybackHandler.postDelayed(mRecoveryTask, retryDelayMs);
+            return;
+        }
+        mRecovering = false;
 
+        // The player must be released with ExoPlayer.release() afterwards.
         synchronized (mCurrentStatus) {
             mCurrentStatus.playerState = PlayerState.ERROR;
             synchronized (mTargetStatus) {
                 mTargetStatus.playerState = PlayerState.END;
             }
         }
-        postException(e);
-        // FIXME this API does not work for ExoPlayer errors. We have an Exception, not error codes!
-        postVideoError(0, 0);
-        postUpdateState();
+        publishSnapshot();
+        runOnMainThread(() -> {
+            postException(e);
+            // FIXME this API does not work for ExoPlayer errors. We have an Exception, not error codes!
+            postVideoError(0, 0);
+            postUpdateState();
+        });
+    }
+
+    // Re-prepare the failed player in place. Runs on the playback thread.
+    private void recoverFromError() {
+        ExoPlayer player = mExoPlayer;
+        if (null == player || !mRecovering) {
+            return;
+        }
+        Logger.logD(TAG, "Retrying playback");
+        if (mRecoverToLiveEdge) {
+            player.seekToDefaultPosition();
+        }
+        player.prepare();
+    }
+
+    private void cancelRecovery() {
+        mRecovering = false;
+        mPlaybackHandler.removeCallbacks(mRecoveryTask);
+        ErrorRecoveryPolicy policy = mErrorRecoveryPolicy;
+        if (policy != null) {
+            policy.reset();
+        }
     }
 
     // From Player.Listener:
@@ -974,10 +2344,43 @@ public class ExoPlayerWrapper extends VideoPlayerWrapper implements Player.Liste
     @Override
     public void onPositionDiscontinuity(Player.PositionInfo oldPosition, Player.PositionInfo newPosition, int reason) {
         Logger.logV(TAG, "onPositionDiscontinuity()");
+        publishSnapshot();
+    }
+
+    private void logSessionSummary(@Nullable QoeMetrics.Snapshot summary) {
+        if (summary != null) {
+            Logger.logI(TAG, "Session summary: " + summary);
+        }
+        if (mRequestHedgingEnabled) {
+            Logger.logI(TAG, "Hedged requests: " + mHedgeStats.getHedgesFired() + " fired, "
+                    + mHedgeStats.getHedgesWon() + " won, of "
+                    + mHedgeStats.getRequestCount() + " requests");
+        }
+        if (mOriginSelector != null) {
+            Logger.logI(TAG, "Origins: " + mOriginSelector.getStats());
+        }
+        ErrorRecoveryPolicy policy = mErrorRecoveryPolicy;
+        if (policy != null && policy.getRetryCount() > 0) {
+            Logger.logI(TAG, "Error recovery: " + policy);
+        }
     }
 
     private AnalyticsListener mAnalyticsListener = new AnalyticsListener() {
 
+        @Override
+        public void onPlaybackStateChanged(EventTime eventTime, @Player.State int state) {
+            if (state == Player.STATE_BUFFERING) {
+                mQoeMetrics.onBuffering(eventTime.realtimeMs);
+            } else if (state == Player.STATE_READY) {
+                mQoeMetrics.onReady(eventTime.realtimeMs);
+            }
+        }
+
+        @Override
+        public void onIsPlayingChanged(EventTime eventTime, boolean isPlaying) {
+            mQoeMetrics.onIsPlayingChanged(isPlaying, eventTime.realtimeMs);
+        }
+
         @Override
         public void onVideoEnabled(EventTime eventTime, DecoderCounters decoderCounters) {
             Logger.logV(TAG, "AnalyticsListener.onVideoEnabled()");
@@ -991,16 +2394,19 @@ public class ExoPlayerWrapper extends VideoPlayerWrapper implements Player.Liste
         @Override
         public void onVideoDecoderInitialized(EventTime eventTime, String decoderName, long initializedTimestampMs, long initializationDurationMs) {
             Logger.logV(TAG, "AnalyticsListener.onVideoDecoderInitialized(): name = " + decoderName + ", init timestamp = " + initializedTimestampMs + " ms, duration = " + initializationDurationMs + " ms");
+            mQoeMetrics.onVideoDecoderInitialized(initializationDurationMs);
         }
 
         @Override
         public void onVideoInputFormatChanged(EventTime eventTime, Format format, @Nullable DecoderReuseEvaluation decoderReuseEvaluation) {
             Logger.logI(TAG, "AnalyticsListener.onVideoInputFormatChanged(): format = " + format);
+            mQoeMetrics.onVideoFormatChanged(format.bitrate, format.width, format.height, eventTime.realtimeMs);
         }
 
         @Override
         public void onDroppedVideoFrames(EventTime eventTime, int count, long elapsedMs) {
-            Logger.logW(TAG, "AnalyticsListener.onDroppedFrames(): count = " + count + ", elapsedMs = " + elapsedMs);
+            mTrace.record(PlaybackTrace.DROPPED_FRAMES, count, elapsedMs);
+            mQoeMetrics.onDroppedFrames(count);
         }
 
         @Override
@@ -1009,13 +2415,17 @@ public class ExoPlayerWrapper extends VideoPlayerWrapper implements Player.Liste
                     + videoSize.width + " x " + videoSize.height + ", unapplied rotation = " + videoSize.unappliedRotationDegrees + ", pixelWidthHeightRatio= " + videoSize.pixelWidthHeightRatio);
 
             // TODO: We are not using unappliedRotationDegrees or pixelWidthHeightRatio. Is the former ever other than 0 or latter other than 1.0?
-            postVideoSizeChanged(videoSize.width, videoSize.height);
+            runOnMainThread(() -> postVideoSizeChanged(videoSize.width, videoSize.height));
         }
 
         @Override
         public void onRenderedFirstFrame(EventTime eventTime, Object output, long renderTimeMs) {
             Logger.logV(TAG, "AnalyticsListener.onRenderedFirstFrame()");
-            postVideoRenderingStarted();
+            if (output == mPlaceholderSurface) {
+                return; // Not visible; the view's surface gets its own first frame.
+            }
+            mQoeMetrics.onFirstFrame(eventTime.realtimeMs);
+            runOnMainThread(ExoPlayerWrapper.this::postVideoRenderingStarted);
         }
 
         @Override
@@ -1036,6 +2446,7 @@ public class ExoPlayerWrapper extends VideoPlayerWrapper implements Player.Liste
         @Override
         public void onAudioDecoderInitialized(EventTime eventTime, String decoderName, long initializedTimestampMs, long initializationDurationMs) {
             Logger.logV(TAG, "AnalyticsListener.onAudioDecoderInitialized(): name = " + decoderName + ", init timestamp = " + initializedTimestampMs + " ms, duration = " + initializationDurationMs + " ms");
+            mQoeMetrics.onAudioDecoderInitialized(initializationDurationMs);
         }
 
         @Override
@@ -1046,27 +2457,101 @@ public class ExoPlayerWrapper extends VideoPlayerWrapper implements Player.Liste
         @Override
         public void onAudioUnderrun(EventTime eventTime, int bufferSize, long bufferSizeMs, long elapsedSinceLastFeedMs) {
             Logger.logW(TAG, "AnalyticsListener.onAudioUnderrun(): bufferSize = " + bufferSize + ", bufferSizeMs = " + bufferSizeMs + ", elapsedSinceLastFeedMs = " + elapsedSinceLastFeedMs);
+            mQoeMetrics.onAudioUnderrun();
+        }
+    };
+
+    private final BandwidthMeter.EventListener mBandwidthMeterListener =
+            new BandwidthMeter.EventListener() {
+        @Override
+        public void onBandwidthSample(int elapsedMs, long bytesTransferred, long bitrateEstimate) {
+            mMeasuredBitrateEstimate = bitrateEstimate;
+            mMeasuredNetworkType = mBandwidthEstimateStore.getCurrentNetworkType();
+        }
+    };
+
+    private final MediaSourceEventListener mProgressiveMediaSourceEventListener = new MediaSourceEventListener() {
+        @Override
+        public void onLoadError(int windowIndex, @Nullable MediaSource.MediaPeriodId mediaPeriodId, LoadEventInfo loadEventInfo,
+                                MediaLoadData mediaLoadData, IOException error, boolean wasCanceled)
+        {
+            // Load errors are retried by the loader; a fatal one reaches onPlayerError().
+            mTrace.record(PlaybackTrace.LOAD_ERROR, mediaLoadData.dataType, wasCanceled ? 1 : 0);
+            Logger.logE(TAG, "MediaSourceEventListener.onLoadError(): " + error.toString());
+        }
+
+        @Override
+        public void onLoadCompleted(int windowIndex, @Nullable MediaSource.MediaPeriodId mediaPeriodId, LoadEventInfo loadEventInfo, MediaLoadData mediaLoadData) {
+            mTrace.record(PlaybackTrace.LOAD_COMPLETED, loadEventInfo.bytesLoaded, loadEventInfo.loadDurationMs);
+            reportBufferedPercentage();
         }
     };
 
+    private void maybePrefetchHlsSegments(DataSpec dataSpec, @Nullable Format trackFormat) {
+        ExoPlayer player = mExoPlayer;
+        if (null == mSegmentPrefetcher || null == player
+                || !(player.getCurrentManifest() instanceof HlsManifest)) {
+            return;
+        }
+        HlsManifest manifest = (HlsManifest) player.getCurrentManifest();
+        // The manifest has the playlist of the variant that was playing when it was last
+        // refreshed; after a variant switch the segment may belong to another one.
+        mSegmentPrefetcher.onPlaylistUpdated(manifest.mediaPlaylist);
+        Uri variantUri = getVariantUri(manifest, trackFormat);
+        HlsMediaPlaylist playlist = null == variantUri
+                ? manifest.mediaPlaylist : mSegmentPrefetcher.getPlaylist(variantUri);
+        if (null == playlist) {
+            return;
+        }
+        if (playlist.partTargetDurationUs != C.TIME_UNSET) {
+            // Low-latency HLS: the player loads partial segments as they are published, and
+            // staging whole segments ahead would load the same media twice.
+            return;
+        }
+        long maxAheadUs = (Math.max(0, player.getCurrentPosition())
+                + mBufferProfile.getMaxBufferMs()) * 1000;
+        mSegmentPrefetcher.onSegmentLoadStarted(playlist, dataSpec,
+                null == trackFormat ? Format.NO_VALUE : trackFormat.bitrate, maxAheadUs);
+    }
+
+    /** Return the URI of the media playlist of the variant with the format, or null. */
+    @Nullable
+    private static Uri getVariantUri(HlsManifest manifest, @Nullable Format trackFormat) {
+        if (null == trackFormat) {
+            return null;
+        }
+        for (HlsMultivariantPlaylist.Variant variant : manifest.multivariantPlaylist.variants) {
+            if (trackFormat.equals(variant.format)) {
+                return variant.url;
+            }
+        }
+        return null;
+    }
+
     private final MediaSourceEventListener mAdaptiveMediaSourceEventListener = new MediaSourceEventListener () {
         @Override
         public void onLoadStarted(int windowIndex, @Nullable MediaSource.MediaPeriodId mediaPeriodId, LoadEventInfo loadEventInfo, MediaLoadData mediaLoadData) {
-            Logger.logV(TAG, "MediaSourceEventListener.onLoadStarted()");
+            mTrace.record(PlaybackTrace.LOAD_STARTED, mediaLoadData.dataType,
+                    null == mediaLoadData.trackFormat ? Format.NO_VALUE : mediaLoadData.trackFormat.bitrate);
+            if (mediaLoadData.dataType == C.DATA_TYPE_MEDIA) {
+                maybePrefetchHlsSegments(loadEventInfo.dataSpec, mediaLoadData.trackFormat);
+            }
         }
 
         @Override
         public void onLoadCompleted(int windowIndex, @Nullable MediaSource.MediaPeriodId mediaPeriodId, LoadEventInfo loadEventInfo, MediaLoadData mediaLoadData) {
-            Logger.logV(TAG, "MediaSourceEventListener.onLoadCompleted()");
+            mTrace.record(PlaybackTrace.LOAD_COMPLETED, loadEventInfo.bytesLoaded, loadEventInfo.loadDurationMs);
+            reportBufferedPercentage();
         }
 
         @Override
         public void onLoadCanceled(int windowIndex, @Nullable MediaSource.MediaPeriodId mediaPeriodId, LoadEventInfo loadEventInfo, MediaLoadData mediaLoadData) {
-            Logger.logV(TAG, "MediaSourceEventListener.onLoadCanceled()");
+            mTrace.record(PlaybackTrace.LOAD_CANCELED, mediaLoadData.dataType);
         }
 
         @Override
         public void onLoadError(int windowIndex, @Nullable MediaSource.MediaPeriodId mediaPeriodId, LoadEventInfo loadEventInfo, MediaLoadData mediaLoadData, IOException error, boolean wasCanceled) {
+            mTrace.record(PlaybackTrace.LOAD_ERROR, mediaLoadData.dataType, wasCanceled ? 1 : 0);
             Logger.logE(TAG, "MediaSourceEventListener.onLoadError()");
         }
 
@@ -1076,7 +2561,9 @@ public class ExoPlayerWrapper extends VideoPlayerWrapper implements Player.Liste
 
         @Override
         public void onDownstreamFormatChanged(int windowIndex, @Nullable MediaSource.MediaPeriodId mediaPeriodId, MediaLoadData mediaLoadData) {
-            Logger.logV(TAG, "MediaSourceEventListener.onDownstreamFormatChanged()");
+            mTrace.record(PlaybackTrace.FORMAT_CHANGED,
+                    null == mediaLoadData.trackFormat ? Format.NO_VALUE : mediaLoadData.trackFormat.bitrate,
+                    null == mediaLoadData.trackFormat ? Format.NO_VALUE : mediaLoadData.trackFormat.height);
         }
     };
 }
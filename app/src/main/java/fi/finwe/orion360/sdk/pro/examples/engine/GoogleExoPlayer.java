@@ -89,6 +89,9 @@ public class GoogleExoPlayer extends OrionActivity {
     /** The widget that will handle our touch gestures. */
     protected TouchControllerWidget mTouchController;
 
+    /** Maximum size of the on-disk media cache. */
+    private static final long MEDIA_CACHE_SIZE_BYTES = 512L * 1024 * 1024;
+
 
 	@Override
 	public void onCreate(Bundle savedInstanceState) {
@@ -108,7 +111,23 @@ public class GoogleExoPlayer extends OrionActivity {
         // NOTE: Currently, the included ExoPlayerWrapper has a configuration ONLY for HLS streams.
         // NOTE: HLS streams that contain 4096x2048 resolution do not play properly on some old
         //       Android devices. Use 3840x1920 as the maximum resolution instead.
-        mVideoPlayer = new ExoPlayerWrapper(this);
+        ExoPlayerWrapper exoPlayerWrapper = new ExoPlayerWrapper(this);
+
+        // Cache streamed media on disk, so that replaying the video or seeking back does not
+        // download the same content again. The cache is shared by all players in the app.
+        exoPlayerWrapper.setMediaCache(MediaCache.getInstance(this,
+                MediaCache.Location.PRIVATE_EXTERNAL, MEDIA_CACHE_SIZE_BYTES));
+
+        // Fetch upcoming HLS segments of the high resolution renditions ahead of the player,
+        // so that a single slow connection does not limit the selected bitrate.
+        exoPlayerWrapper.setHlsLookaheadEnabled(true);
+
+        // Keep the prepared player alive when this activity is destroyed, so that after a
+        // rotation or a quick app switch the new activity instance resumes it, with its
+        // position and buffer, instead of preparing the stream again.
+        exoPlayerWrapper.setRetainedSession(PlaybackSessionStore.getInstance(this),
+                MainMenu.TEST_VIDEO_URI_HLS);
+        mVideoPlayer = exoPlayerWrapper;
 
         // Create a new video (or image) texture from a video (or image) source URI.
         mPanoramaTexture = new OrionVideoTexture(mOrionContext,
@@ -155,4 +174,15 @@ public class GoogleExoPlayer extends OrionActivity {
         mView.bindViewports(OrionDisplayViewport.VIEWPORT_CONFIG_FULL,
                 OrionDisplayViewport.CoordinateType.FIXED_LANDSCAPE);
 	}
+
+    @Override
+    public void onDestroy() {
+        // Leaving the example for good; a retained player would wait for nothing. This must
+        // be set before the player is released with the activity.
+        if (mVideoPlayer instanceof ExoPlayerWrapper) {
+            ((ExoPlayerWrapper) mVideoPlayer).setRetainOnRelease(!isFinishing());
+        }
+
+        super.onDestroy();
+    }
 }
@@ -0,0 +1,369 @@
+/*
+ * Copyright (c) 2022, Finwe Ltd. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package fi.finwe.orion360.sdk.pro.examples.engine;
+
+import android.net.Uri;
+import android.os.SystemClock;
+
+import androidx.annotation.Nullable;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.TransferListener;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import fi.finwe.log.Logger;
+
+/**
+ * Data source that hedges slow requests.
+ * <p/>
+ * A single stalled request makes the player rebuffer even when the network is healthy.
+ * If a request has not produced its first byte by a deadline, this data source sends a
+ * duplicate request, optionally to an alternate host, and continues with whichever
+ * responds first; the other one is closed. The deadline is a high percentile of the
+ * recent time-to-first-byte samples, so that only the slowest few percent of requests
+ * are hedged. Failed requests are not hedged; retrying them is left to the player's
+ * load error handling.
+ */
+final class HedgedDataSource implements DataSource {
+
+    /** Tag for logging. */
+    private static final String TAG = HedgedDataSource.class.getSimpleName();
+
+    /** Percentile of time-to-first-byte samples used as the hedging deadline. */
+    private static final float DEADLINE_PERCENTILE = 0.95f;
+
+    /** Number of time-to-first-byte samples kept. */
+    private static final int MAX_SAMPLES = 64;
+
+    /** Number of samples needed before the percentile is used. */
+    private static final int MIN_SAMPLES = 16;
+
+    /** Deadline until there are enough samples, in ms. */
+    private static final long DEFAULT_DEADLINE_MS = 1500;
+
+    /** Lower limit of the deadline, in ms. */
+    private static final long MIN_DEADLINE_MS = 150;
+
+    /** Size of the first read, which tells that the response has started. */
+    private static final int FIRST_READ_BYTES = 16 * 1024;
+
+    /** Threads for requests, shared by all instances. */
+    private static final ExecutorService sExecutor = Executors.newCachedThreadPool(
+            new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "Hedged-" + mCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    /** Request counters and time-to-first-byte samples, shared by data sources. */
+    static final class Stats {
+
+        private final AtomicLong mRequests = new AtomicLong();
+        private final AtomicLong mHedgesFired = new AtomicLong();
+        private final AtomicLong mHedgesWon = new AtomicLong();
+        private final long[] mSamples = new long[MAX_SAMPLES];
+        private int mSampleCount = 0;
+        private int mNextSample = 0;
+
+        /** Number of requests. */
+        long getRequestCount() {
+            return mRequests.get();
+        }
+
+        /** Number of duplicate requests sent. */
+        long getHedgesFired() {
+            return mHedgesFired.get();
+        }
+
+        /** Number of duplicate requests that responded before the original. */
+        long getHedgesWon() {
+            return mHedgesWon.get();
+        }
+
+        synchronized void addSample(long timeToFirstByteMs) {
+            mSamples[mNextSample] = timeToFirstByteMs;
+            mNextSample = (mNextSample + 1) % MAX_SAMPLES;
+            mSampleCount = Math.min(mSampleCount + 1, MAX_SAMPLES);
+        }
+
+        synchronized long getDeadlineMs() {
+            if (mSampleCount < MIN_SAMPLES) {
+                return DEFAULT_DEADLINE_MS;
+            }
+            long[] sorted = Arrays.copyOf(mSamples, mSampleCount);
+            Arrays.sort(sorted);
+            int index = Math.min(mSampleCount - 1, (int) (mSampleCount * DEADLINE_PERCENTILE));
+            return Math.max(MIN_DEADLINE_MS, sorted[index]);
+        }
+    }
+
+    /** Factory for hedged data sources. */
+    static final class Factory implements DataSource.Factory {
+
+        private final DataSource.Factory mUpstreamFactory;
+        private final Stats mStats;
+        @Nullable
+        private final String mAlternateHost;
+
+        /**
+         * Constructor.
+         *
+         * @param upstreamFactory the factory for the HTTP data sources.
+         * @param stats the counters and samples to use.
+         * @param alternateHost the host for duplicate requests, or null to use the same host.
+         */
+        Factory(DataSource.Factory upstreamFactory, Stats stats, @Nullable String alternateHost) {
+            mUpstreamFactory = upstreamFactory;
+            mStats = stats;
+            mAlternateHost = alternateHost;
+        }
+
+        @Override
+        public DataSource createDataSource() {
+            return new HedgedDataSource(mUpstreamFactory, mStats, mAlternateHost);
+        }
+    }
+
+    /** One request: an upstream data source that is opened in the background. */
+    private final class Attempt implements Runnable {
+        final DataSource source;
+        final DataSpec dataSpec;
+        final int generation = mGeneration;
+        final long startMs = SystemClock.elapsedRealtime();
+        final byte[] firstBytes = new byte[FIRST_READ_BYTES];
+        int firstLength;
+        long length;
+        @Nullable IOException error;
+        boolean done;
+        @Nullable Future<?> future;
+
+        Attempt(DataSource source, DataSpec dataSpec) {
+            this.source = source;
+            this.dataSpec = dataSpec;
+        }
+
+        @Override
+        public void run() {
+            try {
+                length = source.open(dataSpec);
+                int read = source.read(firstBytes, 0, FIRST_READ_BYTES);
+                firstLength = read == C.RESULT_END_OF_INPUT ? 0 : read;
+                mStats.addSample(SystemClock.elapsedRealtime() - startMs);
+            } catch (IOException e) {
+                error = e;
+            }
+            boolean lost;
+            synchronized (mLock) {
+                done = true;
+                if (null == error && null == mWinner && !mClosed && generation == mGeneration) {
+                    mWinner = this;
+                }
+                lost = mWinner != this;
+                mLock.notifyAll();
+            }
+            if (lost) {
+                closeQuietly(source);
+            }
+        }
+    }
+
+    private final DataSource.Factory mUpstreamFactory;
+    private final Stats mStats;
+    @Nullable
+    private final String mAlternateHost;
+    private final List<TransferListener> mTransferListeners = new ArrayList<>();
+    private final Object mLock = new Object();
+
+    /** The attempt that responded first. Guarded by mLock. */
+    @Nullable
+    private Attempt mWinner;
+
+    /** True when the data source is closed. Guarded by mLock. */
+    private boolean mClosed = true;
+
+    /** Number of the current open() call, so that late attempts cannot win a later one. */
+    private volatile int mGeneration = 0;
+
+    /** Read offset in the winner's first bytes. */
+    private int mFirstBytesOffset;
+
+
+    private HedgedDataSource(DataSource.Factory upstreamFactory, Stats stats,
+                             @Nullable String alternateHost) {
+        mUpstreamFactory = upstreamFactory;
+        mStats = stats;
+        mAlternateHost = alternateHost;
+    }
+
+    @Override
+    public void addTransferListener(TransferListener transferListener) {
+        synchronized (mTransferListeners) {
+            if (!mTransferListeners.contains(transferListener)) {
+                mTransferListeners.add(transferListener);
+            }
+        }
+    }
+
+    @Override
+    public long open(DataSpec dataSpec) throws IOException {
+        mStats.mRequests.incrementAndGet();
+        mFirstBytesOffset = 0;
+        mGeneration++;
+        Attempt primary = new Attempt(createUpstreamSource(), dataSpec);
+        Attempt hedge = null;
+        synchronized (mLock) {
+            mWinner = null;
+            mClosed = false;
+            primary.future = sExecutor.submit(primary);
+            try {
+                long deadline = SystemClock.elapsedRealtime() + mStats.getDeadlineMs();
+                long now;
+                while (!primary.done && (now = SystemClock.elapsedRealtime()) < deadline) {
+                    mLock.wait(deadline - now);
+                }
+                if (!primary.done) {
+                    hedge = new Attempt(createUpstreamSource(), getHedgeDataSpec(dataSpec));
+                    hedge.future = sExecutor.submit(hedge);
+                    mStats.mHedgesFired.incrementAndGet();
+                    Logger.logD(TAG, "Hedging slow request: " + dataSpec.uri);
+                    while (null == mWinner && !(primary.done && hedge.done)) {
+                        mLock.wait();
+                    }
+                }
+            } catch (InterruptedException e) {
+                mClosed = true;
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            if (null == mWinner) {
+                mClosed = true;
+                throw null != primary.error ? primary.error : new IOException("Request failed");
+            }
+            if (mWinner == hedge) {
+                mStats.mHedgesWon.incrementAndGet();
+                primary.future.cancel(true);
+            } else if (hedge != null && hedge.future != null) {
+                hedge.future.cancel(true);
+            }
+            return mWinner.length;
+        }
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        Attempt winner = mWinner;
+        if (null == winner) {
+            throw new IOException("Data source is not open");
+        }
+        if (length == 0) {
+            return 0;
+        }
+        if (mFirstBytesOffset < winner.firstLength) {
+            int read = Math.min(length, winner.firstLength - mFirstBytesOffset);
+            System.arraycopy(winner.firstBytes, mFirstBytesOffset, buffer, offset, read);
+            mFirstBytesOffset += read;
+            return read;
+        }
+        return winner.source.read(buffer, offset, length);
+    }
+
+    @Nullable
+    @Override
+    public Uri getUri() {
+        Attempt winner = mWinner;
+        return null == winner ? null : winner.source.getUri();
+    }
+
+    @Override
+    public Map<String, List<String>> getResponseHeaders() {
+        Attempt winner = mWinner;
+        return null == winner ? Collections.emptyMap() : winner.source.getResponseHeaders();
+    }
+
+    @Override
+    public void close() throws IOException {
+        Attempt winner;
+        synchronized (mLock) {
+            mClosed = true;
+            winner = mWinner;
+            mWinner = null;
+        }
+        if (winner != null) {
+            winner.source.close();
+        }
+    }
+
+    private DataSource createUpstreamSource() {
+        DataSource source = mUpstreamFactory.createDataSource();
+        synchronized (mTransferListeners) {
+            for (TransferListener listener : mTransferListeners) {
+                source.addTransferListener(listener);
+            }
+        }
+        return source;
+    }
+
+    private DataSpec getHedgeDataSpec(DataSpec dataSpec) {
+        String scheme = dataSpec.uri.getScheme();
+        if (null == mAlternateHost
+                || !("http".equalsIgnoreCase(scheme) || "https".equalsIgnoreCase(scheme))) {
+            return dataSpec;
+        }
+        return dataSpec.withUri(dataSpec.uri.buildUpon().encodedAuthority(mAlternateHost).build());
+    }
+
+    private static void closeQuietly(DataSource source) {
+        try {
+            source.close();
+        } catch (IOException e) {
+            // Ignore, the response is not needed.
+        }
+    }
+}
@@ -0,0 +1,506 @@
+/*
+ * Copyright (c) 2022, Finwe Ltd. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package fi.finwe.orion360.sdk.pro.examples.engine;
+
+import android.net.Uri;
+import android.os.SystemClock;
+
+import androidx.annotation.Nullable;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.source.hls.playlist.HlsMediaPlaylist;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.TransferListener;
+import com.google.android.exoplayer2.util.UriUtil;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import fi.finwe.log.Logger;
+
+/**
+ * Fetches the next HLS media segments concurrently, ahead of the player.
+ * <p/>
+ * ExoPlayer loads HLS segments one at a time, so on high-RTT links the connection is
+ * idle for a round trip between every two segments. When the player starts loading a
+ * segment, this prefetcher starts fetching the next K segments of the same playlist in
+ * parallel into a staging buffer in memory, and the data sources it creates serve the
+ * player's later requests for those segments from the buffer.
+ * <p/>
+ * K is the number of connections that the rendition needs: its bitrate over the
+ * throughput of one connection, so that a rendition above what a single connection
+ * delivers on a high-RTT link is fetched over several. The throughput of one connection
+ * is measured from the segment transfers of the prefetcher and the player's own loads,
+ * not taken from the bandwidth meter, whose estimate is the aggregate of all the
+ * connections and would shrink K as soon as the parallel fetches raise it. At least the
+ * round trip is covered, so that the connection is not idle between segments. K is capped
+ * to MAX_LOOKAHEAD_SEGMENTS. Prefetching is only triggered by the player's own loads, so it
+ * stops when LoadControl stops loading; in addition the staging buffer is capped in
+ * bytes, and no segment beyond the player's maximum buffer duration is fetched.
+ * <p/>
+ * Staged segments that are no longer ahead of the player in the current playlist, for
+ * example after a variant switch or a seek, are dropped, so they do not hold the budget.
+ */
+final class HlsSegmentPrefetcher {
+
+    /** Tag for logging. */
+    private static final String TAG = HlsSegmentPrefetcher.class.getSimpleName();
+
+    /** Maximum number of segments fetched ahead. */
+    static final int MAX_LOOKAHEAD_SEGMENTS = 4;
+
+    /** Weight of a new round trip sample in the smoothed round trip time. */
+    private static final float RTT_SMOOTHING = 0.25f;
+
+    /** Weight of a new throughput sample in the smoothed connection throughput. */
+    private static final float THROUGHPUT_SMOOTHING = 0.25f;
+
+    /** Minimum transfer size for a throughput sample; smaller ones measure latency. */
+    private static final long MIN_THROUGHPUT_SAMPLE_BYTES = 64 * 1024;
+
+    /** Maximum number of media playlists remembered, i.e. variants of a stream. */
+    private static final int MAX_PLAYLISTS = 16;
+
+    /** Threads for segment fetches, shared by all instances. */
+    private static final ExecutorService sExecutor = Executors.newCachedThreadPool(
+            new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable,
+                            "HlsPrefetch-" + mCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    /** A segment that is fetched or has been fetched into the staging buffer. */
+    private static class StagedSegment {
+        final long length;
+        final Future<byte[]> future;
+
+        StagedSegment(long length, Future<byte[]> future) {
+            this.length = length;
+            this.future = future;
+        }
+    }
+
+    /** Factory for the network data sources. */
+    private final DataSource.Factory mUpstreamFactory;
+
+    /** Maximum size of the staging buffer, in bytes. */
+    private volatile long mBudgetBytes;
+
+    /** Staged segments by URI, in fetch order. Guarded by itself. */
+    private final LinkedHashMap<String, StagedSegment> mStaged = new LinkedHashMap<>();
+
+    /** Bytes reserved by staged segments. Guarded by mStaged. */
+    private long mStagedBytes = 0;
+
+    /** Smoothed time to open a network connection (round trip), in ms, or -1. */
+    private volatile float mRttMs = -1;
+
+    /** Smoothed throughput of one connection, in bits per second, or -1. */
+    private volatile float mConnectionBps = -1;
+
+    /** The latest media playlist of each variant seen, by playlist URI. Guarded by itself. */
+    private final LinkedHashMap<String, HlsMediaPlaylist> mPlaylists =
+            new LinkedHashMap<String, HlsMediaPlaylist>() {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, HlsMediaPlaylist> eldest) {
+                    return size() > MAX_PLAYLISTS;
+                }
+            };
+
+    /** Data source factory that serves staged segments. */
+    private final DataSource.Factory mDataSourceFactory = () -> new StagingDataSource();
+
+
+    /**
+     * Constructor.
+     *
+     * @param upstreamFactory the factory for network data sources.
+     * @param budgetBytes the maximum size of the staging buffer, in bytes.
+     */
+    HlsSegmentPrefetcher(DataSource.Factory upstreamFactory, long budgetBytes) {
+        mUpstreamFactory = upstreamFactory;
+        mBudgetBytes = budgetBytes;
+    }
+
+    /**
+     * Set the maximum size of the staging buffer.
+     *
+     * @param budgetBytes the budget, in bytes.
+     */
+    void setBudgetBytes(long budgetBytes) {
+        mBudgetBytes = budgetBytes;
+    }
+
+    /** Return the factory for data sources that serve staged segments. */
+    DataSource.Factory getDataSourceFactory() {
+        return mDataSourceFactory;
+    }
+
+    /**
+     * Remember a media playlist, so that segments of its variant can be prefetched after
+     * the player has switched to another variant.
+     *
+     * @param playlist the media playlist.
+     */
+    void onPlaylistUpdated(HlsMediaPlaylist playlist) {
+        synchronized (mPlaylists) {
+            mPlaylists.remove(playlist.baseUri);
+            mPlaylists.put(playlist.baseUri, playlist);
+        }
+    }
+
+    /**
+     * Return the latest media playlist of a variant.
+     *
+     * @param playlistUri the URI of the media playlist of the variant.
+     * @return the playlist, or null if it has not been seen yet.
+     */
+    @Nullable
+    HlsMediaPlaylist getPlaylist(Uri playlistUri) {
+        synchronized (mPlaylists) {
+            return mPlaylists.get(playlistUri.toString());
+        }
+    }
+
+    /**
+     * Called when the player starts loading a media segment. Starts fetching the next
+     * segments of the playlist.
+     *
+     * @param playlist the media playlist of the variant the segment belongs to.
+     * @param dataSpec the data spec of the segment the player is loading.
+     * @param segmentBitrate the bitrate of the loaded track, or Format.NO_VALUE.
+     * @param maxAheadUs the latest start time of a segment that may be fetched, relative
+     *                   to the start of the playlist, in us.
+     */
+    void onSegmentLoadStarted(HlsMediaPlaylist playlist, DataSpec dataSpec,
+                              int segmentBitrate, long maxAheadUs) {
+        List<HlsMediaPlaylist.Segment> segments = playlist.segments;
+        int current = -1;
+        for (int i = 0; i < segments.size(); i++) {
+            if (resolve(playlist, segments.get(i)).equals(dataSpec.uri)) {
+                current = i;
+                break;
+            }
+        }
+        if (current < 0) {
+            return;
+        }
+        removeNotAhead(playlist, current);
+
+        int lookahead = getLookahead(mRttMs, segments.get(current).durationUs,
+                segmentBitrate, (long) mConnectionBps);
+        for (int i = current + 1; i <= current + lookahead && i < segments.size(); i++) {
+            HlsMediaPlaylist.Segment segment = segments.get(i);
+            if (segment.relativeStartTimeUs > maxAheadUs) {
+                break;
+            }
+            long estimatedBytes = segmentBitrate > 0
+                    ? segmentBitrate / 8 * segment.durationUs / C.MICROS_PER_SECOND
+                    : segment.byteRangeLength;
+            if (!stage(resolve(playlist, segment), segment.byteRangeOffset,
+                    segment.byteRangeLength, estimatedBytes)) {
+                break;
+            }
+        }
+    }
+
+    /** Drop all staged segments. */
+    void clear() {
+        synchronized (mStaged) {
+            for (StagedSegment staged : mStaged.values()) {
+                staged.future.cancel(true);
+            }
+            mStaged.clear();
+            mStagedBytes = 0;
+        }
+    }
+
+    /**
+     * Return the number of segments to fetch ahead.
+     *
+     * @param rttMs the smoothed round trip time, in ms, or -1 if not measured yet.
+     * @param segmentDurationUs the duration of the current segment, in us.
+     * @param segmentBitrate the bitrate of the loaded track, or Format.NO_VALUE.
+     * @param connectionBps the measured throughput of one connection, in bits per second,
+     *                      or -1 if not measured yet.
+     * @return the number of segments, 0 to MAX_LOOKAHEAD_SEGMENTS.
+     */
+    static int getLookahead(float rttMs, long segmentDurationUs, int segmentBitrate,
+                            long connectionBps) {
+        if (rttMs <= 0 || connectionBps <= 0 || segmentDurationUs <= 0) {
+            return 0;
+        }
+        // Connections needed to sustain the rendition, when one connection falls short.
+        int forThroughput = segmentBitrate > 0
+                ? (int) Math.ceil((double) segmentBitrate / connectionBps) : 0;
+        // Segments needed to keep the connection busy during a round trip.
+        int forRtt = (int) Math.ceil(rttMs * 1000 / segmentDurationUs);
+        return Math.min(MAX_LOOKAHEAD_SEGMENTS, Math.max(forThroughput, forRtt));
+    }
+
+    private boolean stage(Uri uri, long position, long length, long estimatedBytes) {
+        final String key = getKey(uri, position);
+        long reservedBytes = length != C.LENGTH_UNSET ? length : Math.max(0, estimatedBytes);
+        synchronized (mStaged) {
+            if (mStaged.containsKey(key)) {
+                return true;
+            }
+            if (mStagedBytes + reservedBytes > mBudgetBytes) {
+                return false;
+            }
+            final DataSpec dataSpec = new DataSpec.Builder()
+                    .setUri(uri)
+                    .setPosition(position)
+                    .setLength(length)
+                    .build();
+            Future<byte[]> future = sExecutor.submit(() -> fetch(dataSpec));
+            mStaged.put(key, new StagedSegment(reservedBytes, future));
+            mStagedBytes += reservedBytes;
+        }
+        Logger.logV(TAG, "Prefetching " + uri);
+        return true;
+    }
+
+    /**
+     * Drop staged segments that are not at or after the current segment of the playlist:
+     * segments that the player has passed, and segments of other variants after a variant
+     * switch or a seek.
+     */
+    private void removeNotAhead(HlsMediaPlaylist playlist, int current) {
+        Set<String> ahead = new HashSet<>();
+        for (int i = current; i < playlist.segments.size(); i++) {
+            HlsMediaPlaylist.Segment segment = playlist.segments.get(i);
+            ahead.add(getKey(resolve(playlist, segment), segment.byteRangeOffset));
+        }
+        synchronized (mStaged) {
+            Iterator<Map.Entry<String, StagedSegment>> it = mStaged.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, StagedSegment> entry = it.next();
+                if (!ahead.contains(entry.getKey())) {
+                    entry.getValue().future.cancel(true);
+                    mStagedBytes -= entry.getValue().length;
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    @Nullable
+    private StagedSegment release(String key) {
+        synchronized (mStaged) {
+            StagedSegment staged = mStaged.remove(key);
+            if (staged != null) {
+                mStagedBytes -= staged.length;
+            }
+            return staged;
+        }
+    }
+
+    private byte[] fetch(DataSpec dataSpec) throws IOException {
+        DataSource source = mUpstreamFactory.createDataSource();
+        try {
+            long startMs = SystemClock.elapsedRealtime();
+            long length = source.open(dataSpec);
+            long openedMs = SystemClock.elapsedRealtime();
+            onRttSample(openedMs - startMs);
+            if (length == C.LENGTH_UNSET || length > Integer.MAX_VALUE) {
+                throw new IOException("Unknown segment length");
+            }
+            byte[] data = new byte[(int) length];
+            int offset = 0;
+            while (offset < data.length) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedIOException();
+                }
+                int read = source.read(data, offset, data.length - offset);
+                if (read == C.RESULT_END_OF_INPUT) {
+                    throw new IOException("Unexpected end of input");
+                }
+                offset += read;
+            }
+            onThroughputSample(data.length, SystemClock.elapsedRealtime() - openedMs);
+            return data;
+        } finally {
+            source.close();
+        }
+    }
+
+    private void onRttSample(long rttMs) {
+        float previous = mRttMs;
+        mRttMs = previous < 0 ? rttMs : previous + RTT_SMOOTHING * (rttMs - previous);
+    }
+
+    /** Record the transfer of one connection, from its response to its last byte. */
+    private void onThroughputSample(long bytes, long durationMs) {
+        if (bytes < MIN_THROUGHPUT_SAMPLE_BYTES || durationMs <= 0) {
+            return;
+        }
+        float bps = bytes * 8 * 1000f / durationMs;
+        float previous = mConnectionBps;
+        mConnectionBps = previous < 0 ? bps : previous + THROUGHPUT_SMOOTHING * (bps - previous);
+    }
+
+    private static Uri resolve(HlsMediaPlaylist playlist, HlsMediaPlaylist.Segment segment) {
+        return UriUtil.resolveToUri(playlist.baseUri, segment.url);
+    }
+
+    private static String getKey(Uri uri, long position) {
+        return uri.toString() + "@" + position;
+    }
+
+    /**
+     * Data source that serves a staged segment if there is one for the request, and
+     * reads from the network otherwise. Measures round trips and throughputs of network
+     * requests.
+     */
+    private class StagingDataSource implements DataSource {
+
+        private final DataSource mUpstream = mUpstreamFactory.createDataSource();
+
+        @Nullable
+        private byte[] mStagedData;
+        private int mStagedOffset;
+        private int mStagedRemaining;
+
+        @Nullable
+        private Uri mUri;
+        private boolean mUpstreamOpen;
+
+        /** Bytes read from the network request, and the time its response arrived. */
+        private long mUpstreamBytesRead;
+        private long mUpstreamOpenedMs;
+
+        @Override
+        public void addTransferListener(TransferListener transferListener) {
+            mUpstream.addTransferListener(transferListener);
+        }
+
+        @Override
+        public long open(DataSpec dataSpec) throws IOException {
+            mUri = dataSpec.uri;
+            StagedSegment staged = release(getKey(dataSpec.uri, dataSpec.position));
+            if (staged != null) {
+                byte[] data = awaitStaged(staged);
+                if (data != null && (dataSpec.length == C.LENGTH_UNSET
+                        || dataSpec.length <= data.length)) {
+                    mStagedData = data;
+                    mStagedOffset = 0;
+                    mStagedRemaining = dataSpec.length == C.LENGTH_UNSET
+                            ? data.length : (int) dataSpec.length;
+                    return mStagedRemaining;
+                }
+            }
+            long startMs = SystemClock.elapsedRealtime();
+            long length = mUpstream.open(dataSpec);
+            mUpstreamOpen = true;
+            mUpstreamBytesRead = 0;
+            mUpstreamOpenedMs = SystemClock.elapsedRealtime();
+            onRttSample(mUpstreamOpenedMs - startMs);
+            return length;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (mStagedData != null) {
+                if (mStagedRemaining == 0) {
+                    return C.RESULT_END_OF_INPUT;
+                }
+                int read = Math.min(length, mStagedRemaining);
+                System.arraycopy(mStagedData, mStagedOffset, buffer, offset, read);
+                mStagedOffset += read;
+                mStagedRemaining -= read;
+                return read;
+            }
+            int read = mUpstream.read(buffer, offset, length);
+            if (read > 0) {
+                mUpstreamBytesRead += read;
+            }
+            return read;
+        }
+
+        @Nullable
+        @Override
+        public Uri getUri() {
+            return mStagedData != null ? mUri : mUpstream.getUri();
+        }
+
+        @Override
+        public Map<String, List<String>> getResponseHeaders() {
+            return mStagedData != null
+                    ? Collections.emptyMap() : mUpstream.getResponseHeaders();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mStagedData = null;
+            mUri = null;
+            if (mUpstreamOpen) {
+                mUpstreamOpen = false;
+                onThroughputSample(mUpstreamBytesRead,
+                        SystemClock.elapsedRealtime() - mUpstreamOpenedMs);
+                mUpstream.close();
+            }
+        }
+
+        /** Wait for a staged segment; return null if the fetch failed. */
+        @Nullable
+        private byte[] awaitStaged(StagedSegment staged) throws IOException {
+            try {
+                return staged.future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            } catch (ExecutionException e) {
+                Logger.logD(TAG, "Prefetch failed, loading again: " + e.getCause());
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (c) 2022, Finwe Ltd. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package fi.finwe.orion360.sdk.pro.examples.engine;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.MediaItem;
+
+/**
+ * Live playback configuration for ExoPlayerWrapper.
+ * <p/>
+ * A profile sets how far behind the live edge a live stream is played (the target live
+ * offset), the range the offset may vary in, and the range of playback speeds ExoPlayer may
+ * use to catch up with the target offset or to fall back from it. Values that are not set
+ * are taken from the stream (HLS EXT-X-SERVER-CONTROL, e.g. PART-HOLD-BACK for low-latency
+ * HLS, or the DASH ServiceDescription), or from ExoPlayer's defaults.
+ * <p/>
+ * Low-latency HLS partial segments are loaded whenever the playlist advertises them; a
+ * low-latency profile then keeps playback close to the edge. Use one of the presets, or
+ * create a custom profile with {@link Builder}. A profile is applied to sources that are
+ * set after {@link ExoPlayerWrapper#setLiveProfile(LiveProfile)}; it does not affect VOD.
+ */
+public final class LiveProfile {
+
+    /** Live offsets and speeds as defined by the stream, or ExoPlayer's defaults. */
+    public static final LiveProfile DEFAULT = new Builder().build();
+
+    /**
+     * Play close to the live edge, e.g. for events with a chat. Needs a low-latency stream
+     * (LL-HLS or low-latency DASH) or short segments; playback speed varies up to 5% to
+     * catch up after rebuffering.
+     */
+    public static final LiveProfile LOW_LATENCY = new Builder()
+            .setTargetOffsetMs(3000)
+            .setOffsetRangeMs(2000, 8000)
+            .setPlaybackSpeedRange(0.95f, 1.05f)
+            .build();
+
+    private final long mTargetOffsetMs;
+    private final long mMinOffsetMs;
+    private final long mMaxOffsetMs;
+    private final float mMinPlaybackSpeed;
+    private final float mMaxPlaybackSpeed;
+
+
+    private LiveProfile(Builder builder) {
+        mTargetOffsetMs = builder.mTargetOffsetMs;
+        mMinOffsetMs = builder.mMinOffsetMs;
+        mMaxOffsetMs = builder.mMaxOffsetMs;
+        mMinPlaybackSpeed = builder.mMinPlaybackSpeed;
+        mMaxPlaybackSpeed = builder.mMaxPlaybackSpeed;
+    }
+
+    /** Target live offset in ms, or C.TIME_UNSET for the stream's own. */
+    public long getTargetOffsetMs() {
+        return mTargetOffsetMs;
+    }
+
+    /** Minimum live offset in ms, or C.TIME_UNSET for the stream's own. */
+    public long getMinOffsetMs() {
+        return mMinOffsetMs;
+    }
+
+    /** Maximum live offset in ms, or C.TIME_UNSET for the stream's own. */
+    public long getMaxOffsetMs() {
+        return mMaxOffsetMs;
+    }
+
+    /** Minimum playback speed for catching up, or C.RATE_UNSET for the default. */
+    public float getMinPlaybackSpeed() {
+        return mMinPlaybackSpeed;
+    }
+
+    /** Maximum playback speed for catching up, or C.RATE_UNSET for the default. */
+    public float getMaxPlaybackSpeed() {
+        return mMaxPlaybackSpeed;
+    }
+
+    /**
+     * Create the live configuration for a media item.
+     *
+     * @return the live configuration.
+     */
+    MediaItem.LiveConfiguration toLiveConfiguration() {
+        return new MediaItem.LiveConfiguration.Builder()
+                .setTargetOffsetMs(mTargetOffsetMs)
+                .setMinOffsetMs(mMinOffsetMs)
+                .setMaxOffsetMs(mMaxOffsetMs)
+                .setMinPlaybackSpeed(mMinPlaybackSpeed)
+                .setMaxPlaybackSpeed(mMaxPlaybackSpeed)
+                .build();
+    }
+
+    @Override
+    public String toString() {
+        return "LiveProfile{target=" + mTargetOffsetMs + " ms, min=" + mMinOffsetMs
+                + " ms, max=" + mMaxOffsetMs + " ms, speed=" + mMinPlaybackSpeed + ".."
+                + mMaxPlaybackSpeed + "}";
+    }
+
+    /**
+     * Builder for custom live profiles. Values that are not set are taken from the stream.
+     */
+    public static final class Builder {
+
+        private long mTargetOffsetMs = C.TIME_UNSET;
+        private long mMinOffsetMs = C.TIME_UNSET;
+        private long mMaxOffsetMs = C.TIME_UNSET;
+        private float mMinPlaybackSpeed = C.RATE_UNSET;
+        private float mMaxPlaybackSpeed = C.RATE_UNSET;
+
+        /**
+         * Set the target live offset, i.e. how far behind the live edge to play.
+         *
+         * @param targetOffsetMs the target offset, in ms.
+         * @return this builder.
+         */
+        public Builder setTargetOffsetMs(long targetOffsetMs) {
+            if (targetOffsetMs < 0) {
+                throw new IllegalArgumentException("Invalid target offset: " + targetOffsetMs);
+            }
+            mTargetOffsetMs = targetOffsetMs;
+            return this;
+        }
+
+        /**
+         * Set the range the live offset is kept in, also when the target is adjusted after
+         * rebuffering.
+         *
+         * @param minOffsetMs the minimum offset, in ms.
+         * @param maxOffsetMs the maximum offset, in ms.
+         * @return this builder.
+         */
+        public Builder setOffsetRangeMs(long minOffsetMs, long maxOffsetMs) {
+            if (minOffsetMs < 0 || maxOffsetMs < minOffsetMs) {
+                throw new IllegalArgumentException("Invalid offset range: min="
+                        + minOffsetMs + ", max=" + maxOffsetMs);
+            }
+            mMinOffsetMs = minOffsetMs;
+            mMaxOffsetMs = maxOffsetMs;
+            return this;
+        }
+
+        /**
+         * Set the range of playback speeds used for catching up with the target offset.
+         * Use 1.0 for both to disable catching up.
+         *
+         * @param minSpeed the minimum speed, at most 1.0.
+         * @param maxSpeed the maximum speed, at least 1.0.
+         * @return this builder.
+         */
+        public Builder setPlaybackSpeedRange(float minSpeed, float maxSpeed) {
+            if (minSpeed <= 0 || minSpeed > 1.0f || maxSpeed < 1.0f) {
+                throw new IllegalArgumentException("Invalid playback speed range: min="
+                        + minSpeed + ", max=" + maxSpeed);
+            }
+            mMinPlaybackSpeed = minSpeed;
+            mMaxPlaybackSpeed = maxSpeed;
+            return this;
+        }
+
+        /**
+         * Build the profile.
+         *
+         * @return the live profile.
+         */
+        public LiveProfile build() {
+            if (mTargetOffsetMs != C.TIME_UNSET && mMinOffsetMs != C.TIME_UNSET
+                    && (mTargetOffsetMs < mMinOffsetMs || mTargetOffsetMs > mMaxOffsetMs)) {
+                throw new IllegalArgumentException("Target offset " + mTargetOffsetMs
+                        + " ms is not within " + mMinOffsetMs + ".." + mMaxOffsetMs + " ms");
+            }
+            return new LiveProfile(this);
+        }
+    }
+}
@@ -0,0 +1,345 @@
+/*
+ * Copyright (c) 2022, Finwe Ltd. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package fi.finwe.orion360.sdk.pro.examples.engine;
+
+import android.content.Context;
+import android.net.Uri;
+
+import androidx.annotation.Nullable;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.database.StandaloneDatabaseProvider;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.TransferListener;
+import com.google.android.exoplayer2.upstream.cache.Cache;
+import com.google.android.exoplayer2.upstream.cache.CacheDataSource;
+import com.google.android.exoplayer2.upstream.cache.LeastRecentlyUsedCacheEvictor;
+import com.google.android.exoplayer2.upstream.cache.SimpleCache;
+import com.google.android.exoplayer2.util.Util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import fi.finwe.log.Logger;
+
+/**
+ * Size-bounded on-disk cache for streamed media, with least recently used eviction.
+ * <p/>
+ * Media segments and progressive files that are read through the cache are stored on
+ * disk, so that replaying a video or seeking back does not download the same bytes again.
+ * Manifests and playlists (HLS, DASH, SmoothStreaming) always bypass the cache, as they
+ * may change during playback (live streams).
+ * <p/>
+ * ExoPlayer allows only one cache instance per directory, hence instances are shared:
+ * use {@link #getInstance(Context, Location, long)} and give the cache to as many
+ * ExoPlayerWrapper instances as needed via {@link ExoPlayerWrapper#setMediaCache(MediaCache)}.
+ */
+public final class MediaCache {
+
+    /** Tag for logging. */
+    public static final String TAG = MediaCache.class.getSimpleName();
+
+    /** Name of the cache directory, under the selected location. */
+    private static final String CACHE_DIRECTORY_NAME = "media";
+
+    /** Cache location. */
+    public enum Location {
+        /** App's private external cache dir; falls back to internal if not available. */
+        PRIVATE_EXTERNAL,
+        /** App's private internal cache dir. */
+        INTERNAL
+    }
+
+    /** Shared instances, one per cache directory. */
+    private static final Map<File, MediaCache> sInstances = new HashMap<>();
+
+    private final File mDirectory;
+    private final long mMaxBytes;
+    private final SimpleCache mCache;
+
+    private final AtomicLong mHitCount = new AtomicLong();
+    private final AtomicLong mMissCount = new AtomicLong();
+    private final AtomicLong mBytesSaved = new AtomicLong();
+    private final AtomicLong mBytesDownloaded = new AtomicLong();
+
+
+    private MediaCache(Context context, File directory, long maxBytes) {
+        mDirectory = directory;
+        mMaxBytes = maxBytes;
+        mCache = new SimpleCache(directory, new LeastRecentlyUsedCacheEvictor(maxBytes),
+                new StandaloneDatabaseProvider(context.getApplicationContext()));
+    }
+
+    /**
+     * Get the shared cache for the given location.
+     *
+     * @param context the context.
+     * @param location the location of the cache directory.
+     * @param maxBytes the maximum size of the cache, in bytes.
+     * @return the cache.
+     */
+    public static MediaCache getInstance(Context context, Location location, long maxBytes) {
+        File root = null;
+        if (location == Location.PRIVATE_EXTERNAL) {
+            root = context.getExternalCacheDir();
+            if (null == root) {
+                Logger.logW(TAG, "External cache dir is not available, using internal");
+            }
+        }
+        if (null == root) {
+            root = context.getCacheDir();
+        }
+        return getInstance(context, new File(root, CACHE_DIRECTORY_NAME), maxBytes);
+    }
+
+    /**
+     * Get the shared cache for the given directory. The directory must be used only for
+     * this cache.
+     *
+     * @param context the context.
+     * @param directory the cache directory.
+     * @param maxBytes the maximum size of the cache, in bytes.
+     * @return the cache.
+     */
+    public static synchronized MediaCache getInstance(Context context, File directory,
+                                                      long maxBytes) {
+        MediaCache cache = sInstances.get(directory);
+        if (null == cache) {
+            cache = new MediaCache(context, directory, maxBytes);
+            sInstances.put(directory, cache);
+            Logger.logD(TAG, "Created media cache in " + directory + ", max " + maxBytes + " B");
+        } else if (cache.mMaxBytes != maxBytes) {
+            Logger.logW(TAG, "Media cache in " + directory + " already exists with max "
+                    + cache.mMaxBytes + " B, ignoring new max " + maxBytes + " B");
+        }
+        return cache;
+    }
+
+    /**
+     * Release the cache. Call only when no player is using it anymore.
+     */
+    public void release() {
+        synchronized (MediaCache.class) {
+            sInstances.remove(mDirectory);
+        }
+        mCache.release();
+    }
+
+    /** Return the cache directory. */
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+    /** Return the maximum size of the cache, in bytes. */
+    public long getMaxBytes() {
+        return mMaxBytes;
+    }
+
+    /** Return the number of bytes currently stored in the cache. */
+    public long getCacheSpace() {
+        return mCache.getCacheSpace();
+    }
+
+    /** Return the number of reads that were (at least partially) served from the cache. */
+    public long getHitCount() {
+        return mHitCount.get();
+    }
+
+    /** Return the number of network requests that were made because of a cache miss. */
+    public long getMissCount() {
+        return mMissCount.get();
+    }
+
+    /** Return the number of bytes that were read from the cache instead of the network. */
+    public long getBytesSaved() {
+        return mBytesSaved.get();
+    }
+
+    /** Return the number of bytes that were downloaded to fill the cache. */
+    public long getBytesDownloaded() {
+        return mBytesDownloaded.get();
+    }
+
+    /** Reset hit/miss and byte counters. */
+    public void resetCounters() {
+        mHitCount.set(0);
+        mMissCount.set(0);
+        mBytesSaved.set(0);
+        mBytesDownloaded.set(0);
+    }
+
+    /**
+     * Create a data source factory that reads through this cache.
+     *
+     * @param upstreamFactory the factory for network data sources.
+     * @return the caching data source factory.
+     */
+    DataSource.Factory buildDataSourceFactory(DataSource.Factory upstreamFactory) {
+        CacheDataSource.Factory cacheFactory = buildCacheDataSourceFactory(
+                upstreamFactory, CacheDataSource.FLAG_IGNORE_CACHE_ON_ERROR);
+        return () -> new ManifestBypassDataSource(
+                cacheFactory.createDataSource(), upstreamFactory.createDataSource());
+    }
+
+    /**
+     * Create a factory for data sources that read everything through this cache, counted
+     * in the hit/miss and byte counters.
+     *
+     * @param upstreamFactory the factory for network data sources.
+     * @param flags the CacheDataSource flags.
+     * @return the cache data source factory.
+     */
+    CacheDataSource.Factory buildCacheDataSourceFactory(DataSource.Factory upstreamFactory,
+                                                        int flags) {
+        DataSource.Factory countingUpstreamFactory = () -> {
+            DataSource dataSource = upstreamFactory.createDataSource();
+            dataSource.addTransferListener(mTransferListener);
+            return dataSource;
+        };
+        return new CacheDataSource.Factory()
+                .setCache(mCache)
+                .setUpstreamDataSourceFactory(countingUpstreamFactory)
+                .setFlags(flags)
+                .setEventListener(mCacheEventListener);
+    }
+
+    /** Return the underlying cache. */
+    Cache getCache() {
+        return mCache;
+    }
+
+    private final CacheDataSource.EventListener mCacheEventListener =
+            new CacheDataSource.EventListener() {
+        @Override
+        public void onCachedBytesRead(long cacheSizeBytes, long cachedBytesRead) {
+            mHitCount.incrementAndGet();
+            mBytesSaved.addAndGet(cachedBytesRead);
+        }
+
+        @Override
+        public void onCacheIgnored(int reason) {
+            Logger.logD(TAG, "Cache ignored, reason = " + reason);
+        }
+    };
+
+    private final TransferListener mTransferListener = new TransferListener() {
+        @Override
+        public void onTransferInitializing(DataSource source, DataSpec dataSpec,
+                                           boolean isNetwork) {}
+
+        @Override
+        public void onTransferStart(DataSource source, DataSpec dataSpec, boolean isNetwork) {
+            if (isNetwork) {
+                mMissCount.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void onBytesTransferred(DataSource source, DataSpec dataSpec,
+                                       boolean isNetwork, int bytesTransferred) {
+            if (isNetwork) {
+                mBytesDownloaded.addAndGet(bytesTransferred);
+            }
+        }
+
+        @Override
+        public void onTransferEnd(DataSource source, DataSpec dataSpec, boolean isNetwork) {}
+    };
+
+    /**
+     * Data source that reads manifests and playlists directly from upstream, and
+     * everything else through the cache.
+     */
+    private static class ManifestBypassDataSource implements DataSource {
+
+        private final DataSource mCacheDataSource;
+        private final DataSource mUpstreamDataSource;
+
+        @Nullable
+        private DataSource mCurrent;
+
+        ManifestBypassDataSource(DataSource cacheDataSource, DataSource upstreamDataSource) {
+            mCacheDataSource = cacheDataSource;
+            mUpstreamDataSource = upstreamDataSource;
+        }
+
+        @Override
+        public void addTransferListener(TransferListener transferListener) {
+            mCacheDataSource.addTransferListener(transferListener);
+            mUpstreamDataSource.addTransferListener(transferListener);
+        }
+
+        @Override
+        public long open(DataSpec dataSpec) throws IOException {
+            mCurrent = isManifest(dataSpec.uri) ? mUpstreamDataSource : mCacheDataSource;
+            return mCurrent.open(dataSpec);
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (null == mCurrent) {
+                throw new IOException("Data source is not open");
+            }
+            return mCurrent.read(buffer, offset, length);
+        }
+
+        @Nullable
+        @Override
+        public Uri getUri() {
+            return null == mCurrent ? null : mCurrent.getUri();
+        }
+
+        @Override
+        public Map<String, List<String>> getResponseHeaders() {
+            return null == mCurrent ? Collections.emptyMap() : mCurrent.getResponseHeaders();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (mCurrent != null) {
+                try {
+                    mCurrent.close();
+                } finally {
+                    mCurrent = null;
+                }
+            }
+        }
+
+        private static boolean isManifest(Uri uri) {
+            return Util.inferContentType(uri) != C.CONTENT_TYPE_OTHER;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2022, Finwe Ltd. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package fi.finwe.orion360.sdk.pro.examples.engine;
+
+import android.util.SparseArray;
+
+import androidx.annotation.Nullable;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.extractor.DefaultExtractorsFactory;
+import com.google.android.exoplayer2.extractor.ExtractorsFactory;
+import com.google.android.exoplayer2.source.MediaSource;
+import com.google.android.exoplayer2.source.ProgressiveMediaSource;
+import com.google.android.exoplayer2.source.dash.DashMediaSource;
+import com.google.android.exoplayer2.source.dash.DefaultDashChunkSource;
+import com.google.android.exoplayer2.source.hls.HlsMediaSource;
+import com.google.android.exoplayer2.source.smoothstreaming.DefaultSsChunkSource;
+import com.google.android.exoplayer2.source.smoothstreaming.SsMediaSource;
+import com.google.android.exoplayer2.upstream.DataSource;
+
+/**
+ * Registry of media source factories, keyed by content type (C.CONTENT_TYPE_*).
+ * <p/>
+ * Factories are created on first use and reused for every subsequent source of the same
+ * type, and all of them share one data source chain and one extractor factory. Hence
+ * switching between sources does not allocate new HTTP stacks.
+ */
+final class MediaSourceFactoryRegistry {
+
+    private final DataSource.Factory mDataSourceFactory;
+    private final ExtractorsFactory mExtractorsFactory = new DefaultExtractorsFactory();
+    private final SparseArray<MediaSource.Factory> mFactories = new SparseArray<>();
+
+
+    MediaSourceFactoryRegistry(DataSource.Factory dataSourceFactory) {
+        mDataSourceFactory = dataSourceFactory;
+    }
+
+    /** Return the data source factory that all media source factories share. */
+    DataSource.Factory getDataSourceFactory() {
+        return mDataSourceFactory;
+    }
+
+    /**
+     * Get the media source factory for the given content type.
+     *
+     * @param type the content type (C.CONTENT_TYPE_*).
+     * @return the factory, or null if the type is not supported.
+     */
+    @Nullable
+    synchronized MediaSource.Factory get(int type) {
+        MediaSource.Factory factory = mFactories.get(type);
+        if (null == factory) {
+            factory = create(type);
+            if (factory != null) {
+                mFactories.put(type, factory);
+            }
+        }
+        return factory;
+    }
+
+    @Nullable
+    private MediaSource.Factory create(int type) {
+        switch (type) {
+            case C.CONTENT_TYPE_SS:
+                return new SsMediaSource.Factory(
+                        new DefaultSsChunkSource.Factory(mDataSourceFactory),
+                        mDataSourceFactory);
+            case C.CONTENT_TYPE_DASH:
+                return new DashMediaSource.Factory(
+                        new DefaultDashChunkSource.Factory(mDataSourceFactory),
+                        mDataSourceFactory);
+            case C.CONTENT_TYPE_HLS:
+                return new HlsMediaSource.Factory(mDataSourceFactory);
+            case C.CONTENT_TYPE_OTHER:
+                return new ProgressiveMediaSource.Factory(mDataSourceFactory, mExtractorsFactory);
+            default:
+                return null;
+        }
+    }
+}
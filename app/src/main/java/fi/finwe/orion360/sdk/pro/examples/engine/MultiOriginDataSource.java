@@ -0,0 +1,256 @@
+/*
+ * Copyright (c) 2022, Finwe Ltd. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package fi.finwe.orion360.sdk.pro.examples.engine;
+
+import android.net.Uri;
+import android.os.SystemClock;
+
+import androidx.annotation.Nullable;
+
+import com.google.android.exoplayer2.PlaybackException;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSourceException;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.HttpDataSource;
+import com.google.android.exoplayer2.upstream.TransferListener;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import fi.finwe.log.Logger;
+
+/**
+ * Data source that routes requests to the best origin of an OriginSelector, and fails
+ * over to the next origin without a player error.
+ * <p/>
+ * If opening a request fails, the next origin is tried. If reading fails mid-stream,
+ * the request is reopened on the next origin from the current position, and reading
+ * continues where it left off; if that origin fails too, the remaining ones are tried
+ * in turn. Only origin failures (connection errors, timeouts and HTTP 5xx) fail over;
+ * errors about the request itself, such as 404, 410 or 416, would be the same on every
+ * origin and are thrown as is. Requests to hosts that the selector does not know are
+ * passed through as is.
+ */
+final class MultiOriginDataSource implements DataSource {
+
+    /** Tag for logging. */
+    private static final String TAG = MultiOriginDataSource.class.getSimpleName();
+
+    /** Factory for multi-origin data sources. */
+    static final class Factory implements DataSource.Factory {
+
+        private final DataSource.Factory mUpstreamFactory;
+        private final OriginSelector mSelector;
+
+        Factory(DataSource.Factory upstreamFactory, OriginSelector selector) {
+            mUpstreamFactory = upstreamFactory;
+            mSelector = selector;
+        }
+
+        @Override
+        public DataSource createDataSource() {
+            return new MultiOriginDataSource(mUpstreamFactory.createDataSource(), mSelector);
+        }
+    }
+
+    private final DataSource mUpstream;
+    private final OriginSelector mSelector;
+
+    /** The opened data spec, or null if passing through. */
+    @Nullable
+    private DataSpec mDataSpec;
+
+    /** The origin of the open request, or null. */
+    @Nullable
+    private String mHost;
+
+    /** True when the upstream data source is open. */
+    private boolean mUpstreamOpen;
+
+    /** Bytes read since open. */
+    private long mBytesRead;
+
+    /** Bytes read from the current origin, and the time its request was opened. */
+    private long mHostBytesRead;
+    private long mHostOpenedMs;
+
+
+    private MultiOriginDataSource(DataSource upstream, OriginSelector selector) {
+        mUpstream = upstream;
+        mSelector = selector;
+    }
+
+    @Override
+    public void addTransferListener(TransferListener transferListener) {
+        mUpstream.addTransferListener(transferListener);
+    }
+
+    @Override
+    public long open(DataSpec dataSpec) throws IOException {
+        mBytesRead = 0;
+        if (!mSelector.handles(dataSpec.uri)) {
+            mDataSpec = null;
+            mUpstreamOpen = true;
+            return mUpstream.open(dataSpec);
+        }
+        mDataSpec = dataSpec;
+        return openOnBestOrigin(dataSpec, null);
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (null == mDataSpec) {
+            return mUpstream.read(buffer, offset, length);
+        }
+        int read;
+        int failovers = 0;
+        while (true) {
+            try {
+                read = mUpstream.read(buffer, offset, length);
+                break;
+            } catch (InterruptedIOException e) {
+                throw e;
+            } catch (IOException e) {
+                if (!isOriginFailure(e)
+                        || ++failovers >= mSelector.getOrderedHosts().size()) {
+                    throw e;
+                }
+                String failedHost = mHost;
+                Logger.logW(TAG, "Read failed on " + failedHost + " at " + mBytesRead
+                        + ", failing over: " + e);
+                mSelector.onFailure(failedHost);
+                closeUpstream(false);
+                openOnBestOrigin(mDataSpec.subrange(mBytesRead), failedHost);
+            }
+        }
+        if (read > 0) {
+            mBytesRead += read;
+            mHostBytesRead += read;
+        }
+        return read;
+    }
+
+    @Nullable
+    @Override
+    public Uri getUri() {
+        return mUpstream.getUri();
+    }
+
+    @Override
+    public Map<String, List<String>> getResponseHeaders() {
+        return mUpstreamOpen ? mUpstream.getResponseHeaders() : Collections.emptyMap();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mDataSpec = null;
+        closeUpstream(true);
+    }
+
+    /**
+     * Open the request on the best origin, trying the others if that fails.
+     *
+     * @param dataSpec the request, on any of the origins.
+     * @param excludedHost an origin that has just failed, tried last, or null.
+     * @return the length of the opened request.
+     */
+    private long openOnBestOrigin(DataSpec dataSpec, @Nullable String excludedHost)
+            throws IOException {
+        List<String> hosts = mSelector.getOrderedHosts();
+        if (excludedHost != null && hosts.remove(excludedHost)) {
+            hosts.add(excludedHost);
+        }
+        IOException lastError = null;
+        for (String host : hosts) {
+            long startMs = SystemClock.elapsedRealtime();
+            try {
+                long length = mUpstream.open(
+                        dataSpec.withUri(OriginSelector.withHost(dataSpec.uri, host)));
+                mUpstreamOpen = true;
+                mHost = host;
+                mHostBytesRead = 0;
+                mHostOpenedMs = SystemClock.elapsedRealtime();
+                mSelector.onConnected(host, mHostOpenedMs - startMs);
+                return length;
+            } catch (InterruptedIOException e) {
+                throw e;
+            } catch (IOException e) {
+                mUpstreamOpen = true;
+                closeUpstream(false);
+                if (!isOriginFailure(e)) {
+                    throw e;
+                }
+                Logger.logW(TAG, "Open failed on " + host + ": " + e);
+                lastError = e;
+                mSelector.onFailure(host);
+            }
+        }
+        throw lastError;
+    }
+
+    /**
+     * Return true if the error is specific to the origin, i.e. another origin may succeed:
+     * connection errors, timeouts and HTTP 5xx.
+     */
+    private static boolean isOriginFailure(IOException e) {
+        if (e instanceof HttpDataSource.InvalidResponseCodeException) {
+            return ((HttpDataSource.InvalidResponseCodeException) e).responseCode >= 500;
+        }
+        if (e instanceof HttpDataSource.InvalidContentTypeException) {
+            return false;
+        }
+        if (e instanceof DataSourceException && ((DataSourceException) e).reason
+                == PlaybackException.ERROR_CODE_IO_READ_POSITION_OUT_OF_RANGE) {
+            return false;
+        }
+        return true;
+    }
+
+    private void closeUpstream(boolean recordTransfer) throws IOException {
+        if (recordTransfer && mHost != null) {
+            mSelector.onTransferred(mHost, mHostBytesRead,
+                    SystemClock.elapsedRealtime() - mHostOpenedMs);
+        }
+        mHost = null;
+        if (mUpstreamOpen) {
+            mUpstreamOpen = false;
+            try {
+                mUpstream.close();
+            } catch (IOException e) {
+                if (recordTransfer) {
+                    throw e;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,330 @@
+/*
+ * Copyright (c) 2022, Finwe Ltd. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package fi.finwe.orion360.sdk.pro.examples.engine;
+
+import android.net.Uri;
+import android.os.SystemClock;
+
+import androidx.annotation.Nullable;
+
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import fi.finwe.log.Logger;
+
+/**
+ * Selects the best of several equivalent origins (e.g. CDNs) for streaming.
+ * <p/>
+ * The origins are hosts that serve the same content with the same paths. Each origin
+ * has a score from the connection times and throughputs of its requests, and becomes
+ * unhealthy for a while after a failure, with exponential backoff. Requests are routed
+ * to the healthy origin with the lowest expected time to fetch a segment; unhealthy
+ * origins are used only as a last resort. Origins can be probed cheaply with a one byte
+ * range request before playback, so that the first segments already go to the fastest.
+ * <p/>
+ * Routing and failover are done by the data sources that ExoPlayerWrapper creates when
+ * origins are set with {@link ExoPlayerWrapper#setOrigins(List)}.
+ */
+public final class OriginSelector {
+
+    /** Tag for logging. */
+    public static final String TAG = OriginSelector.class.getSimpleName();
+
+    /** Weight of a new sample in the smoothed scores. */
+    private static final float SMOOTHING = 0.3f;
+
+    /** Time an origin is avoided after its first failure, in ms; doubles per failure. */
+    private static final long FAILURE_BACKOFF_MS = 5000;
+
+    /** Maximum time an origin is avoided, in ms. */
+    private static final long MAX_FAILURE_BACKOFF_MS = 120000;
+
+    /** Segment size used for comparing origins, in bytes. */
+    private static final long REFERENCE_TRANSFER_BYTES = 1024 * 1024;
+
+    /** Threads for probing, shared by all instances. */
+    private static final ExecutorService sProbeExecutor = Executors.newCachedThreadPool();
+
+    /** Scores of one origin, as seen at the time of the call. */
+    public static final class OriginStats {
+
+        /** The origin host (and port). */
+        public final String host;
+
+        /** Smoothed time to open a connection, in ms, or -1 if not known. */
+        public final float connectTimeMs;
+
+        /** Smoothed throughput, in bits per second, or -1 if not known. */
+        public final float throughputBps;
+
+        /** Number of successful requests. */
+        public final long successCount;
+
+        /** Number of failed requests. */
+        public final long failureCount;
+
+        /** True if the origin is currently used for new requests. */
+        public final boolean healthy;
+
+        private OriginStats(Origin origin, long nowMs) {
+            host = origin.host;
+            connectTimeMs = origin.connectTimeMs;
+            throughputBps = origin.throughputBps;
+            successCount = origin.successCount;
+            failureCount = origin.failureCount;
+            healthy = origin.isHealthy(nowMs);
+        }
+
+        @Override
+        public String toString() {
+            return host + (healthy ? "" : " (unhealthy)") + ": connect " + connectTimeMs
+                    + " ms, " + throughputBps + " bps, " + successCount + " ok, "
+                    + failureCount + " failed";
+        }
+    }
+
+    /** Mutable state of one origin. Guarded by the selector. */
+    private static class Origin {
+        final String host;
+        float connectTimeMs = -1;
+        float throughputBps = -1;
+        long successCount;
+        long failureCount;
+        int consecutiveFailures;
+        long unhealthyUntilMs;
+
+        Origin(String host) {
+            this.host = host;
+        }
+
+        boolean isHealthy(long nowMs) {
+            return nowMs >= unhealthyUntilMs;
+        }
+
+        /**
+         * Expected time to open a connection and transfer a reference segment.
+         *
+         * @param defaultThroughputBps the throughput to assume if this origin has not
+         *                             been measured yet, or 0 to compare connect times only.
+         */
+        float getExpectedFetchTimeMs(float defaultThroughputBps) {
+            float connect = connectTimeMs >= 0 ? connectTimeMs : 0;
+            float throughput = throughputBps > 0 ? throughputBps : defaultThroughputBps;
+            float transfer = throughput > 0
+                    ? REFERENCE_TRANSFER_BYTES * 8 * 1000 / throughput : 0;
+            return connect + transfer;
+        }
+    }
+
+    private final List<Origin> mOrigins = new ArrayList<>();
+
+
+    /**
+     * Constructor.
+     *
+     * @param hosts the equivalent origin hosts, optionally with ports, in order of
+     *              preference until they have been measured.
+     */
+    public OriginSelector(List<String> hosts) {
+        if (hosts.isEmpty()) {
+            throw new IllegalArgumentException("No origins");
+        }
+        for (String host : hosts) {
+            mOrigins.add(new Origin(host));
+        }
+    }
+
+    /**
+     * Return true if the URI points to one of the origins.
+     *
+     * @param uri the URI.
+     * @return true if requests to the URI can be routed by this selector.
+     */
+    public synchronized boolean handles(Uri uri) {
+        String authority = uri.getEncodedAuthority();
+        for (Origin origin : mOrigins) {
+            if (origin.host.equalsIgnoreCase(authority)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Return the origins in the order they should be tried: healthy ones by expected
+     * fetch time, then unhealthy ones by the time they become healthy again.
+     * <p/>
+     * Healthy origins whose throughput has not been measured yet (e.g. ones that have
+     * only been probed) are assumed to have the mean throughput of the measured ones,
+     * so that they compete on connect time instead of getting a free transfer.
+     *
+     * @return the origin hosts.
+     */
+    public synchronized List<String> getOrderedHosts() {
+        final long nowMs = SystemClock.elapsedRealtime();
+        float throughputSum = 0;
+        int throughputCount = 0;
+        for (Origin origin : mOrigins) {
+            if (origin.isHealthy(nowMs) && origin.throughputBps > 0) {
+                throughputSum += origin.throughputBps;
+                throughputCount++;
+            }
+        }
+        final float defaultThroughputBps =
+                throughputCount > 0 ? throughputSum / throughputCount : 0;
+        List<Origin> ordered = new ArrayList<>(mOrigins);
+        Collections.sort(ordered, (a, b) -> {
+            boolean healthyA = a.isHealthy(nowMs);
+            boolean healthyB = b.isHealthy(nowMs);
+            if (healthyA != healthyB) {
+                return healthyA ? -1 : 1;
+            }
+            if (!healthyA) {
+                return Long.compare(a.unhealthyUntilMs, b.unhealthyUntilMs);
+            }
+            return Float.compare(a.getExpectedFetchTimeMs(defaultThroughputBps),
+                    b.getExpectedFetchTimeMs(defaultThroughputBps));
+        });
+        List<String> hosts = new ArrayList<>(ordered.size());
+        for (Origin origin : ordered) {
+            hosts.add(origin.host);
+        }
+        return hosts;
+    }
+
+    /** Return the current scores of all origins. */
+    public synchronized List<OriginStats> getStats() {
+        long nowMs = SystemClock.elapsedRealtime();
+        List<OriginStats> stats = new ArrayList<>(mOrigins.size());
+        for (Origin origin : mOrigins) {
+            stats.add(new OriginStats(origin, nowMs));
+        }
+        return stats;
+    }
+
+    /**
+     * Probe all origins in the background with a one byte range request for the given
+     * URI, to measure their connection times before playback.
+     *
+     * @param uri a URI on one of the origins.
+     * @param dataSourceFactory the factory for plain network data sources.
+     */
+    public void probe(final Uri uri, final DataSource.Factory dataSourceFactory) {
+        if (!handles(uri)) {
+            return;
+        }
+        for (String host : getOrderedHosts()) {
+            final DataSpec dataSpec = new DataSpec.Builder()
+                    .setUri(withHost(uri, host))
+                    .setPosition(0)
+                    .setLength(1)
+                    .build();
+            sProbeExecutor.execute(() -> {
+                DataSource source = dataSourceFactory.createDataSource();
+                long startMs = SystemClock.elapsedRealtime();
+                try {
+                    source.open(dataSpec);
+                    onConnected(host, SystemClock.elapsedRealtime() - startMs);
+                } catch (IOException e) {
+                    Logger.logD(TAG, "Probe failed for " + host + ": " + e);
+                    onFailure(host);
+                } finally {
+                    try {
+                        source.close();
+                    } catch (IOException e) {
+                        // Ignore, the probe is done.
+                    }
+                }
+            });
+        }
+    }
+
+    /** Record a successful connection to an origin. */
+    synchronized void onConnected(String host, long connectTimeMs) {
+        Origin origin = find(host);
+        if (null == origin) {
+            return;
+        }
+        origin.connectTimeMs = smooth(origin.connectTimeMs, connectTimeMs);
+        origin.successCount++;
+        origin.consecutiveFailures = 0;
+        origin.unhealthyUntilMs = 0;
+    }
+
+    /** Record a completed transfer from an origin. */
+    synchronized void onTransferred(String host, long bytes, long durationMs) {
+        Origin origin = find(host);
+        if (null == origin || durationMs <= 0 || bytes < 64 * 1024) {
+            // Small transfers measure latency rather than throughput.
+            return;
+        }
+        origin.throughputBps = smooth(origin.throughputBps, bytes * 8 * 1000f / durationMs);
+    }
+
+    /** Record a failed request to an origin, and avoid it for a while. */
+    synchronized void onFailure(String host) {
+        Origin origin = find(host);
+        if (null == origin) {
+            return;
+        }
+        origin.failureCount++;
+        origin.consecutiveFailures++;
+        long backoffMs = Math.min(MAX_FAILURE_BACKOFF_MS,
+                FAILURE_BACKOFF_MS << Math.min(16, origin.consecutiveFailures - 1));
+        origin.unhealthyUntilMs = SystemClock.elapsedRealtime() + backoffMs;
+        Logger.logW(TAG, "Origin " + host + " failed, avoiding it for " + backoffMs + " ms");
+    }
+
+    /** Return the URI with its host (and port) replaced. */
+    static Uri withHost(Uri uri, String host) {
+        return uri.buildUpon().encodedAuthority(host).build();
+    }
+
+    @Nullable
+    private Origin find(String host) {
+        for (Origin origin : mOrigins) {
+            if (origin.host.equalsIgnoreCase(host)) {
+                return origin;
+            }
+        }
+        return null;
+    }
+
+    private static float smooth(float previous, float sample) {
+        return previous < 0 ? sample : previous + SMOOTHING * (sample - previous);
+    }
+}
@@ -0,0 +1,399 @@
+/*
+ * Copyright (c) 2022, Finwe Ltd. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package fi.finwe.orion360.sdk.pro.examples.engine;
+
+import android.net.Uri;
+
+import androidx.annotation.Nullable;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.TransferListener;
+import com.google.android.exoplayer2.util.Util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import fi.finwe.log.Logger;
+
+/**
+ * Data source that downloads large files over several concurrent HTTP connections.
+ * <p/>
+ * On high-latency links a single TCP connection rarely reaches the available
+ * throughput. This data source splits the requested range into fixed size chunks,
+ * fetches up to N chunks ahead with concurrent byte-range requests, and returns the
+ * bytes strictly in order, so that the extractor (and a cache, if any) sees a normal
+ * sequential stream. Memory use is bounded to N chunks.
+ * <p/>
+ * The first chunk is streamed directly from the first connection, which also reveals
+ * the total size of the file from the Content-Range header. The concurrent requests are
+ * started only after the first chunk has been read through, so that short reads (e.g.
+ * an extractor probing the container header before seeking) cost a single request. If
+ * the server does not support ranges, or the request is small, the file is read over a
+ * single connection. Manifests and compressed responses are always read over a single
+ * connection. Chunk buffers are reused between chunks.
+ */
+final class ParallelRangeDataSource implements DataSource {
+
+    /** Tag for logging. */
+    private static final String TAG = ParallelRangeDataSource.class.getSimpleName();
+
+    /** Threads for chunk downloads, shared by all instances. */
+    private static final ExecutorService sExecutor = Executors.newCachedThreadPool(
+            new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable,
+                            "ParallelRange-" + mCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    /** Factory for parallel range data sources. */
+    static final class Factory implements DataSource.Factory {
+
+        private final DataSource.Factory mUpstreamFactory;
+        private final int mConnections;
+        private final int mChunkSizeBytes;
+
+        /**
+         * Constructor.
+         *
+         * @param upstreamFactory the factory for the HTTP data sources.
+         * @param connections the maximum number of concurrent connections per file.
+         * @param chunkSizeBytes the size of each range request, in bytes.
+         */
+        Factory(DataSource.Factory upstreamFactory, int connections, int chunkSizeBytes) {
+            mUpstreamFactory = upstreamFactory;
+            mConnections = Math.max(1, connections);
+            mChunkSizeBytes = Math.max(64 * 1024, chunkSizeBytes);
+        }
+
+        @Override
+        public DataSource createDataSource() {
+            return new ParallelRangeDataSource(mUpstreamFactory, mConnections, mChunkSizeBytes);
+        }
+    }
+
+    /** A chunk that is downloaded in the background. */
+    private static class Chunk {
+        final int length;
+        final DataSource source;
+        final byte[] buffer;
+        @Nullable Future<?> future;
+        /** True once the reader has seen the download complete. */
+        boolean done;
+        int readOffset;
+
+        Chunk(int length, DataSource source, byte[] buffer) {
+            this.length = length;
+            this.source = source;
+            this.buffer = buffer;
+        }
+    }
+
+    private final DataSource.Factory mUpstreamFactory;
+    private final int mConnections;
+    private final int mChunkSizeBytes;
+    private final List<TransferListener> mTransferListeners = new ArrayList<>();
+
+    /** Chunks ahead of the read position, in order. */
+    private final ArrayDeque<Chunk> mChunks = new ArrayDeque<>();
+
+    /** Buffers of consumed chunks, for reuse. */
+    private final ArrayDeque<byte[]> mFreeBuffers = new ArrayDeque<>();
+
+    /** The first connection; the only one when reading sequentially. */
+    @Nullable
+    private DataSource mFirstSource;
+
+    /** The opened data spec. */
+    @Nullable
+    private DataSpec mDataSpec;
+
+    /** True if the file is read over the first connection only. */
+    private boolean mSequential;
+
+    /** Bytes left to read from the first connection, in parallel mode. */
+    private long mFirstSourceRemaining;
+
+    /** Absolute position of the next byte to return. */
+    private long mPosition;
+
+    /** Absolute position where the next chunk starts. */
+    private long mNextChunkStart;
+
+    /** Absolute end position (exclusive) of the opened range. */
+    private long mEnd;
+
+
+    private ParallelRangeDataSource(DataSource.Factory upstreamFactory, int connections,
+                                    int chunkSizeBytes) {
+        mUpstreamFactory = upstreamFactory;
+        mConnections = connections;
+        mChunkSizeBytes = chunkSizeBytes;
+    }
+
+    @Override
+    public void addTransferListener(TransferListener transferListener) {
+        synchronized (mTransferListeners) {
+            if (!mTransferListeners.contains(transferListener)) {
+                mTransferListeners.add(transferListener);
+            }
+        }
+    }
+
+    @Override
+    public long open(DataSpec dataSpec) throws IOException {
+        mDataSpec = dataSpec;
+        mFirstSource = createUpstreamSource();
+        if (!canReadInParallel(dataSpec)) {
+            mSequential = true;
+            return mFirstSource.open(dataSpec);
+        }
+
+        // Open the first chunk, and find out the total size of the file.
+        long firstLength = dataSpec.length == C.LENGTH_UNSET
+                ? mChunkSizeBytes : Math.min(mChunkSizeBytes, dataSpec.length);
+        mFirstSource.open(dataSpec.subrange(0, firstLength));
+        long totalLength = getTotalLength(mFirstSource.getResponseHeaders());
+        if (totalLength == C.LENGTH_UNSET) {
+            Logger.logD(TAG, "Ranges not supported, reading over a single connection");
+            mFirstSource.close();
+            mSequential = true;
+            return mFirstSource.open(dataSpec);
+        }
+
+        mSequential = false;
+        mPosition = dataSpec.position;
+        mEnd = dataSpec.length == C.LENGTH_UNSET
+                ? totalLength : Math.min(totalLength, dataSpec.position + dataSpec.length);
+        mFirstSourceRemaining = Math.min(firstLength, mEnd - mPosition);
+        mNextChunkStart = mPosition + mFirstSourceRemaining;
+        return mEnd - mPosition;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (null == mFirstSource) {
+            throw new IOException("Data source is not open");
+        }
+        if (mSequential) {
+            return mFirstSource.read(buffer, offset, length);
+        }
+        if (length == 0) {
+            return 0;
+        }
+        if (mPosition >= mEnd) {
+            return C.RESULT_END_OF_INPUT;
+        }
+
+        int read;
+        if (mFirstSourceRemaining > 0) {
+            read = mFirstSource.read(buffer, offset,
+                    (int) Math.min(length, mFirstSourceRemaining));
+            if (read == C.RESULT_END_OF_INPUT) {
+                throw new IOException("Unexpected end of input in first chunk");
+            }
+            mFirstSourceRemaining -= read;
+        } else {
+            Chunk chunk = mChunks.peekFirst();
+            if (null == chunk) {
+                throw new IOException("No chunk at position " + mPosition);
+            }
+            awaitChunk(chunk);
+            read = Math.min(length, chunk.length - chunk.readOffset);
+            System.arraycopy(chunk.buffer, chunk.readOffset, buffer, offset, read);
+            chunk.readOffset += read;
+            if (chunk.readOffset == chunk.length) {
+                mChunks.removeFirst();
+                mFreeBuffers.addLast(chunk.buffer);
+            }
+        }
+        mPosition += read;
+        if (mFirstSourceRemaining == 0) {
+            fillWindow();
+        }
+        return read;
+    }
+
+    @Nullable
+    @Override
+    public Uri getUri() {
+        return null == mFirstSource ? null : mFirstSource.getUri();
+    }
+
+    @Override
+    public Map<String, List<String>> getResponseHeaders() {
+        return null == mFirstSource
+                ? Collections.emptyMap() : mFirstSource.getResponseHeaders();
+    }
+
+    @Override
+    public void close() throws IOException {
+        // The chunk's source belongs to its download thread, which stops at the next read
+        // when interrupted and closes the source itself; the source is not thread-safe.
+        // Buffers of chunks that were not downloaded completely may still be written to,
+        // hence only the buffers of completed chunks are reused.
+        for (Chunk chunk : mChunks) {
+            if (chunk.done) {
+                mFreeBuffers.addLast(chunk.buffer);
+            } else if (null != chunk.future) {
+                chunk.future.cancel(true);
+            }
+        }
+        mChunks.clear();
+        mDataSpec = null;
+        if (mFirstSource != null) {
+            try {
+                mFirstSource.close();
+            } finally {
+                mFirstSource = null;
+            }
+        }
+    }
+
+    private DataSource createUpstreamSource() {
+        DataSource source = mUpstreamFactory.createDataSource();
+        synchronized (mTransferListeners) {
+            for (TransferListener listener : mTransferListeners) {
+                source.addTransferListener(listener);
+            }
+        }
+        return source;
+    }
+
+    private boolean canReadInParallel(DataSpec dataSpec) {
+        String scheme = dataSpec.uri.getScheme();
+        return mConnections > 1
+                && ("http".equalsIgnoreCase(scheme) || "https".equalsIgnoreCase(scheme))
+                && dataSpec.httpMethod == DataSpec.HTTP_METHOD_GET
+                && !dataSpec.isFlagSet(DataSpec.FLAG_ALLOW_GZIP)
+                && Util.inferContentType(dataSpec.uri) == C.CONTENT_TYPE_OTHER
+                && (dataSpec.length == C.LENGTH_UNSET || dataSpec.length > mChunkSizeBytes);
+    }
+
+    /** Start chunk downloads until the window of chunks ahead is full. */
+    private void fillWindow() {
+        while (mChunks.size() < mConnections && mNextChunkStart < mEnd) {
+            final long start = mNextChunkStart;
+            final int length = (int) Math.min(mChunkSizeBytes, mEnd - start);
+            final DataSpec chunkSpec = mDataSpec.subrange(start - mDataSpec.position, length);
+            byte[] buffer = mFreeBuffers.pollFirst();
+            if (null == buffer) {
+                buffer = new byte[mChunkSizeBytes];
+            }
+            final Chunk chunk = new Chunk(length, createUpstreamSource(), buffer);
+            chunk.future = sExecutor.submit(() -> {
+                download(chunk.source, chunkSpec, chunk.buffer, length);
+                return null;
+            });
+            mChunks.addLast(chunk);
+            mNextChunkStart += length;
+        }
+    }
+
+    private static void download(DataSource source, DataSpec dataSpec, byte[] data,
+                                 int length) throws IOException {
+        try {
+            source.open(dataSpec);
+            int offset = 0;
+            while (offset < length) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedIOException();
+                }
+                int read = source.read(data, offset, length - offset);
+                if (read == C.RESULT_END_OF_INPUT) {
+                    throw new IOException("Unexpected end of input at " + offset + "/" + length);
+                }
+                offset += read;
+            }
+        } finally {
+            source.close();
+        }
+    }
+
+    private static void awaitChunk(Chunk chunk) throws IOException {
+        if (!chunk.done) {
+            try {
+                chunk.future.get();
+                chunk.done = true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                throw new IOException(cause);
+            }
+        }
+    }
+
+    /**
+     * Parse the total length of the file from a Content-Range header, e.g.
+     * "bytes 0-1048575/73400320".
+     */
+    private static long getTotalLength(Map<String, List<String>> headers) {
+        for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+            if (!"Content-Range".equalsIgnoreCase(header.getKey())
+                    || header.getValue().isEmpty()) {
+                continue;
+            }
+            String value = header.getValue().get(0);
+            int slash = value.lastIndexOf('/');
+            if (slash < 0) {
+                return C.LENGTH_UNSET;
+            }
+            try {
+                return Long.parseLong(value.substring(slash + 1).trim());
+            } catch (NumberFormatException e) {
+                return C.LENGTH_UNSET;
+            }
+        }
+        return C.LENGTH_UNSET;
+    }
+}
@@ -0,0 +1,374 @@
+/*
+ * Copyright (c) 2022, Finwe Ltd. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package fi.finwe.orion360.sdk.pro.examples.engine;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.google.android.exoplayer2.ExoPlayer;
+import com.google.android.exoplayer2.source.MediaSource;
+import com.google.android.exoplayer2.trackselection.DefaultTrackSelector;
+import com.google.android.exoplayer2.video.PlaceholderSurface;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import fi.finwe.log.Logger;
+
+/**
+ * Keeps prepared players alive across Activity and Fragment instances.
+ * <p/>
+ * A rotation or a quick app switch destroys the Activity, its OrionVideoTexture and the
+ * video player with it. When an ExoPlayerWrapper is given a session key with
+ * {@link ExoPlayerWrapper#setRetainedSession(PlaybackSessionStore, String)}, releasing it
+ * parks the prepared player here instead: paused, with its position, decoder and buffer.
+ * The next wrapper with the same key and source takes the player over and reports it
+ * prepared right away, without a rebuffer.
+ * <p/>
+ * Retained players are released after a timeout, when their estimated buffer size would
+ * exceed the memory budget (least recently retained first), and when the system asks
+ * the app to trim memory.
+ */
+public final class PlaybackSessionStore implements ComponentCallbacks2 {
+
+    /** Tag for logging. */
+    public static final String TAG = PlaybackSessionStore.class.getSimpleName();
+
+    /** Default time after which a session that has not been resumed is released, in ms. */
+    public static final long DEFAULT_RETAIN_TIMEOUT_MS = 30000;
+
+    /** Default limit for the estimated buffer size of all retained sessions, in bytes. */
+    public static final long DEFAULT_MEMORY_BUDGET_BYTES = 64L * 1024 * 1024;
+
+    /** A retained player together with everything it needs to go on. */
+    static final class Session {
+        final String uri;
+        final ExoPlayer player;
+        final DefaultTrackSelector trackSelector;
+        final MediaSource mediaSource;
+        final BufferProfile bufferProfile;
+        /** The thread that runs the player, or null if the player runs on a pool's thread. */
+        @Nullable
+        final HandlerThread playbackThread;
+        @Nullable
+        final ExoPlayerPool pool;
+        @Nullable
+        final ExoPlayerPool.PooledPlayer leasedPlayer;
+        /** The surface that keeps the decoder alive while no view is attached. */
+        @Nullable
+        final PlaceholderSurface placeholderSurface;
+        final long estimatedBytes;
+        final long retainedAtMs = SystemClock.elapsedRealtime();
+
+        final Handler handler;
+        /** Task that releases the session when it has not been resumed in time. */
+        Runnable expiryTask;
+
+        Session(String uri, ExoPlayer player, DefaultTrackSelector trackSelector,
+                MediaSource mediaSource, BufferProfile bufferProfile,
+                @Nullable HandlerThread playbackThread, @Nullable ExoPlayerPool pool,
+                @Nullable ExoPlayerPool.PooledPlayer leasedPlayer,
+                @Nullable PlaceholderSurface placeholderSurface, long estimatedBytes) {
+            this.uri = uri;
+            this.player = player;
+            this.trackSelector = trackSelector;
+            this.mediaSource = mediaSource;
+            this.bufferProfile = bufferProfile;
+            this.playbackThread = playbackThread;
+            this.pool = pool;
+            this.leasedPlayer = leasedPlayer;
+            this.placeholderSurface = placeholderSurface;
+            this.estimatedBytes = estimatedBytes;
+            handler = new Handler(player.getApplicationLooper());
+        }
+
+        /** Release the player and its resources, on the player's thread. */
+        void release() {
+            handler.post(() -> {
+                if (pool != null && leasedPlayer != null) {
+                    pool.recycle(leasedPlayer);
+                } else {
+                    player.release();
+                }
+                if (placeholderSurface != null) {
+                    placeholderSurface.release();
+                }
+                if (playbackThread != null) {
+                    playbackThread.quitSafely();
+                }
+            });
+        }
+    }
+
+    private static PlaybackSessionStore sInstance;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    /** Retained sessions by key, least recently retained first. */
+    private final LinkedHashMap<String, Session> mSessions = new LinkedHashMap<>();
+
+    private long mRetainTimeoutMs = DEFAULT_RETAIN_TIMEOUT_MS;
+    private long mMemoryBudgetBytes = DEFAULT_MEMORY_BUDGET_BYTES;
+
+    private int mResumedCount = 0;
+    private int mExpiredCount = 0;
+
+
+    private PlaybackSessionStore() {}
+
+    /**
+     * Get the shared store. It listens to memory trim requests of the application.
+     *
+     * @param context the context.
+     * @return the store.
+     */
+    public static synchronized PlaybackSessionStore getInstance(Context context) {
+        if (null == sInstance) {
+            sInstance = new PlaybackSessionStore();
+            context.getApplicationContext().registerComponentCallbacks(sInstance);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Set the time after which a session that has not been resumed is released. Keep it
+     * short: a retained player holds a decoder and a network buffer.
+     *
+     * @param timeoutMs the timeout, in ms.
+     */
+    public synchronized void setRetainTimeoutMs(long timeoutMs) {
+        mRetainTimeoutMs = timeoutMs;
+    }
+
+    /** Return the time after which a session that has not been resumed is released. */
+    public synchronized long getRetainTimeoutMs() {
+        return mRetainTimeoutMs;
+    }
+
+    /**
+     * Set the limit for the estimated buffer size of all retained sessions. Sessions over
+     * the limit are released, least recently retained first.
+     *
+     * @param bytes the limit, in bytes.
+     */
+    public void setMemoryBudgetBytes(long bytes) {
+        List<Session> evicted;
+        synchronized (this) {
+            mMemoryBudgetBytes = bytes;
+            evicted = evictOverBudget(null);
+        }
+        release(evicted);
+    }
+
+    /** Return the limit for the estimated buffer size of all retained sessions. */
+    public synchronized long getMemoryBudgetBytes() {
+        return mMemoryBudgetBytes;
+    }
+
+    /** Return the number of sessions that are currently retained. */
+    public synchronized int getRetainedCount() {
+        return mSessions.size();
+    }
+
+    /** Return the estimated buffer size of all retained sessions, in bytes. */
+    public synchronized long getRetainedBytes() {
+        long bytes = 0;
+        for (Session session : mSessions.values()) {
+            bytes += session.estimatedBytes;
+        }
+        return bytes;
+    }
+
+    /** Return the number of sessions that have been taken over by a new wrapper. */
+    public synchronized int getResumedCount() {
+        return mResumedCount;
+    }
+
+    /** Return the number of sessions that were released without being resumed. */
+    public synchronized int getExpiredCount() {
+        return mExpiredCount;
+    }
+
+    /**
+     * Release all retained sessions. Call for example when the user leaves the video
+     * for good.
+     */
+    public void releaseAll() {
+        List<Session> released;
+        synchronized (this) {
+            released = new ArrayList<>(mSessions.values());
+            mSessions.clear();
+            mExpiredCount += released.size();
+        }
+        release(released);
+    }
+
+    /**
+     * Release the session retained under the given key, if any.
+     *
+     * @param key the session key.
+     */
+    public void release(String key) {
+        Session session;
+        synchronized (this) {
+            session = mSessions.remove(key);
+            if (session != null) {
+                mExpiredCount++;
+            }
+        }
+        if (session != null) {
+            mHandler.removeCallbacks(session.expiryTask);
+            session.release();
+        }
+    }
+
+    /**
+     * Retain a session under the given key, replacing any session with the same key.
+     */
+    void retain(String key, Session session) {
+        List<Session> evicted;
+        Session replaced;
+        long timeoutMs;
+        synchronized (this) {
+            session.expiryTask = () -> expire(session);
+            replaced = mSessions.remove(key);
+            if (replaced != null) {
+                mExpiredCount++;
+            }
+            mSessions.put(key, session);
+            evicted = evictOverBudget(session);
+            timeoutMs = mRetainTimeoutMs;
+        }
+        if (replaced != null) {
+            evicted.add(replaced);
+        }
+        release(evicted);
+        if (!evicted.contains(session)) {
+            Logger.logD(TAG, "Retained session " + key + ", ~" + session.estimatedBytes
+                    + " B buffered");
+            mHandler.postDelayed(session.expiryTask, timeoutMs);
+        }
+    }
+
+    /**
+     * Take over the session retained under the given key.
+     *
+     * @return the session, or null if there is none.
+     */
+    @Nullable
+    synchronized Session claim(String key) {
+        Session session = mSessions.remove(key);
+        if (session != null) {
+            mHandler.removeCallbacks(session.expiryTask);
+            mResumedCount++;
+            Logger.logD(TAG, "Resuming session " + key + ", retained for "
+                    + (SystemClock.elapsedRealtime() - session.retainedAtMs) + " ms");
+        }
+        return session;
+    }
+
+    private void expire(Session session) {
+        boolean expired;
+        synchronized (this) {
+            expired = mSessions.values().remove(session);
+            if (expired) {
+                mExpiredCount++;
+            }
+        }
+        if (expired) {
+            Logger.logD(TAG, "Retained session expired: " + session.uri);
+            session.release();
+        }
+    }
+
+    /**
+     * Remove sessions, least recently retained first, until the rest fit in the budget.
+     * The given session goes last. Call with the store locked.
+     */
+    private List<Session> evictOverBudget(@Nullable Session keep) {
+        List<Session> evicted = new ArrayList<>();
+        long bytes = 0;
+        for (Session session : mSessions.values()) {
+            bytes += session.estimatedBytes;
+        }
+        Iterator<Session> it = mSessions.values().iterator();
+        while (bytes > mMemoryBudgetBytes && it.hasNext()) {
+            Session session = it.next();
+            if (session != keep) {
+                it.remove();
+                bytes -= session.estimatedBytes;
+                evicted.add(session);
+            }
+        }
+        if (bytes > mMemoryBudgetBytes && keep != null && mSessions.values().remove(keep)) {
+            evicted.add(keep);
+        }
+        mExpiredCount += evicted.size();
+        return evicted;
+    }
+
+    private void release(List<Session> sessions) {
+        for (Session session : sessions) {
+            mHandler.removeCallbacks(session.expiryTask);
+            session.release();
+        }
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        // The UI being hidden is the short backgrounding that sessions are retained for;
+        // anything more urgent, or the process going to the background list, is not.
+        if (level >= TRIM_MEMORY_BACKGROUND
+                || (level >= TRIM_MEMORY_RUNNING_LOW && level < TRIM_MEMORY_UI_HIDDEN)) {
+            if (getRetainedCount() > 0) {
+                Logger.logD(TAG, "Releasing retained sessions, trim memory level " + level);
+            }
+            releaseAll();
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        releaseAll();
+    }
+
+    @Override
+    public void onConfigurationChanged(@NonNull Configuration newConfig) {}
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2022, Finwe Ltd. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package fi.finwe.orion360.sdk.pro.examples.engine;
+
+/**
+ * Immutable snapshot of the player status, as seen by the player thread.
+ * <p/>
+ * ExoPlayerWrapper publishes a new snapshot whenever its state changes, and getters
+ * that are called from other threads (render thread, UI thread) read the latest one
+ * without taking any locks. While the video is playing, the position is extrapolated
+ * from the time the snapshot was taken, so that it need not be republished every frame.
+ */
+final class PlaybackSnapshot {
+
+    /** Snapshot for a player that does not exist (yet, or anymore). */
+    static final PlaybackSnapshot RELEASED = new PlaybackSnapshot(
+            true, false, false, false, 1.0f, -1, -1, 0, 0);
+
+    /** True if the player is in END state. */
+    final boolean released;
+
+    /** True if the player is prepared and not in an error state. */
+    final boolean inPlaybackState;
+
+    /** True if the player will play when it is ready. */
+    final boolean playWhenReady;
+
+    /** True if the position is advancing (playing and not buffering). */
+    final boolean advancing;
+
+    /** Playback speed, used for extrapolating the position. */
+    final float speed;
+
+    /** Video position at the time of the snapshot in ms, or -1 if not known. */
+    final long positionMs;
+
+    /** Video duration in ms, or -1 if not known. */
+    final long durationMs;
+
+    /** Buffered percentage of the media. */
+    final int bufferedPercentage;
+
+    /** Time when the snapshot was taken, in elapsed realtime ms. */
+    final long timestampMs;
+
+    /** Offset from the live edge in ms, or -1 if not playing a live stream. */
+    final long liveOffsetMs;
+
+
+    PlaybackSnapshot(boolean released, boolean inPlaybackState, boolean playWhenReady,
+                     boolean advancing, float speed, long positionMs, long durationMs,
+                     int bufferedPercentage, long timestampMs) {
+        this(released, inPlaybackState, playWhenReady, advancing, speed, positionMs,
+                durationMs, bufferedPercentage, timestampMs, -1);
+    }
+
+    PlaybackSnapshot(boolean released, boolean inPlaybackState, boolean playWhenReady,
+                     boolean advancing, float speed, long positionMs, long durationMs,
+                     int bufferedPercentage, long timestampMs, long liveOffsetMs) {
+        this.released = released;
+        this.inPlaybackState = inPlaybackState;
+        this.playWhenReady = playWhenReady;
+        this.advancing = advancing;
+        this.speed = speed;
+        this.positionMs = positionMs;
+        this.durationMs = durationMs;
+        this.bufferedPercentage = bufferedPercentage;
+        this.timestampMs = timestampMs;
+        this.liveOffsetMs = liveOffsetMs;
+    }
+
+    /**
+     * Return the video position at the given time.
+     *
+     * @param nowMs the current time, in elapsed realtime ms.
+     * @return the position in ms, or -1 if not known.
+     */
+    long getPositionAt(long nowMs) {
+        if (positionMs < 0 || durationMs < 0) {
+            return -1;
+        }
+        long position = positionMs;
+        if (advancing && nowMs > timestampMs) {
+            position += (long) ((nowMs - timestampMs) * speed);
+        }
+        return Math.min(position, durationMs);
+    }
+
+    /**
+     * Return the offset from the live edge at the given time. The live edge advances in
+     * real time, so the offset grows while paused and shrinks when playing faster than 1.0.
+     *
+     * @param nowMs the current time, in elapsed realtime ms.
+     * @return the offset in ms, or -1 if not playing a live stream.
+     */
+    long getLiveOffsetAt(long nowMs) {
+        if (liveOffsetMs < 0) {
+            return -1;
+        }
+        long offset = liveOffsetMs;
+        if (nowMs > timestampMs) {
+            float progress = advancing ? speed : 0.0f;
+            offset += Math.round((nowMs - timestampMs) * (1.0 - progress));
+        }
+        return Math.max(0, offset);
+    }
+}
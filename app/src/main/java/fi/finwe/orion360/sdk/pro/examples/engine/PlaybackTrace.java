@@ -0,0 +1,283 @@
+/*
+ * Copyright (c) 2022, Finwe Ltd. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package fi.finwe.orion360.sdk.pro.examples.engine;
+
+import android.os.SystemClock;
+import android.os.Trace;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+
+import fi.finwe.log.Logger;
+
+/**
+ * Low-overhead trace of playback events, for production diagnostics.
+ * <p/>
+ * Events are typed: an event id, a timestamp and up to two primitive arguments. They are
+ * written to a preallocated ring buffer, so recording an event neither allocates nor builds
+ * strings; the oldest events are overwritten when the buffer is full. The buffer is turned
+ * into text only when it is dumped, see {@link #dump(File)}.
+ * <p/>
+ * Optionally, the player's state machine steps are also shown as systrace sections, see
+ * {@link #setSystraceEnabled(boolean)}. Section names must be string constants.
+ */
+public final class PlaybackTrace {
+
+    /** Tag for logging. */
+    public static final String TAG = PlaybackTrace.class.getSimpleName();
+
+    /** A player state machine step, see {@link #traceStep(String, Step)}. */
+    public interface Step {
+        boolean run();
+    }
+
+    /** Default number of events kept in the ring buffer. */
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    /** ExoPlayer playback state changed; arg0 = Player.STATE_*. */
+    public static final int PLAYER_STATE = 0;
+    /** Play when ready changed; arg0 = 1 if playing when ready, arg1 = reason. */
+    public static final int PLAY_WHEN_READY = 1;
+    /** Loading started or stopped; arg0 = 1 if loading. */
+    public static final int LOADING = 2;
+    /** Media load started; arg0 = C.DATA_TYPE_*, arg1 = track bitrate in bps. */
+    public static final int LOAD_STARTED = 3;
+    /** Media load completed; arg0 = bytes loaded, arg1 = load duration in ms. */
+    public static final int LOAD_COMPLETED = 4;
+    /** Media load canceled; arg0 = C.DATA_TYPE_*. */
+    public static final int LOAD_CANCELED = 5;
+    /** Media load failed; arg0 = C.DATA_TYPE_*, arg1 = 1 if canceled. */
+    public static final int LOAD_ERROR = 6;
+    /** Downstream format changed; arg0 = bitrate in bps, arg1 = video height in pixels. */
+    public static final int FORMAT_CHANGED = 7;
+    /** Video frames dropped; arg0 = frame count, arg1 = elapsed time in ms. */
+    public static final int DROPPED_FRAMES = 8;
+    /** Buffered percentage changed; arg0 = from, arg1 = to. */
+    public static final int BUFFER_PERCENT = 9;
+    /** Buffering indicator poll; arg0 = video position in ms. */
+    public static final int BUFFERING_POLL = 10;
+    /** Retry scheduled after a player error; arg0 = attempt, arg1 = delay in ms. */
+    public static final int RECOVERY_RETRY = 11;
+    /** Recovered from a player error; arg0 = recovery count, arg1 = latency in ms. */
+    public static final int RECOVERY_DONE = 12;
+    /** Looped back to the start of the video; arg0 = playlist index. */
+    public static final int LOOP = 13;
+    /** View surface detached; arg0 = 1 if the decoder is kept alive on a placeholder. */
+    public static final int SURFACE_DETACHED = 14;
+    /** View surface attached; arg0 = 1 if re-attached to a kept-alive decoder. */
+    public static final int SURFACE_ATTACHED = 15;
+
+    private static final String[] EVENT_NAMES = {
+            "PLAYER_STATE", "PLAY_WHEN_READY", "LOADING", "LOAD_STARTED", "LOAD_COMPLETED",
+            "LOAD_CANCELED", "LOAD_ERROR", "FORMAT_CHANGED", "DROPPED_FRAMES",
+            "BUFFER_PERCENT", "BUFFERING_POLL", "RECOVERY_RETRY", "RECOVERY_DONE",
+            "LOOP", "SURFACE_DETACHED", "SURFACE_ATTACHED"
+    };
+
+    /** Number of longs per event: timestamp, id, arg0, arg1. */
+    private static final int STRIDE = 4;
+
+    /** Shared trace. */
+    private static final PlaybackTrace sInstance = new PlaybackTrace(DEFAULT_CAPACITY);
+
+    /** Event slots, STRIDE longs each. */
+    private final long[] mBuffer;
+
+    /** Number of event slots. */
+    private final int mCapacity;
+
+    /** Total number of events recorded; the next slot is mCount % mCapacity. */
+    private long mCount = 0;
+
+    private volatile boolean mEnabled = true;
+    private volatile boolean mSystraceEnabled = false;
+
+
+    PlaybackTrace(int capacity) {
+        mCapacity = Math.max(1, capacity);
+        mBuffer = new long[mCapacity * STRIDE];
+    }
+
+    /** Return the shared trace. */
+    public static PlaybackTrace getInstance() {
+        return sInstance;
+    }
+
+    /** Set whether events are recorded; enabled by default. */
+    public void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /** Set whether state machine steps are shown as systrace sections; disabled by default. */
+    public void setSystraceEnabled(boolean enabled) {
+        mSystraceEnabled = enabled;
+    }
+
+    public boolean isSystraceEnabled() {
+        return mSystraceEnabled;
+    }
+
+    /**
+     * Record an event. Does not allocate.
+     *
+     * @param id the event id, one of the event constants.
+     * @param arg0 the first argument.
+     * @param arg1 the second argument.
+     */
+    public void record(int id, long arg0, long arg1) {
+        if (!mEnabled) {
+            return;
+        }
+        long timeNs = SystemClock.elapsedRealtimeNanos();
+        synchronized (mBuffer) {
+            int offset = (int) (mCount % mCapacity) * STRIDE;
+            mBuffer[offset] = timeNs;
+            mBuffer[offset + 1] = id;
+            mBuffer[offset + 2] = arg0;
+            mBuffer[offset + 3] = arg1;
+            mCount++;
+        }
+    }
+
+    public void record(int id, long arg0) {
+        record(id, arg0, 0);
+    }
+
+    /**
+     * Begin a systrace section, if systrace sections are enabled. Pair with
+     * {@link #endSection()} on the same thread.
+     *
+     * @param name the section name; a string constant, so that nothing is allocated.
+     */
+    public void beginSection(String name) {
+        if (mSystraceEnabled) {
+            Trace.beginSection(name);
+        }
+    }
+
+    /** End the systrace section that was begun last on this thread. */
+    public void endSection() {
+        if (mSystraceEnabled) {
+            Trace.endSection();
+        }
+    }
+
+    /**
+     * Run a player state machine step inside a systrace section, if systrace sections are
+     * enabled.
+     *
+     * @param name the section name; a string constant, so that nothing is allocated.
+     * @param step the step.
+     * @return the result of the step.
+     */
+    public boolean traceStep(String name, Step step) {
+        beginSection(name);
+        try {
+            return step.run();
+        } finally {
+            endSection();
+        }
+    }
+
+    /** Return the number of events that are currently in the buffer. */
+    public int size() {
+        synchronized (mBuffer) {
+            return (int) Math.min(mCount, mCapacity);
+        }
+    }
+
+    /** Discard all recorded events. */
+    public void clear() {
+        synchronized (mBuffer) {
+            mCount = 0;
+        }
+    }
+
+    /**
+     * Write the recorded events to a file as text, oldest first. One line per event:
+     * elapsed realtime in microseconds, event name and the two arguments.
+     *
+     * @param file the file; overwritten.
+     * @return true if the file was written.
+     */
+    public boolean dump(File file) {
+        try (Writer writer = new FileWriter(file)) {
+            dump(writer);
+            Logger.logD(TAG, "Dumped " + size() + " trace events to " + file);
+            return true;
+        } catch (IOException e) {
+            Logger.logE(TAG, "Failed to dump trace to " + file, e);
+            return false;
+        }
+    }
+
+    /**
+     * Write the recorded events as text, oldest first.
+     *
+     * @param writer the writer; not closed.
+     */
+    public void dump(Writer writer) {
+        long[] events;
+        int count;
+        synchronized (mBuffer) {
+            // Copy first, so that recording is not blocked while the text is written.
+            count = (int) Math.min(mCount, mCapacity);
+            int first = (int) ((mCount - count) % mCapacity);
+            events = new long[count * STRIDE];
+            for (int i = 0; i < count; i++) {
+                System.arraycopy(mBuffer, ((first + i) % mCapacity) * STRIDE,
+                        events, i * STRIDE, STRIDE);
+            }
+        }
+        PrintWriter out = new PrintWriter(writer);
+        for (int i = 0; i < count; i++) {
+            int offset = i * STRIDE;
+            out.print(events[offset] / 1000);
+            out.print(' ');
+            out.print(getEventName((int) events[offset + 1]));
+            out.print(' ');
+            out.print(events[offset + 2]);
+            out.print(' ');
+            out.println(events[offset + 3]);
+        }
+        out.flush();
+    }
+
+    private static String getEventName(int id) {
+        return id >= 0 && id < EVENT_NAMES.length ? EVENT_NAMES[id] : "EVENT_" + id;
+    }
+}
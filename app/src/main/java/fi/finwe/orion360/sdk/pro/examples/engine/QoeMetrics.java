@@ -0,0 +1,324 @@
+/*
+ * Copyright (c) 2022, Finwe Ltd. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package fi.finwe.orion360.sdk.pro.examples.engine;
+
+import java.util.Arrays;
+
+/**
+ * Quality of experience metrics for one ExoPlayerWrapper.
+ * <p/>
+ * Collects time-to-first-frame and startup phases, rebuffering, dropped frames, bitrate
+ * switches and decoder initialization times from player events. Recording an event does
+ * not allocate; memory is allocated only when a {@link Snapshot} is requested.
+ * <p/>
+ * A session starts when a player is created or a video source is set, and ends when the
+ * player is released or another source is set. Use {@link #getSnapshot(long)} for live
+ * values during a session, and {@link #getLastSessionSummary()} for the previous session.
+ * All times are in elapsed realtime milliseconds.
+ */
+public final class QoeMetrics {
+
+    /** Lower bounds of the dropped frame histogram buckets (frames per drop event). */
+    public static final int[] DROPPED_FRAME_BUCKETS = {1, 2, 5, 10, 20, 50};
+
+    /** Number of bitrate switches that are kept in the history. */
+    public static final int BITRATE_HISTORY_SIZE = 32;
+
+    /** Immutable copy of the metrics. Times that are not (yet) known are -1. */
+    public static final class Snapshot {
+
+        /** Time from session start to the first rendered frame. */
+        public final long timeToFirstFrameMs;
+
+        /** Startup phase: from session start to the start of preparing. */
+        public final long setupPhaseMs;
+
+        /** Startup phase: from the start of preparing until ready to play. */
+        public final long preparePhaseMs;
+
+        /** Startup phase: from ready to play until the first rendered frame. */
+        public final long firstFramePhaseMs;
+
+        /** Number of rebuffering events, excluding initial buffering and seeks. */
+        public final int rebufferCount;
+
+        /** Total time spent rebuffering. */
+        public final long rebufferTimeMs;
+
+        /** Total time spent playing. */
+        public final long playTimeMs;
+
+        /** Rebuffering time / (playing time + rebuffering time), 0..1. */
+        public final float rebufferRatio;
+
+        /** Total number of dropped video frames. */
+        public final long droppedFrames;
+
+        /** Number of drop events per bucket, see DROPPED_FRAME_BUCKETS. */
+        public final int[] droppedFrameHistogram;
+
+        /** Number of audio underruns. */
+        public final int audioUnderruns;
+
+        /** Total number of video format (bitrate) switches. */
+        public final int bitrateSwitchCount;
+
+        /** Times of the latest bitrate switches, oldest first. */
+        public final long[] bitrateSwitchTimesMs;
+
+        /** Bitrates of the latest switches in bps (-1 if unknown), oldest first. */
+        public final int[] bitrateSwitchBitrates;
+
+        /** Video widths of the latest switches, oldest first. */
+        public final int[] bitrateSwitchWidths;
+
+        /** Video heights of the latest switches, oldest first. */
+        public final int[] bitrateSwitchHeights;
+
+        /** Latest video decoder initialization duration. */
+        public final long videoDecoderInitMs;
+
+        /** Latest audio decoder initialization duration. */
+        public final long audioDecoderInitMs;
+
+        private Snapshot(QoeMetrics m, long nowMs) {
+            timeToFirstFrameMs = elapsed(m.mSessionStartMs, m.mFirstFrameMs);
+            setupPhaseMs = elapsed(m.mSessionStartMs, m.mPrepareStartMs);
+            preparePhaseMs = elapsed(m.mPrepareStartMs, m.mPreparedMs);
+            firstFramePhaseMs = elapsed(m.mPreparedMs, m.mFirstFrameMs);
+            rebufferCount = m.mRebufferCount;
+            rebufferTimeMs = m.mRebufferTimeMs
+                    + (m.mRebuffering ? nowMs - m.mBufferingStartMs : 0);
+            playTimeMs = m.mPlayTimeMs + (m.mPlaying ? nowMs - m.mPlayStartMs : 0);
+            rebufferRatio = (playTimeMs + rebufferTimeMs) > 0
+                    ? (float) rebufferTimeMs / (playTimeMs + rebufferTimeMs) : 0.0f;
+            droppedFrames = m.mDroppedFrames;
+            droppedFrameHistogram = m.mDroppedFrameHistogram.clone();
+            audioUnderruns = m.mAudioUnderruns;
+            bitrateSwitchCount = m.mBitrateSwitchCount;
+            int count = Math.min(m.mBitrateSwitchCount, BITRATE_HISTORY_SIZE);
+            bitrateSwitchTimesMs = new long[count];
+            bitrateSwitchBitrates = new int[count];
+            bitrateSwitchWidths = new int[count];
+            bitrateSwitchHeights = new int[count];
+            int first = m.mBitrateSwitchCount - count;
+            for (int i = 0; i < count; i++) {
+                int slot = (first + i) % BITRATE_HISTORY_SIZE;
+                bitrateSwitchTimesMs[i] = m.mSwitchTimesMs[slot];
+                bitrateSwitchBitrates[i] = m.mSwitchBitrates[slot];
+                bitrateSwitchWidths[i] = m.mSwitchWidths[slot];
+                bitrateSwitchHeights[i] = m.mSwitchHeights[slot];
+            }
+            videoDecoderInitMs = m.mVideoDecoderInitMs;
+            audioDecoderInitMs = m.mAudioDecoderInitMs;
+        }
+
+        private static long elapsed(long fromMs, long toMs) {
+            return (fromMs < 0 || toMs < 0) ? -1 : toMs - fromMs;
+        }
+
+        @Override
+        public String toString() {
+            return "QoE{ttff=" + timeToFirstFrameMs + " ms (setup " + setupPhaseMs
+                    + ", prepare " + preparePhaseMs + ", first frame " + firstFramePhaseMs
+                    + "), rebuffers=" + rebufferCount + " (" + rebufferTimeMs + " ms, ratio "
+                    + rebufferRatio + "), play=" + playTimeMs + " ms, dropped=" + droppedFrames
+                    + ", underruns=" + audioUnderruns + ", switches=" + bitrateSwitchCount
+                    + ", decoder init video=" + videoDecoderInitMs + " ms audio="
+                    + audioDecoderInitMs + " ms}";
+        }
+    }
+
+    private long mSessionStartMs = -1;
+    private long mPrepareStartMs = -1;
+    private long mPreparedMs = -1;
+    private long mFirstFrameMs = -1;
+
+    private boolean mReadyOnce = false;
+    private boolean mSeeking = false;
+    private boolean mRebuffering = false;
+    private long mBufferingStartMs = 0;
+    private int mRebufferCount = 0;
+    private long mRebufferTimeMs = 0;
+
+    private boolean mPlaying = false;
+    private long mPlayStartMs = 0;
+    private long mPlayTimeMs = 0;
+
+    private long mDroppedFrames = 0;
+    private final int[] mDroppedFrameHistogram = new int[DROPPED_FRAME_BUCKETS.length];
+    private int mAudioUnderruns = 0;
+
+    private int mBitrateSwitchCount = 0;
+    private final long[] mSwitchTimesMs = new long[BITRATE_HISTORY_SIZE];
+    private final int[] mSwitchBitrates = new int[BITRATE_HISTORY_SIZE];
+    private final int[] mSwitchWidths = new int[BITRATE_HISTORY_SIZE];
+    private final int[] mSwitchHeights = new int[BITRATE_HISTORY_SIZE];
+
+    private long mVideoDecoderInitMs = -1;
+    private long mAudioDecoderInitMs = -1;
+
+    private Snapshot mLastSessionSummary = null;
+
+
+    /**
+     * Get live values of the current session.
+     *
+     * @param nowMs the current time.
+     * @return the snapshot.
+     */
+    public synchronized Snapshot getSnapshot(long nowMs) {
+        return new Snapshot(this, nowMs);
+    }
+
+    /** Return the summary of the previous session, or null if no session has ended yet. */
+    public synchronized Snapshot getLastSessionSummary() {
+        return mLastSessionSummary;
+    }
+
+    /** Start a session, unless one is already running. */
+    synchronized void onSessionStart(long nowMs) {
+        if (mSessionStartMs < 0) {
+            mSessionStartMs = nowMs;
+        }
+    }
+
+    /**
+     * End the current session and keep its summary.
+     *
+     * @return the summary, or null if no session was running.
+     */
+    synchronized Snapshot onSessionEnd(long nowMs) {
+        if (mSessionStartMs < 0) {
+            return null;
+        }
+        mLastSessionSummary = new Snapshot(this, nowMs);
+        reset();
+        return mLastSessionSummary;
+    }
+
+    synchronized void onPrepareStart(long nowMs) {
+        mPrepareStartMs = nowMs;
+        mPreparedMs = -1;
+        mReadyOnce = false;
+    }
+
+    synchronized void onSeekStart() {
+        mSeeking = true;
+    }
+
+    synchronized void onBuffering(long nowMs) {
+        if (mReadyOnce && !mSeeking && !mRebuffering) {
+            mRebuffering = true;
+            mBufferingStartMs = nowMs;
+            mRebufferCount++;
+        }
+    }
+
+    synchronized void onReady(long nowMs) {
+        if (!mReadyOnce) {
+            mReadyOnce = true;
+            if (mPreparedMs < 0) {
+                mPreparedMs = nowMs;
+            }
+        }
+        if (mRebuffering) {
+            mRebuffering = false;
+            mRebufferTimeMs += nowMs - mBufferingStartMs;
+        }
+        mSeeking = false;
+    }
+
+    synchronized void onIsPlayingChanged(boolean playing, long nowMs) {
+        if (playing && !mPlaying) {
+            mPlayStartMs = nowMs;
+        } else if (!playing && mPlaying) {
+            mPlayTimeMs += nowMs - mPlayStartMs;
+        }
+        mPlaying = playing;
+    }
+
+    synchronized void onFirstFrame(long nowMs) {
+        if (mFirstFrameMs < 0) {
+            mFirstFrameMs = nowMs;
+        }
+    }
+
+    synchronized void onDroppedFrames(int count) {
+        mDroppedFrames += count;
+        int bucket = 0;
+        while (bucket + 1 < DROPPED_FRAME_BUCKETS.length
+                && count >= DROPPED_FRAME_BUCKETS[bucket + 1]) {
+            bucket++;
+        }
+        mDroppedFrameHistogram[bucket]++;
+    }
+
+    synchronized void onAudioUnderrun() {
+        mAudioUnderruns++;
+    }
+
+    synchronized void onVideoFormatChanged(int bitrate, int width, int height, long nowMs) {
+        int slot = mBitrateSwitchCount % BITRATE_HISTORY_SIZE;
+        mSwitchTimesMs[slot] = nowMs;
+        mSwitchBitrates[slot] = bitrate;
+        mSwitchWidths[slot] = width;
+        mSwitchHeights[slot] = height;
+        mBitrateSwitchCount++;
+    }
+
+    synchronized void onVideoDecoderInitialized(long durationMs) {
+        mVideoDecoderInitMs = durationMs;
+    }
+
+    synchronized void onAudioDecoderInitialized(long durationMs) {
+        mAudioDecoderInitMs = durationMs;
+    }
+
+    private void reset() {
+        mSessionStartMs = -1;
+        mPrepareStartMs = -1;
+        mPreparedMs = -1;
+        mFirstFrameMs = -1;
+        mReadyOnce = false;
+        mSeeking = false;
+        mRebuffering = false;
+        mRebufferCount = 0;
+        mRebufferTimeMs = 0;
+        mPlaying = false;
+        mPlayTimeMs = 0;
+        mDroppedFrames = 0;
+        Arrays.fill(mDroppedFrameHistogram, 0);
+        mAudioUnderruns = 0;
+        mBitrateSwitchCount = 0;
+        mVideoDecoderInitMs = -1;
+        mAudioDecoderInitMs = -1;
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2022, Finwe Ltd. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package fi.finwe.orion360.sdk.pro.examples.engine;
+
+import android.graphics.RectF;
+
+/**
+ * Splits a full spherical (360x180) equirectangular panorama into a grid of tiles.
+ * <p/>
+ * Tile indices run row by row from the top-left corner. Sphere rects follow the
+ * convention of OrionPanorama.bindTexture(): left and right are longitudes from -180
+ * to 180 degrees, top and bottom are latitudes from 90 to -90 degrees. Texture rects
+ * tell the part of a full-frame texture that covers the tile, with the top edge at 1.0.
+ */
+public final class TileGrid {
+
+    /** Texture rect for a tile stream that contains only the tile. */
+    public static final RectF FULL_TEXTURE = new RectF(0.0f, 1.0f, 1.0f, 0.0f);
+
+    /** The number of tile columns. */
+    private final int mColumns;
+
+    /** The number of tile rows. */
+    private final int mRows;
+
+    /** Tile width, in degrees of longitude. */
+    private final float mTileWidthDeg;
+
+    /** Tile height, in degrees of latitude. */
+    private final float mTileHeightDeg;
+
+
+    /**
+     * Constructor.
+     *
+     * @param columns the number of tile columns.
+     * @param rows the number of tile rows.
+     */
+    public TileGrid(int columns, int rows) {
+        if (columns < 1 || rows < 1) {
+            throw new IllegalArgumentException("Invalid tile grid: " + columns + "x" + rows);
+        }
+        mColumns = columns;
+        mRows = rows;
+        mTileWidthDeg = 360.0f / columns;
+        mTileHeightDeg = 180.0f / rows;
+    }
+
+    public int getColumns() {
+        return mColumns;
+    }
+
+    public int getRows() {
+        return mRows;
+    }
+
+    public int getTileCount() {
+        return mColumns * mRows;
+    }
+
+    /**
+     * Return the part of the sphere that the tile covers.
+     *
+     * @param index the tile index.
+     * @return the sphere rect, in degrees.
+     */
+    public RectF getSphereRect(int index) {
+        int column = index % mColumns;
+        int row = index / mColumns;
+        float left = -180.0f + column * mTileWidthDeg;
+        float top = 90.0f - row * mTileHeightDeg;
+        return new RectF(left, top, left + mTileWidthDeg, top - mTileHeightDeg);
+    }
+
+    /**
+     * Return the part of a full-frame equirectangular texture that covers the tile.
+     *
+     * @param index the tile index.
+     * @return the texture rect.
+     */
+    public RectF getTextureRect(int index) {
+        int column = index % mColumns;
+        int row = index / mColumns;
+        return new RectF((float) column / mColumns, 1.0f - (float) row / mRows,
+                (float) (column + 1) / mColumns, 1.0f - (float) (row + 1) / mRows);
+    }
+
+    /**
+     * Find the tiles that intersect the viewing area, extended by a margin on every side.
+     * Near the poles the longitude span of the view widens, and when the view covers a
+     * pole every tile around it is considered visible.
+     *
+     * @param yawDeg the longitude of the view center, in degrees.
+     * @param pitchDeg the latitude of the view center, in degrees.
+     * @param horizontalFovDeg the horizontal field of view, in degrees.
+     * @param verticalFovDeg the vertical field of view, in degrees.
+     * @param marginDeg the margin to add around the view, in degrees.
+     * @param visible receives true for each visible tile; length must be the tile count.
+     * @return the number of visible tiles.
+     */
+    public int findVisibleTiles(float yawDeg, float pitchDeg, float horizontalFovDeg,
+                                float verticalFovDeg, float marginDeg, boolean[] visible) {
+        float latTop = pitchDeg + verticalFovDeg / 2 + marginDeg;
+        float latBottom = pitchDeg - verticalFovDeg / 2 - marginDeg;
+        float halfSpan;
+        if (latTop >= 90.0f || latBottom <= -90.0f) {
+            halfSpan = 180.0f;
+        } else {
+            double maxLat = Math.toRadians(Math.max(Math.abs(latTop), Math.abs(latBottom)));
+            halfSpan = (float) Math.min(180.0,
+                    (horizontalFovDeg / 2 + marginDeg) / Math.cos(maxLat));
+        }
+
+        int count = 0;
+        for (int i = 0; i < getTileCount(); i++) {
+            RectF rect = getSphereRect(i);
+            boolean rowVisible = rect.bottom < latTop && rect.top > latBottom;
+            float centerDistance = Math.abs(wrapDeg(rect.centerX() - yawDeg));
+            boolean columnVisible = centerDistance < halfSpan + mTileWidthDeg / 2;
+            visible[i] = rowVisible && columnVisible;
+            if (visible[i]) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Return the angle between the view center and the tile center. Used for choosing
+     * the most important tiles when not all visible tiles can be decoded.
+     *
+     * @param index the tile index.
+     * @param yawDeg the longitude of the view center, in degrees.
+     * @param pitchDeg the latitude of the view center, in degrees.
+     * @return the angle, in degrees.
+     */
+    public float getAngularDistance(int index, float yawDeg, float pitchDeg) {
+        RectF rect = getSphereRect(index);
+        double lat1 = Math.toRadians(pitchDeg);
+        double lat2 = Math.toRadians(rect.centerY());
+        double deltaLon = Math.toRadians(wrapDeg(rect.centerX() - yawDeg));
+        double cos = Math.sin(lat1) * Math.sin(lat2)
+                + Math.cos(lat1) * Math.cos(lat2) * Math.cos(deltaLon);
+        return (float) Math.toDegrees(Math.acos(Math.max(-1.0, Math.min(1.0, cos))));
+    }
+
+    /** Wrap an angle to range [-180, 180). */
+    private static float wrapDeg(float deg) {
+        float wrapped = (deg + 180.0f) % 360.0f;
+        if (wrapped < 0) {
+            wrapped += 360.0f;
+        }
+        return wrapped - 180.0f;
+    }
+}
@@ -0,0 +1,436 @@
+/*
+ * Copyright (c) 2022, Finwe Ltd. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package fi.finwe.orion360.sdk.pro.examples.engine;
+
+import android.content.Context;
+import android.graphics.RectF;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import fi.finwe.log.Logger;
+import fi.finwe.orion360.sdk.pro.OrionContext;
+import fi.finwe.orion360.sdk.pro.item.OrionPanorama;
+import fi.finwe.orion360.sdk.pro.texture.OrionVideoTexture;
+
+/**
+ * Plays viewport-dependent tiled 360 video.
+ * <p/>
+ * The panorama is split into a grid of tiles that are encoded as independent video
+ * streams, plus a low resolution base layer that covers the whole sphere. Every tile
+ * area of the panorama is always bound to a texture: either to the tile's own high
+ * quality stream, or to the matching part of the base layer. Only the tiles that
+ * intersect the view (plus a margin) are streamed, up to a decoder budget, so that the
+ * visible area gets the sharpness of a much bigger equirect with the bandwidth and the
+ * decoders of a mid-range phone.
+ * <p/>
+ * A tile switches to high quality only after it has been seeked to the base layer's
+ * position and that seek has completed, and back to the base layer before its player
+ * is released, so there are never holes or out-of-sync frames in the panorama. The base layer is the master clock: tile players follow its play/pause
+ * state and are re-seeked when they drift too far from it. Tiles are muted.
+ * <p/>
+ * All methods must be called from the main thread.
+ */
+public class TiledVideoController {
+
+    /** Tag for logging. */
+    public static final String TAG = TiledVideoController.class.getSimpleName();
+
+    /** Default number of tile streams that can be decoded at the same time. */
+    private static final int DEFAULT_MAX_ACTIVE_TILES = 4;
+
+    /** Default margin around the view where tiles are fetched ahead, in degrees. */
+    private static final float DEFAULT_MARGIN_DEG = 15.0f;
+
+    /** Time to keep a tile after it has left the view, to avoid churn (in ms). */
+    private static final long TILE_KEEP_ALIVE_MS = 1500;
+
+    /** Interval for checking tile synchronization (in ms). */
+    private static final long SYNC_INTERVAL_MS = 500;
+
+    /** Maximum allowed position difference between a tile and the base layer (in ms). */
+    private static final long MAX_DRIFT_MS = 250;
+
+    /** A tile and its high quality stream. */
+    private static class Tile {
+
+        /** Tile stream URI, or null if the tile has no stream of its own. */
+        String uri;
+
+        /** The part of the tile stream's texture that covers the tile. */
+        RectF textureRect = TileGrid.FULL_TEXTURE;
+
+        /** The player of an active tile, or null. */
+        ExoPlayerWrapper player;
+
+        /** The texture of an active tile, or null. */
+        OrionVideoTexture texture;
+
+        /** True when the tile is bound to its own texture instead of the base layer. */
+        boolean highQuality;
+
+        /** True from the initial seek to the base layer position until it has completed. */
+        boolean syncSeekPending;
+
+        /** The last time the tile was wanted for the view, in elapsed realtime ms. */
+        long lastWantedMs;
+    }
+
+    /** Android context. */
+    private final Context mContext;
+
+    /** Orion360 context. */
+    private final OrionContext mOrionContext;
+
+    /** The panorama where the tiles are bound to. */
+    private final OrionPanorama mPanorama;
+
+    /** The tile grid. */
+    private final TileGrid mGrid;
+
+    /** The tiles. */
+    private final Tile[] mTiles;
+
+    /** Visibility of each tile, reused between updates. */
+    private final boolean[] mVisible;
+
+    /** The base layer texture. */
+    private final OrionVideoTexture mBaseTexture;
+
+    /** Main thread handler. */
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    /** Maximum number of active tile streams. */
+    private int mMaxActiveTiles = DEFAULT_MAX_ACTIVE_TILES;
+
+    /** Margin around the view, in degrees. */
+    private float mMarginDeg = DEFAULT_MARGIN_DEG;
+
+    /** Concurrent connections per tile stream; 1 disables. */
+    private int mParallelConnections = 1;
+
+    /** Size of each range request of a tile stream, in bytes. */
+    private int mParallelChunkSizeBytes;
+
+    /** True when the base layer is playing. */
+    private boolean mPlaying = false;
+
+    /** True after release. */
+    private boolean mReleased = false;
+
+
+    /**
+     * Constructor. Binds the base layer to every tile of the panorama and starts it.
+     *
+     * @param context the Android context.
+     * @param orionContext the Orion360 context.
+     * @param panorama the panorama where the tiles will be bound to.
+     * @param grid the tile grid.
+     * @param baseLayerUri the URI of the low resolution full sphere base layer.
+     */
+    public TiledVideoController(Context context, OrionContext orionContext,
+                                OrionPanorama panorama, TileGrid grid, String baseLayerUri) {
+        mContext = context;
+        mOrionContext = orionContext;
+        mPanorama = panorama;
+        mGrid = grid;
+        mTiles = new Tile[grid.getTileCount()];
+        mVisible = new boolean[grid.getTileCount()];
+        for (int i = 0; i < mTiles.length; i++) {
+            mTiles[i] = new Tile();
+        }
+
+        mBaseTexture = new OrionVideoTexture(mOrionContext,
+                new ExoPlayerWrapper(mContext), baseLayerUri);
+        mBaseTexture.addTextureListener(new OrionVideoTexture.ListenerBase() {
+            @Override
+            public void onVideoStarted(OrionVideoTexture texture) {
+                mPlaying = true;
+                for (Tile tile : mTiles) {
+                    if (null != tile.texture) {
+                        tile.texture.play();
+                    }
+                }
+            }
+
+            @Override
+            public void onVideoPaused(OrionVideoTexture texture) {
+                mPlaying = false;
+                for (Tile tile : mTiles) {
+                    if (null != tile.texture) {
+                        tile.texture.pause();
+                    }
+                }
+            }
+
+            @Override
+            public void onVideoSeekCompleted(OrionVideoTexture texture, long positionMs) {
+                for (Tile tile : mTiles) {
+                    if (null != tile.texture) {
+                        tile.texture.seekTo((int) positionMs);
+                    }
+                }
+            }
+        });
+        for (int i = 0; i < mTiles.length; i++) {
+            bindBaseLayer(i);
+        }
+        mHandler.postDelayed(mSyncTask, SYNC_INTERVAL_MS);
+    }
+
+    /**
+     * Set the high quality stream of a tile.
+     *
+     * @param index the tile index.
+     * @param uri the tile stream URI.
+     * @param textureRect the part of the stream's texture that covers the tile, typically
+     *                    TileGrid.FULL_TEXTURE.
+     */
+    public void setTileSource(int index, String uri, RectF textureRect) {
+        mTiles[index].uri = uri;
+        mTiles[index].textureRect = textureRect;
+    }
+
+    /**
+     * Set the maximum number of tile streams that are decoded at the same time, in
+     * addition to the base layer. This is limited by the device's decoders.
+     *
+     * @param maxActiveTiles the maximum number of active tiles.
+     */
+    public void setMaxActiveTiles(int maxActiveTiles) {
+        mMaxActiveTiles = Math.max(0, maxActiveTiles);
+    }
+
+    /**
+     * Set the margin around the view where tiles are fetched ahead of head movement.
+     *
+     * @param marginDeg the margin, in degrees.
+     */
+    public void setMarginDeg(float marginDeg) {
+        mMarginDeg = Math.max(0, marginDeg);
+    }
+
+    /**
+     * Set how progressive tile streams are downloaded. Applied to tiles that are
+     * activated after calling this method.
+     *
+     * @param connections the number of concurrent connections per tile, 1 to disable.
+     * @param chunkSizeBytes the size of each range request, in bytes.
+     * @see ExoPlayerWrapper#setParallelDownload(int, int)
+     */
+    public void setParallelDownload(int connections, int chunkSizeBytes) {
+        mParallelConnections = connections;
+        mParallelChunkSizeBytes = chunkSizeBytes;
+    }
+
+    /** Return the number of tiles that currently have a high quality stream. */
+    public int getActiveTileCount() {
+        int count = 0;
+        for (Tile tile : mTiles) {
+            if (null != tile.texture) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Update the viewing direction and field of view. Call when the camera moves;
+     * a few times per second is enough.
+     *
+     * @param yawDeg the longitude of the view center, in degrees.
+     * @param pitchDeg the latitude of the view center, in degrees.
+     * @param horizontalFovDeg the horizontal field of view, in degrees.
+     * @param verticalFovDeg the vertical field of view, in degrees.
+     */
+    public void setViewDirection(final float yawDeg, final float pitchDeg,
+                                 float horizontalFovDeg, float verticalFovDeg) {
+        if (mReleased) {
+            return;
+        }
+        mGrid.findVisibleTiles(yawDeg, pitchDeg, horizontalFovDeg, verticalFovDeg,
+                mMarginDeg, mVisible);
+
+        // Rank visible tiles by their distance from the view center.
+        List<Integer> wanted = new ArrayList<>();
+        for (int i = 0; i < mTiles.length; i++) {
+            if (mVisible[i] && null != mTiles[i].uri) {
+                wanted.add(i);
+            }
+        }
+        Collections.sort(wanted, (a, b) -> Float.compare(
+                mGrid.getAngularDistance(a, yawDeg, pitchDeg),
+                mGrid.getAngularDistance(b, yawDeg, pitchDeg)));
+        if (wanted.size() > mMaxActiveTiles) {
+            wanted = wanted.subList(0, mMaxActiveTiles);
+        }
+
+        long now = SystemClock.elapsedRealtime();
+        for (int index : wanted) {
+            mTiles[index].lastWantedMs = now;
+        }
+        releaseExpiredTiles(now);
+        for (int index : wanted) {
+            if (null == mTiles[index].texture && makeRoomForTile(now)) {
+                activateTile(index);
+            }
+        }
+    }
+
+    /**
+     * Release all players and textures.
+     */
+    public void release() {
+        mReleased = true;
+        mHandler.removeCallbacks(mSyncTask);
+        for (int i = 0; i < mTiles.length; i++) {
+            deactivateTile(i);
+        }
+        mPanorama.releaseTextures();
+        mBaseTexture.release();
+        mBaseTexture.destroy();
+    }
+
+    /** Release tiles that have not been wanted for a while. */
+    private void releaseExpiredTiles(long now) {
+        for (int i = 0; i < mTiles.length; i++) {
+            if (null != mTiles[i].texture && now - mTiles[i].lastWantedMs > TILE_KEEP_ALIVE_MS) {
+                deactivateTile(i);
+            }
+        }
+    }
+
+    /** Release the least recently wanted tile that is not wanted now, if over budget. */
+    private boolean makeRoomForTile(long now) {
+        if (getActiveTileCount() < mMaxActiveTiles) {
+            return true;
+        }
+        int oldest = -1;
+        for (int i = 0; i < mTiles.length; i++) {
+            Tile tile = mTiles[i];
+            if (null != tile.texture && tile.lastWantedMs < now
+                    && (oldest < 0 || tile.lastWantedMs < mTiles[oldest].lastWantedMs)) {
+                oldest = i;
+            }
+        }
+        if (oldest < 0) {
+            return false;
+        }
+        deactivateTile(oldest);
+        return true;
+    }
+
+    private void activateTile(final int index) {
+        final Tile tile = mTiles[index];
+        Logger.logD(TAG, "Activating tile " + index);
+        tile.player = new ExoPlayerWrapper(mContext, BufferProfile.LOW_LATENCY_START);
+        if (mParallelConnections > 1) {
+            tile.player.setParallelDownload(mParallelConnections, mParallelChunkSizeBytes);
+        }
+        tile.texture = new OrionVideoTexture(mOrionContext, tile.player, tile.uri);
+        tile.texture.addTextureListener(new OrionVideoTexture.ListenerBase() {
+            @Override
+            public void onVideoPrepared(OrionVideoTexture texture) {
+                if (texture != tile.texture) {
+                    return;
+                }
+                tile.player.setVolume(0.0f);
+                tile.syncSeekPending = true;
+                texture.seekTo((int) mBaseTexture.getCurrentPosition());
+                if (!mPlaying) {
+                    texture.pause();
+                }
+            }
+
+            @Override
+            public void onVideoSeekCompleted(OrionVideoTexture texture, long positionMs) {
+                // The first frame is rendered before the tile has caught up with the base
+                // layer; switch only when it shows the same moment.
+                if (texture != tile.texture || tile.highQuality || !tile.syncSeekPending) {
+                    return;
+                }
+                Logger.logD(TAG, "Tile " + index + " switched to high quality");
+                tile.syncSeekPending = false;
+                tile.highQuality = true;
+                mPanorama.bindTexture(index, tile.texture,
+                        mGrid.getSphereRect(index), tile.textureRect);
+            }
+        });
+    }
+
+    private void deactivateTile(int index) {
+        Tile tile = mTiles[index];
+        if (null == tile.texture) {
+            return;
+        }
+        Logger.logD(TAG, "Releasing tile " + index);
+        if (tile.highQuality) {
+            bindBaseLayer(index);
+            tile.highQuality = false;
+        }
+        tile.syncSeekPending = false;
+        OrionVideoTexture texture = tile.texture;
+        tile.texture = null;
+        tile.player = null;
+        texture.release();
+        texture.destroy();
+    }
+
+    private void bindBaseLayer(int index) {
+        mPanorama.bindTexture(index, mBaseTexture,
+                mGrid.getSphereRect(index), mGrid.getTextureRect(index));
+    }
+
+    /** Task that keeps tiles in sync with the base layer. */
+    private final Runnable mSyncTask = new Runnable() {
+        @Override
+        public void run() {
+            if (mReleased) {
+                return;
+            }
+            releaseExpiredTiles(SystemClock.elapsedRealtime());
+            if (mPlaying) {
+                long basePosition = mBaseTexture.getCurrentPosition();
+                for (Tile tile : mTiles) {
+                    if (tile.highQuality && basePosition >= 0
+                            && Math.abs(tile.texture.getCurrentPosition() - basePosition)
+                            > MAX_DRIFT_MS) {
+                        tile.texture.seekTo((int) basePosition);
+                    }
+                }
+            }
+            mHandler.postDelayed(this, SYNC_INTERVAL_MS);
+        }
+    };
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2022, Finwe Ltd. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package fi.finwe.orion360.sdk.pro.examples.engine;
+
+/**
+ * Track selection policy that sizes 360 video to what is actually visible.
+ * <p/>
+ * The pixel density that the end-user sees depends on the camera's field of view and zoom
+ * and on the viewport size, not on the display size alone. For an equirectangular video,
+ * the source width that maps one video pixel to one screen pixel is the viewport width
+ * times 360 degrees divided by the visible horizontal field of view. This policy computes
+ * that size, which ExoPlayerWrapper then uses as the track selector's viewport size: the
+ * smallest video track that covers it is allowed, and bigger tracks are excluded.
+ * <p/>
+ * To prevent switch storms while the user is zooming, a new size is taken into use only
+ * when it differs enough from the current one, and not more often than the minimum
+ * switch interval.
+ */
+final class ViewportTrackSelectionPolicy {
+
+    /** Default relative change that is needed for a new size to be applied. */
+    static final float DEFAULT_SWITCH_THRESHOLD = 0.25f;
+
+    /** Default minimum time between two applied sizes, in ms. */
+    static final long DEFAULT_MIN_SWITCH_INTERVAL_MS = 2000;
+
+    /** Largest equirectangular width that will be requested. */
+    private static final int MAX_WIDTH = 16384;
+
+    private float mSwitchThreshold = DEFAULT_SWITCH_THRESHOLD;
+    private long mMinSwitchIntervalMs = DEFAULT_MIN_SWITCH_INTERVAL_MS;
+    private float mPixelDensityFactor = 1.0f;
+
+    private int mWidth = -1;
+    private int mHeight = -1;
+    private long mAppliedTimeMs = 0;
+    private boolean mPending = false;
+
+
+    /**
+     * Set the hysteresis parameters.
+     *
+     * @param switchThreshold the relative change needed for a new size, e.g. 0.25 for 25%.
+     * @param minSwitchIntervalMs the minimum time between two applied sizes, in ms.
+     */
+    void setHysteresis(float switchThreshold, long minSwitchIntervalMs) {
+        mSwitchThreshold = Math.max(0.0f, switchThreshold);
+        mMinSwitchIntervalMs = Math.max(0, minSwitchIntervalMs);
+    }
+
+    /**
+     * Set the number of video pixels wanted per screen pixel. Values below 1.0 save
+     * bandwidth at the cost of sharpness.
+     *
+     * @param factor the pixel density factor.
+     */
+    void setPixelDensityFactor(float factor) {
+        mPixelDensityFactor = Math.max(0.1f, factor);
+    }
+
+    /** Return the currently applied equirectangular width, or -1 if none. */
+    int getWidth() {
+        return mWidth;
+    }
+
+    /** Return the currently applied equirectangular height, or -1 if none. */
+    int getHeight() {
+        return mHeight;
+    }
+
+    /** Forget the applied size, so that the next update is applied immediately. */
+    void reset() {
+        mWidth = -1;
+        mHeight = -1;
+        mPending = false;
+    }
+
+    /**
+     * Return the time after which the latest update, which was held back only because of
+     * the minimum switch interval, should be retried.
+     *
+     * @param nowMs the current time, in ms.
+     * @return the delay in ms, or 0 if there is nothing to retry.
+     */
+    long getPendingDelayMs(long nowMs) {
+        return mPending ? Math.max(1, mMinSwitchIntervalMs - (nowMs - mAppliedTimeMs)) : 0;
+    }
+
+    /**
+     * Update the policy with the current viewing parameters.
+     *
+     * @param horizontalFovDeg the camera's horizontal field of view at zoom 1.0, in degrees.
+     * @param zoom the camera's zoom factor.
+     * @param viewportWidth the viewport width, in pixels.
+     * @param viewportHeight the viewport height, in pixels.
+     * @param nowMs the current time, in ms.
+     * @return true if a new size was applied and the track selector should be updated.
+     */
+    boolean update(float horizontalFovDeg, float zoom, int viewportWidth, int viewportHeight,
+                   long nowMs) {
+        if (horizontalFovDeg <= 0 || zoom <= 0 || viewportWidth <= 0 || viewportHeight <= 0) {
+            return false;
+        }
+
+        // Visible field of view, horizontally and vertically.
+        double hFov = Math.toRadians(Math.min(horizontalFovDeg / zoom, 360.0f));
+        double vFov = 2.0 * Math.atan(Math.tan(Math.min(hFov, Math.PI * 0.99) / 2.0)
+                * viewportHeight / viewportWidth);
+
+        // Equirectangular size that matches the screen pixel density in both directions.
+        double widthForH = viewportWidth * 2.0 * Math.PI / hFov;
+        double widthForV = 2.0 * viewportHeight * Math.PI / vFov;
+        int width = (int) Math.min(MAX_WIDTH,
+                Math.ceil(Math.max(widthForH, widthForV) * mPixelDensityFactor));
+        width = Math.max(2, width & ~1);
+        int height = width / 2;
+
+        mPending = false;
+        if (mWidth > 0) {
+            float change = Math.abs(width - mWidth) / (float) mWidth;
+            if (change < mSwitchThreshold) {
+                return false;
+            }
+            if (nowMs - mAppliedTimeMs < mMinSwitchIntervalMs) {
+                mPending = true;
+                return false;
+            }
+        }
+        mWidth = width;
+        mHeight = height;
+        mAppliedTimeMs = nowMs;
+        return true;
+    }
+}
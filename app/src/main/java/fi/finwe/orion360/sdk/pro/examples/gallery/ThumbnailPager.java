@@ -54,10 +54,13 @@ import fi.finwe.orion360.sdk.pro.viewport.OrionViewport;
 import fi.finwe.orion360.sdk.pro.examples.MainMenu;
 import fi.finwe.orion360.sdk.pro.examples.R;
 import fi.finwe.orion360.sdk.pro.examples.TouchControllerWidget;
+import fi.finwe.orion360.sdk.pro.examples.engine.ExoPlayerPool;
+import fi.finwe.orion360.sdk.pro.examples.engine.ExoPlayerWrapper;
 import fi.finwe.orion360.sdk.pro.item.OrionCamera;
 import fi.finwe.orion360.sdk.pro.item.OrionPanorama;
 import fi.finwe.orion360.sdk.pro.item.sprite.OrionSprite;
 import fi.finwe.orion360.sdk.pro.texture.OrionTexture;
+import fi.finwe.orion360.sdk.pro.texture.OrionVideoTexture;
 import fi.finwe.orion360.sdk.pro.view.OrionView;
 import fi.finwe.orion360.sdk.pro.widget.SelectablePointerIcon;
 
@@ -70,6 +73,7 @@ import fi.finwe.orion360.sdk.pro.widget.SelectablePointerIcon;
  * <li>Loads one hard-coded 360 panorama image in .jpg format as the gallery room background
  * <li>Allows browsing through the gallery by looking at the next/previous arrows for a moment
  * <li>Plays the video selected by user by looking at the play icon for a moment
+ * <li>Uses a pool of pre-built ExoPlayer instances, so that a selected video starts quickly
  * <li>Creates a fullscreen view locked to landscape orientation
  * <li>Renders the gallery and the videos using standard rectilinear projection
  * <li>Allows navigation with touch & movement sensors (if supported by HW) as follows:
@@ -131,6 +135,9 @@ public class ThumbnailPager extends OrionActivity {
     /** The video texture for the panorama video. */
     protected OrionTexture mVideoCanvasTexture;
 
+    /** Pre-built video players, so that a video starts without waiting for one to be built. */
+    protected ExoPlayerPool mPlayerPool;
+
     /** The widget that will act as the 'home' button. */
     protected SelectablePointerIcon mHomeButton;
 
@@ -217,6 +224,11 @@ public class ThumbnailPager extends OrionActivity {
         // Create a new gallery from hard-coded video file path.
         mGallery = new Gallery(MEDIA_PATH);
 
+        // Build a video player in the background while the user browses the gallery, and
+        // reuse it for the next item after a video has been closed.
+        mPlayerPool = new ExoPlayerPool(this);
+        mPlayerPool.prewarm();
+
         // Create a new camera. This will become the end-user's eyes into the 3D world.
         mCamera = new OrionCamera(mOrionContext);
 
@@ -397,20 +409,18 @@ public class ThumbnailPager extends OrionActivity {
                 String contentUri = mGallery.getItems().get(mCurrentItemIndex).mContentUri;
                 Log.d(TAG, "Play button triggered for " + contentUri);
 
-                // Create a video texture from that video URI.
-                mVideoCanvasTexture = OrionTexture.createTextureFromURI(mOrionContext,
-                        ThumbnailPager.this, contentUri);
+                // Create a video texture from that video URI, with a player from the pool.
+                mVideoCanvasTexture = new OrionVideoTexture(mOrionContext,
+                        new ExoPlayerWrapper(ThumbnailPager.this, mPlayerPool), contentUri);
                 mVideoCanvasTexture.setLooping(true);
-                if (null != mVideoCanvasTexture) {
 
-                    // If texture could be created, bind it to video panorama.
-                    mVideoCanvas.bindTextureFull(0, mVideoCanvasTexture);
+                // Bind the texture to video panorama.
+                mVideoCanvas.bindTextureFull(0, mVideoCanvasTexture);
 
-                    // Switch from gallery scene to video player scene.
-                    OrionViewport viewport = mView.getViewports()[0];
-                    viewport.releaseScenes();
-                    viewport.bindScene(mVideoPlayerScene);
-                }
+                // Switch from gallery scene to video player scene.
+                OrionViewport viewport = mView.getViewports()[0];
+                viewport.releaseScenes();
+                viewport.bindScene(mVideoPlayerScene);
             }
 
             @Override
@@ -540,6 +550,16 @@ public class ThumbnailPager extends OrionActivity {
         mGalleryScene.bindWidget(mPreviousButton);
     }
 
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+
+        // Release the idle players; a leased one is released when its texture is.
+        if (null != mPlayerPool) {
+            mPlayerPool.release();
+        }
+    }
+
     /**
      * Convenience class for constructing a simple video item gallery from a given path.
      */
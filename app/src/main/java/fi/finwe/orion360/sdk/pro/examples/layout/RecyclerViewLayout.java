@@ -51,6 +51,8 @@ import fi.finwe.orion360.sdk.pro.view.OrionViewContainer;
 import fi.finwe.orion360.sdk.pro.viewport.OrionDisplayViewport;
 import fi.finwe.orion360.sdk.pro.examples.MainMenu;
 import fi.finwe.orion360.sdk.pro.examples.R;
+import fi.finwe.orion360.sdk.pro.examples.engine.CachingHttpProxy;
+import fi.finwe.orion360.sdk.pro.examples.engine.MediaCache;
 import fi.finwe.orion360.sdk.pro.item.OrionCamera;
 import fi.finwe.orion360.sdk.pro.item.OrionPanorama;
 import fi.finwe.orion360.sdk.pro.licensing.LicenseManager;
@@ -105,6 +107,9 @@ public class RecyclerViewLayout extends Activity {
     /** Tag for logging. */
     private static final String TAG = RecyclerViewLayout.class.getSimpleName();
 
+    /** Maximum size of the on-disk media cache. */
+    private static final long MEDIA_CACHE_SIZE_BYTES = 512L * 1024 * 1024;
+
     /**
      * OrionContext used to be a static class, but starting from Orion360 3.1.x it must
      * be instantiated as a member.
@@ -295,8 +300,14 @@ public class RecyclerViewLayout extends Activity {
             mPanorama = new OrionPanorama(mOrionContext);
 
             // Create a new video (or image) texture from a video (or image) source URI.
+            // Streamed files are read through the caching proxy, so that a recycled item
+            // that plays the same file again finds it on disk.
             mVideoPlayer = new AndroidMediaPlayerWrapper(RecyclerViewLayout.this);
-            mPanoramaTexture = new OrionVideoTexture(mOrionContext, mVideoPlayer, contentUri);
+            CachingHttpProxy proxy = CachingHttpProxy.getInstance(RecyclerViewLayout.this,
+                    MediaCache.getInstance(RecyclerViewLayout.this,
+                            MediaCache.Location.PRIVATE_EXTERNAL, MEDIA_CACHE_SIZE_BYTES));
+            mPanoramaTexture = new OrionVideoTexture(mOrionContext, mVideoPlayer,
+                    proxy.getProxyUri(contentUri));
 
             // Set volume level when content has been prepared.
             ((OrionVideoTexture) mPanoramaTexture).addTextureListener(
@@ -41,13 +41,18 @@ import android.os.Bundle;
 import android.os.Environment;
 import android.widget.Toast;
 
+import com.google.android.exoplayer2.util.MimeTypes;
+
 import java.io.File;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Timer;
 import java.util.TimerTask;
 
 import fi.finwe.log.Logger;
 import fi.finwe.orion360.sdk.pro.examples.MainMenu;
 import fi.finwe.orion360.sdk.pro.examples.R;
+import fi.finwe.orion360.sdk.pro.examples.engine.DecoderCapabilities;
 import fi.finwe.orion360.sdk.pro.SimpleOrionActivity;
 
 /**
@@ -105,13 +110,23 @@ public class MinimalVideoDownloadPlayer extends SimpleOrionActivity {
         // Set Orion360 view (defined in the layout) that will be used for rendering 360 content.
         setOrionView(R.id.orion_view_container);
 
-        // Download the video file, then play it. Notice that this link points to a
-        // 4k video file, older/mid-range devices may not be able to play it!
-        // In case of problems, try MainMenu.TEST_VIDEO_URI_1920x960 instead.
-        downloadAndPlay(
-                //MainMenu.TEST_VIDEO_URI_1920x960
-                MainMenu.TEST_VIDEO_URI_3840x1920
-        );
+        // Download the video file, then play it. The same video is available in several
+        // resolutions; older/mid-range devices may not be able to play the 4k one. Select the
+        // biggest one that the device can decode, before downloading anything. The decoder
+        // capabilities are probed once in the background and then remembered until the next
+        // OS update; the download starts when the variant has been selected.
+        List<DecoderCapabilities.Variant> variants = Arrays.asList(
+                new DecoderCapabilities.Variant(MainMenu.TEST_VIDEO_URI_3840x1920,
+                        MimeTypes.VIDEO_H264, 3840, 1920, 30),
+                new DecoderCapabilities.Variant(MainMenu.TEST_VIDEO_URI_1920x960,
+                        MimeTypes.VIDEO_H264, 1920, 960, 30),
+                new DecoderCapabilities.Variant(MainMenu.TEST_VIDEO_URI_1280x640,
+                        MimeTypes.VIDEO_H264, 1280, 640, 30));
+        DecoderCapabilities.getInstance(this).selectVariant(variants, variant -> {
+            if (variant != null && !isFinishing() && !isDestroyed()) {
+                downloadAndPlay(variant.uri);
+            }
+        });
 
         // Notice that downloading video files over a network connection requires INTERNET
         // permission to be specified in the manifest file.
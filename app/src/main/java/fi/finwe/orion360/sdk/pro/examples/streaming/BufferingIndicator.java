@@ -48,6 +48,7 @@ import fi.finwe.orion360.sdk.pro.viewport.OrionDisplayViewport;
 import fi.finwe.orion360.sdk.pro.viewport.OrionViewport;
 import fi.finwe.orion360.sdk.pro.examples.MainMenu;
 import fi.finwe.orion360.sdk.pro.examples.R;
+import fi.finwe.orion360.sdk.pro.examples.engine.PlaybackTrace;
 import fi.finwe.orion360.sdk.pro.item.OrionCamera;
 import fi.finwe.orion360.sdk.pro.item.OrionPanorama;
 import fi.finwe.orion360.sdk.pro.texture.OrionTexture;
@@ -234,13 +235,13 @@ public class BufferingIndicator extends OrionActivity implements OrionVideoTextu
     final Runnable mBufferingIndicatorRunnable = new Runnable() {
         @Override
         public void run() {
-            Log.d(TAG, "Checking if playback has started...");
+            // Polled twice per second, hence traced instead of logged.
             long newPosition = mPanoramaTexture.getCurrentPosition();
+            PlaybackTrace.getInstance().record(PlaybackTrace.BUFFERING_POLL, newPosition);
             if (newPosition > 0) {
                 Log.d(TAG, "Now playing video.");
                 hideBufferingIndicator();
             } else {
-                Log.d(TAG, "Still buffering.");
                 mBufferingIndicatorHandler.postDelayed(mBufferingIndicatorRunnable,
                         mBufferingIndicatorIntervalMs);
             }
@@ -459,8 +460,9 @@ public class BufferingIndicator extends OrionActivity implements OrionVideoTextu
     public void onVideoBufferingUpdate(OrionVideoTexture orionVideoTexture,
                                        int fromPercent, int toPercent) {
 
-        // Video player tells its buffer fill status has changed. Print to log.
-        Log.v(TAG, "Video buffer updated: " + fromPercent + "% -> " + toPercent + "%");
+        // Video player tells its buffer fill status has changed. Record to trace; unlike
+        // a log message, this does not build a string for every update.
+        PlaybackTrace.getInstance().record(PlaybackTrace.BUFFER_PERCENT, fromPercent, toPercent);
 
     }
 
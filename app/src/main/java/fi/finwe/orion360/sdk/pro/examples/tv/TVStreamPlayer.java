@@ -56,6 +56,7 @@ import fi.finwe.orion360.sdk.pro.OrionScene;
 import fi.finwe.orion360.sdk.pro.controller.RotationAligner;
 import fi.finwe.orion360.sdk.pro.examples.MainMenu;
 import fi.finwe.orion360.sdk.pro.examples.R;
+import fi.finwe.orion360.sdk.pro.examples.engine.BufferProfile;
 import fi.finwe.orion360.sdk.pro.examples.engine.ExoPlayerWrapper;
 import fi.finwe.orion360.sdk.pro.item.OrionCamera;
 import fi.finwe.orion360.sdk.pro.item.OrionPanorama;
@@ -143,6 +144,9 @@ public class TVStreamPlayer extends OrionActivity implements OrionVideoTexture.L
     /** Rotation animation speed, continuous panning when key is held down. */
     private static final float ROTATION_ANIMATION_SPEED_INFINITE = 0.7f;
 
+    /** Camera horizontal field of view at zoom level 1.0 (in degrees). */
+    private static final float CAMERA_FOV_DEG = 120.0f;
+
     /** Zoom animation length (in ms). */
     private static final int ZOOM_ANIMATION_LENGTH_MS = 800;
 
@@ -306,7 +310,7 @@ public class TVStreamPlayer extends OrionActivity implements OrionVideoTexture.L
         // Set initial viewing direction.
         mCamera.setDefaultRotationYaw(0.0f);
         mCamera.setProjectionPerspectiveDeg(OrionCamera.FovType.HORIZONTAL,
-                120.0f, 0.1f, 100.0f);
+                CAMERA_FOV_DEG, 0.1f, 100.0f);
         mCamera.setZoomMax(7.0f);
 
         // Sensor fusion not needed with AndroidTV app.
@@ -403,8 +407,12 @@ public class TVStreamPlayer extends OrionActivity implements OrionVideoTexture.L
         mView.bindViewports(OrionDisplayViewport.VIEWPORT_CONFIG_FULL,
                 OrionDisplayViewport.CoordinateType.FIXED_LANDSCAPE);
 
-        // Create video player (ExoPlayer).
-        mVideoPlayer = new ExoPlayerWrapper(this);
+        // Select video tracks for the initial zoom level when the view size is known.
+        mViewContainer.post(() -> updateVideoViewport(mCamera.getZoom()));
+
+        // Create video player (ExoPlayer). TV boxes often have little memory for buffering
+        // high resolution 360 video, hence use a buffer profile that is tuned for them.
+        mVideoPlayer = new ExoPlayerWrapper(this, BufferProfile.MEMORY_CONSTRAINED_TV);
 
         // Set a URI that points to an image or video stream URL.
         mPanoramaTexture = new OrionVideoTexture(mOrionContext, mVideoPlayer,
@@ -587,6 +595,7 @@ public class TVStreamPlayer extends OrionActivity implements OrionVideoTexture.L
                 if (mPanoramaTexture instanceof OrionVideoTexture) {
                     OrionVideoTexture orionVideoTexture = (OrionVideoTexture) mPanoramaTexture;
                     long position = orionVideoTexture.getCurrentPosition();
+                    setSeekMode(ExoPlayerWrapper.SeekMode.PREVIOUS_SYNC);
                     orionVideoTexture.seekTo(Math.max(0, (int)position - SEEK_STEP_MS));
                     return true;
                 }
@@ -596,6 +605,7 @@ public class TVStreamPlayer extends OrionActivity implements OrionVideoTexture.L
                     OrionVideoTexture orionVideoTexture = (OrionVideoTexture) mPanoramaTexture;
                     long position = orionVideoTexture.getCurrentPosition();
                     long duration = orionVideoTexture.getDuration();
+                    setSeekMode(ExoPlayerWrapper.SeekMode.NEXT_SYNC);
                     orionVideoTexture.seekTo(Math.min((int)duration, (int)position + SEEK_STEP_MS));
                     return true;
                 }
@@ -773,7 +783,10 @@ public class TVStreamPlayer extends OrionActivity implements OrionVideoTexture.L
     public void onStartTrackingTouch(SeekBar seekBar) {
         Logger.logF();
 
-        // Nothing to do
+        // Snap to keyframes while dragging, for a responsive picture.
+        if (mVideoPlayer instanceof ExoPlayerWrapper) {
+            ((ExoPlayerWrapper) mVideoPlayer).setScrubbing(true);
+        }
     }
 
     @Override
@@ -783,6 +796,7 @@ public class TVStreamPlayer extends OrionActivity implements OrionVideoTexture.L
         if (fromUser) {
             if (mPanoramaTexture instanceof OrionVideoTexture) {
                 OrionVideoTexture orionVideoTexture = (OrionVideoTexture) mPanoramaTexture;
+                setSeekMode(ExoPlayerWrapper.SeekMode.CLOSEST_SYNC);
                 orionVideoTexture.seekTo(progress);
             }
         }
@@ -791,6 +805,24 @@ public class TVStreamPlayer extends OrionActivity implements OrionVideoTexture.L
     @Override
     public void onStopTrackingTouch(SeekBar seekBar) {
         Logger.logF();
+
+        // Seek exactly to the position where the user let go.
+        setSeekMode(ExoPlayerWrapper.SeekMode.EXACT);
+        if (mVideoPlayer instanceof ExoPlayerWrapper) {
+            ((ExoPlayerWrapper) mVideoPlayer).setScrubbing(false);
+        }
+    }
+
+    /**
+     * Set how seek positions are resolved. Seeking to keyframes is much faster than exact
+     * seeking with long-GOP 360 video, and accurate enough for stepping with remote keys.
+     *
+     * @param seekMode the seek mode.
+     */
+    private void setSeekMode(ExoPlayerWrapper.SeekMode seekMode) {
+        if (mVideoPlayer instanceof ExoPlayerWrapper) {
+            ((ExoPlayerWrapper) mVideoPlayer).setSeekMode(seekMode);
+        }
     }
 
     // ------------------------------------------ Pan ----------------------------------------------
@@ -1087,6 +1119,22 @@ public class TVStreamPlayer extends OrionActivity implements OrionVideoTexture.L
             mZoomLevel = zoomLevel;
             mCamera.setZoom(zoomOrionValue);
         }
+
+        // Use the target zoom level for track selection, not each animation step.
+        updateVideoViewport(zoomOrionValue);
+    }
+
+    /**
+     * Let the video player select video tracks that match the visible pixel density.
+     * When zoomed in, a higher resolution is worth streaming; when zoomed out, it is not.
+     *
+     * @param zoom the camera zoom value.
+     */
+    private void updateVideoViewport(float zoom) {
+        if (mVideoPlayer instanceof ExoPlayerWrapper && null != mViewContainer) {
+            ((ExoPlayerWrapper) mVideoPlayer).setViewport(CAMERA_FOV_DEG, zoom,
+                    mViewContainer.getWidth(), mViewContainer.getHeight());
+        }
     }
 
     // --------------------------------------- Projection ------------------------------------------
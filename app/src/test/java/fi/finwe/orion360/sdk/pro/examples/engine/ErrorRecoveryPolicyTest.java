@@ -0,0 +1,121 @@
+package fi.finwe.orion360.sdk.pro.examples.engine;
+
+import android.net.Uri;
+
+import com.google.android.exoplayer2.PlaybackException;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.HttpDataSource;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+/**
+ * ErrorRecoveryPolicy error classification and retry delays, which will execute on the
+ * development machine (host) with Robolectric.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ErrorRecoveryPolicyTest {
+
+    private static final int MAX_RETRIES = 5;
+    private static final long INITIAL_DELAY_MS = 500;
+    private static final long MAX_DELAY_MS = 3000;
+
+    @Test
+    public void transientHttpErrorsAreRetryable() {
+        ErrorRecoveryPolicy policy = new ErrorRecoveryPolicy();
+        for (int responseCode : new int[] { 408, 429, 500, 502, 503, 504 }) {
+            assertTrue("HTTP " + responseCode, policy.isRetryable(httpError(responseCode)));
+        }
+        for (int responseCode : new int[] { 400, 401, 403, 404, 410, 416 }) {
+            assertFalse("HTTP " + responseCode, policy.isRetryable(httpError(responseCode)));
+        }
+    }
+
+    @Test
+    public void errorCodesAreClassified() {
+        ErrorRecoveryPolicy policy = new ErrorRecoveryPolicy();
+        assertTrue(policy.isRetryable(
+                error(PlaybackException.ERROR_CODE_BEHIND_LIVE_WINDOW)));
+        assertTrue(policy.isRetryable(
+                error(PlaybackException.ERROR_CODE_IO_NETWORK_CONNECTION_FAILED)));
+        assertTrue(policy.isRetryable(
+                error(PlaybackException.ERROR_CODE_IO_NETWORK_CONNECTION_TIMEOUT)));
+        assertFalse(policy.isRetryable(
+                error(PlaybackException.ERROR_CODE_IO_FILE_NOT_FOUND)));
+        assertFalse(policy.isRetryable(
+                error(PlaybackException.ERROR_CODE_DECODING_FAILED)));
+        // A bad HTTP status without the response code is not known to be transient.
+        assertFalse(policy.isRetryable(
+                error(PlaybackException.ERROR_CODE_IO_BAD_HTTP_STATUS)));
+    }
+
+    @Test
+    public void delaysGrowExponentiallyWithEqualJitterUntilMaxRetries() {
+        ErrorRecoveryPolicy policy =
+                new ErrorRecoveryPolicy(MAX_RETRIES, INITIAL_DELAY_MS, MAX_DELAY_MS);
+        for (int attempt = 0; attempt < MAX_RETRIES; attempt++) {
+            long delayMs = policy.onError(httpError(503), 1000);
+            assertDelay(Math.min(MAX_DELAY_MS, INITIAL_DELAY_MS << attempt), delayMs);
+            assertEquals(attempt + 1, policy.getAttempt());
+        }
+        assertEquals(MAX_RETRIES, policy.getRetryCount());
+
+        // The error after the last retry is fatal, and the next one starts over.
+        assertEquals(-1, policy.onError(httpError(503), 1000));
+        assertEquals(0, policy.getAttempt());
+        assertEquals(1, policy.getFailedCount());
+        assertDelay(INITIAL_DELAY_MS, policy.onError(httpError(503), 2000));
+        assertEquals(1, policy.getAttempt());
+    }
+
+    @Test
+    public void recoveryResetsTheBackoff() {
+        ErrorRecoveryPolicy policy =
+                new ErrorRecoveryPolicy(MAX_RETRIES, INITIAL_DELAY_MS, MAX_DELAY_MS);
+        policy.onError(error(PlaybackException.ERROR_CODE_BEHIND_LIVE_WINDOW), 1000);
+        policy.onError(error(PlaybackException.ERROR_CODE_BEHIND_LIVE_WINDOW), 1500);
+        assertEquals(2, policy.getAttempt());
+
+        assertEquals(3000, policy.onRecovered(4000));
+        assertEquals(0, policy.getAttempt());
+        assertEquals(1, policy.getRecoveredCount());
+        assertEquals(3000, policy.getLastRecoveryLatencyMs());
+
+        assertDelay(INITIAL_DELAY_MS, policy.onError(httpError(500), 5000));
+        assertEquals(2000, policy.onRecovered(7000));
+        assertEquals(5000, policy.getTotalRecoveryLatencyMs());
+    }
+
+    @Test
+    public void fatalErrorIsNotRetried() {
+        ErrorRecoveryPolicy policy = new ErrorRecoveryPolicy();
+        assertEquals(-1, policy.onError(httpError(404), 1000));
+        assertEquals(0, policy.getRetryCount());
+        assertEquals(1, policy.getFailedCount());
+    }
+
+    /** Assert that the delay is within the equal jitter range of the backoff delay. */
+    private static void assertDelay(long backoffMs, long delayMs) {
+        assertTrue(delayMs + " ms for " + backoffMs + " ms", delayMs >= backoffMs / 2);
+        assertTrue(delayMs + " ms for " + backoffMs + " ms",
+                delayMs <= backoffMs / 2 + backoffMs / 2);
+    }
+
+    private static PlaybackException error(int errorCode) {
+        return new PlaybackException("Error " + errorCode, null, errorCode);
+    }
+
+    private static PlaybackException httpError(int responseCode) {
+        DataSpec dataSpec = new DataSpec(Uri.parse("https://example.com/video.m3u8"));
+        HttpDataSource.InvalidResponseCodeException cause =
+                new HttpDataSource.InvalidResponseCodeException(responseCode, null, null,
+                        Collections.emptyMap(), dataSpec, new byte[0]);
+        return new PlaybackException("HTTP " + responseCode, cause,
+                PlaybackException.ERROR_CODE_IO_BAD_HTTP_STATUS);
+    }
+}
@@ -0,0 +1,46 @@
+package fi.finwe.orion360.sdk.pro.examples.engine;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * HLS lookahead sizing, which will execute on the development machine (host).
+ */
+public class HlsSegmentPrefetcherTest {
+
+    private static final long SIX_SECONDS_US = 6000000;
+
+    @Test
+    public void lookaheadCoversThroughputShortfallOnHighRttLink() {
+        // 30 Mbit/s rendition, one connection capped to 15 Mbit/s by a 300 ms RTT.
+        assertEquals(2, HlsSegmentPrefetcher.getLookahead(300, SIX_SECONDS_US,
+                30000000, 15000000));
+        // 40 Mbit/s rendition, 12 Mbit/s per connection.
+        assertEquals(4, HlsSegmentPrefetcher.getLookahead(300, SIX_SECONDS_US,
+                40000000, 12000000));
+        // 20 Mbit/s rendition that one connection sustains: the round trip still counts.
+        assertTrue(HlsSegmentPrefetcher.getLookahead(300, SIX_SECONDS_US,
+                20000000, 30000000) > 0);
+    }
+
+    @Test
+    public void lookaheadGrowsAsThroughputFalls() {
+        int previous = 0;
+        for (long estimate = 40000000; estimate >= 5000000; estimate -= 5000000) {
+            int lookahead = HlsSegmentPrefetcher.getLookahead(300, SIX_SECONDS_US,
+                    30000000, estimate);
+            assertTrue(lookahead >= previous);
+            previous = lookahead;
+        }
+        assertEquals(HlsSegmentPrefetcher.MAX_LOOKAHEAD_SEGMENTS, previous);
+    }
+
+    @Test
+    public void noLookaheadWithoutMeasurements() {
+        assertEquals(0, HlsSegmentPrefetcher.getLookahead(-1, SIX_SECONDS_US,
+                30000000, 15000000));
+        assertEquals(0, HlsSegmentPrefetcher.getLookahead(300, SIX_SECONDS_US,
+                30000000, 0));
+    }
+}
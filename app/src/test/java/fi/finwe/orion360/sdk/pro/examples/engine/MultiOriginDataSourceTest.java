@@ -0,0 +1,208 @@
+package fi.finwe.orion360.sdk.pro.examples.engine;
+
+import android.net.Uri;
+
+import androidx.annotation.Nullable;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.HttpDataSource;
+import com.google.android.exoplayer2.upstream.TransferListener;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * MultiOriginDataSource failover against fake origins, which will execute on the
+ * development machine (host) with Robolectric.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class MultiOriginDataSourceTest {
+
+    private static final List<String> HOSTS =
+            Arrays.asList("a.example.com", "b.example.com", "c.example.com");
+
+    private static final Uri URI = Uri.parse("https://a.example.com/video/segment1.ts");
+
+    private static final byte[] CONTENT = new byte[1000];
+    static {
+        for (int i = 0; i < CONTENT.length; i++) {
+            CONTENT[i] = (byte) i;
+        }
+    }
+
+    /** Origins that serve CONTENT, unless told to fail opens or reads on some host. */
+    private static final class FakeOrigins implements DataSource.Factory {
+
+        /** Response code of every open, per host. */
+        final Map<String, Integer> responseCodes = new HashMap<>();
+
+        /** Position where reading starts to fail, per host. */
+        final Map<String, Long> failReadsAt = new HashMap<>();
+
+        /** Requests opened, as host@position. */
+        final List<String> opened = new ArrayList<>();
+
+        @Override
+        public DataSource createDataSource() {
+            return new FakeSource(this);
+        }
+    }
+
+    private static final class FakeSource implements DataSource {
+
+        private final FakeOrigins mOrigins;
+        @Nullable
+        private DataSpec mDataSpec;
+        private long mPosition;
+        private long mFailAt;
+
+        FakeSource(FakeOrigins origins) {
+            mOrigins = origins;
+        }
+
+        @Override
+        public void addTransferListener(TransferListener transferListener) {}
+
+        @Override
+        public long open(DataSpec dataSpec) throws IOException {
+            String host = dataSpec.uri.getEncodedAuthority();
+            mOrigins.opened.add(host + "@" + dataSpec.position);
+            Integer responseCode = mOrigins.responseCodes.get(host);
+            if (null != responseCode) {
+                throw new HttpDataSource.InvalidResponseCodeException(responseCode, null,
+                        null, Collections.emptyMap(), dataSpec, new byte[0]);
+            }
+            Long failAt = mOrigins.failReadsAt.get(host);
+            mDataSpec = dataSpec;
+            mPosition = dataSpec.position;
+            mFailAt = null != failAt ? failAt : Long.MAX_VALUE;
+            return CONTENT.length - mPosition;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (mPosition >= CONTENT.length) {
+                return C.RESULT_END_OF_INPUT;
+            }
+            if (mPosition >= mFailAt) {
+                throw new SocketException("Connection reset");
+            }
+            int count = (int) Math.min(length, Math.min(CONTENT.length, mFailAt) - mPosition);
+            System.arraycopy(CONTENT, (int) mPosition, buffer, offset, count);
+            mPosition += count;
+            return count;
+        }
+
+        @Nullable
+        @Override
+        public Uri getUri() {
+            return null != mDataSpec ? mDataSpec.uri : null;
+        }
+
+        @Override
+        public void close() {
+            mDataSpec = null;
+        }
+    }
+
+    private static byte[] readAll(DataSource source) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[128];
+        int read;
+        while ((read = source.read(buffer, 0, buffer.length)) != C.RESULT_END_OF_INPUT) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void readFailuresFailOverToEachRemainingOriginAtTheReadPosition()
+            throws IOException {
+        FakeOrigins origins = new FakeOrigins();
+        origins.failReadsAt.put("a.example.com", 300L);
+        origins.failReadsAt.put("b.example.com", 700L);
+        DataSource source = new MultiOriginDataSource.Factory(origins,
+                new OriginSelector(HOSTS)).createDataSource();
+
+        source.open(new DataSpec(URI));
+        byte[] data = readAll(source);
+        source.close();
+
+        assertArrayEquals(CONTENT, data);
+        assertEquals(Arrays.asList("a.example.com@0", "b.example.com@300",
+                "c.example.com@700"), origins.opened);
+    }
+
+    @Test
+    public void readFailureIsThrownWhenEveryOriginHasFailed() throws IOException {
+        FakeOrigins origins = new FakeOrigins();
+        for (String host : HOSTS) {
+            origins.failReadsAt.put(host, 100L);
+        }
+        DataSource source = new MultiOriginDataSource.Factory(origins,
+                new OriginSelector(HOSTS)).createDataSource();
+
+        source.open(new DataSpec(URI));
+        try {
+            readAll(source);
+            fail("Expected the read to fail");
+        } catch (SocketException e) {
+            // Expected.
+        }
+        source.close();
+        assertEquals(Arrays.asList("a.example.com@0", "b.example.com@100",
+                "c.example.com@100"), origins.opened);
+    }
+
+    @Test
+    public void notFoundIsThrownWithoutFailover() throws IOException {
+        FakeOrigins origins = new FakeOrigins();
+        origins.responseCodes.put("a.example.com", 404);
+        OriginSelector selector = new OriginSelector(HOSTS);
+        DataSource source = new MultiOriginDataSource.Factory(origins, selector)
+                .createDataSource();
+
+        try {
+            source.open(new DataSpec(URI));
+            fail("Expected 404");
+        } catch (HttpDataSource.InvalidResponseCodeException e) {
+            assertEquals(404, e.responseCode);
+        }
+        source.close();
+        assertEquals(Collections.singletonList("a.example.com@0"), origins.opened);
+        for (OriginSelector.OriginStats stats : selector.getStats()) {
+            assertEquals(0, stats.failureCount);
+            assertTrue(stats.healthy);
+        }
+    }
+
+    @Test
+    public void serverErrorOnOpenFailsOver() throws IOException {
+        FakeOrigins origins = new FakeOrigins();
+        origins.responseCodes.put("a.example.com", 503);
+        OriginSelector selector = new OriginSelector(HOSTS);
+        DataSource source = new MultiOriginDataSource.Factory(origins, selector)
+                .createDataSource();
+
+        source.open(new DataSpec(URI));
+        assertArrayEquals(CONTENT, readAll(source));
+        source.close();
+        assertEquals(Arrays.asList("a.example.com@0", "b.example.com@0"), origins.opened);
+        assertEquals("a.example.com", selector.getOrderedHosts().get(HOSTS.size() - 1));
+    }
+}
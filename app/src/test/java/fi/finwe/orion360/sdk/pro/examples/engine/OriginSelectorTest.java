@@ -0,0 +1,87 @@
+package fi.finwe.orion360.sdk.pro.examples.engine;
+
+import android.os.SystemClock;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * OriginSelector ordering, which will execute on the development machine (host) with
+ * Robolectric. Robolectric's SystemClock.sleep() advances the clock without waiting.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class OriginSelectorTest {
+
+    private static final String A = "a.example.com";
+    private static final String B = "b.example.com";
+    private static final String C = "c.example.com";
+
+    @Test
+    public void failedOriginIsTriedLastUntilItsBackoffExpires() {
+        OriginSelector selector = new OriginSelector(Arrays.asList(A, B));
+        assertEquals(Arrays.asList(A, B), selector.getOrderedHosts());
+
+        selector.onFailure(A);
+        assertEquals(Arrays.asList(B, A), selector.getOrderedHosts());
+        SystemClock.sleep(5001);
+        assertEquals(Arrays.asList(A, B), selector.getOrderedHosts());
+
+        // The second failure in a row doubles the backoff.
+        selector.onFailure(A);
+        SystemClock.sleep(5001);
+        assertEquals(Arrays.asList(B, A), selector.getOrderedHosts());
+        SystemClock.sleep(5000);
+        assertEquals(Arrays.asList(A, B), selector.getOrderedHosts());
+
+        // A success resets the backoff.
+        selector.onConnected(A, 50);
+        selector.onFailure(A);
+        SystemClock.sleep(5001);
+        for (OriginSelector.OriginStats stats : selector.getStats()) {
+            assertTrue(stats.host, stats.healthy);
+        }
+    }
+
+    @Test
+    public void unhealthyOriginsAreOrderedByRecovery() {
+        OriginSelector selector = new OriginSelector(Arrays.asList(A, B, C));
+        selector.onFailure(B);
+        selector.onFailure(B);
+        SystemClock.sleep(1000);
+        selector.onFailure(A);
+
+        // B is avoided for 10 s from the start, A for 5 s from 1 s.
+        assertEquals(Arrays.asList(C, A, B), selector.getOrderedHosts());
+        SystemClock.sleep(5001);
+        assertEquals(Arrays.asList(A, C, B), selector.getOrderedHosts());
+    }
+
+    @Test
+    public void probedOriginIsComparedAtTheMeasuredThroughput() {
+        OriginSelector selector = new OriginSelector(Arrays.asList(A, B));
+        // A: 50 ms to connect and 8 Mbit/s, i.e. about 1050 ms for the reference segment.
+        selector.onConnected(A, 50);
+        selector.onTransferred(A, 1024 * 1024, 1000);
+        // B has only been probed, and connects slower than A.
+        selector.onConnected(B, 100);
+        assertEquals(Arrays.asList(A, B), selector.getOrderedHosts());
+
+        // Once B is measured to be faster, it wins despite its connect time.
+        selector.onTransferred(B, 1024 * 1024, 500);
+        assertEquals(Arrays.asList(B, A), selector.getOrderedHosts());
+    }
+
+    @Test
+    public void unmeasuredOriginsAreComparedOnConnectTime() {
+        OriginSelector selector = new OriginSelector(Arrays.asList(A, B, C));
+        selector.onConnected(A, 80);
+        selector.onConnected(B, 20);
+        // C has no measurements at all, so it is tried before the measured ones.
+        assertEquals(Arrays.asList(C, B, A), selector.getOrderedHosts());
+    }
+}
@@ -0,0 +1,44 @@
+package fi.finwe.orion360.sdk.pro.examples.engine;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * PlaybackSnapshot position and live offset extrapolation, which will execute on the
+ * development machine (host).
+ */
+public class PlaybackSnapshotTest {
+
+    @Test
+    public void positionIsExtrapolatedAndClamped() {
+        PlaybackSnapshot playing = new PlaybackSnapshot(false, true, true, true, 2.0f,
+                1000, 1500, 0, 100);
+        assertEquals(1000, playing.getPositionAt(100));
+        assertEquals(1200, playing.getPositionAt(200));
+        assertEquals(1500, playing.getPositionAt(10000));
+
+        PlaybackSnapshot paused = new PlaybackSnapshot(false, true, false, false, 1.0f,
+                1000, 1500, 0, 100);
+        assertEquals(1000, paused.getPositionAt(10000));
+
+        assertEquals(-1, PlaybackSnapshot.RELEASED.getPositionAt(10000));
+    }
+
+    @Test
+    public void liveOffsetFollowsPlaybackSpeed() {
+        PlaybackSnapshot atUnitSpeed = new PlaybackSnapshot(false, true, true, true, 1.0f,
+                1000, 60000, 0, 100, 3000);
+        assertEquals(3000, atUnitSpeed.getLiveOffsetAt(10100));
+
+        PlaybackSnapshot catchingUp = new PlaybackSnapshot(false, true, true, true, 1.05f,
+                1000, 60000, 0, 100, 3000);
+        assertEquals(2500, catchingUp.getLiveOffsetAt(10100));
+
+        PlaybackSnapshot paused = new PlaybackSnapshot(false, true, false, false, 1.0f,
+                1000, 60000, 0, 100, 3000);
+        assertEquals(13000, paused.getLiveOffsetAt(10100));
+
+        assertEquals(-1, PlaybackSnapshot.RELEASED.getLiveOffsetAt(10100));
+    }
+}
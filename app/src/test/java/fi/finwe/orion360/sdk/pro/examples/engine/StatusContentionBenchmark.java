@@ -0,0 +1,187 @@
+package fi.finwe.orion360.sdk.pro.examples.engine;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import fi.finwe.log.Logger;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Contention microbenchmark for ExoPlayerWrapper status reads, which will execute on
+ * the development machine (host) with Robolectric, so that the results can be logged.
+ * <p/>
+ * Compares the previous wrapper, where every getter synchronized on the current status
+ * while the state machine steps held it nested with the target status, with lock-free
+ * reads of a PlaybackSnapshot. One writer emulates the player thread, and several readers
+ * emulate the render thread, the UI thread and player callbacks. Like JMH, each variant
+ * runs a warmup iteration before the measured ones, and the throughput of the readers
+ * is reported in operations per second.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class StatusContentionBenchmark {
+
+    /** Tag for logging. */
+    private static final String TAG = StatusContentionBenchmark.class.getSimpleName();
+
+    private static final int READER_THREADS = 4;
+    private static final int WARMUP_ITERATIONS = 1;
+    private static final int MEASUREMENT_ITERATIONS = 3;
+    private static final long ITERATION_TIME_MS = 300;
+    private static final int READS_PER_CLOCK = 64;
+    private static final long WRITER_WORK_NS = 20000;
+    private static final long WRITER_PERIOD_NS = 100000;
+    private static final long DURATION_MS = 60000;
+
+    /** Mutable status guarded by monitors, like the previous wrapper. */
+    private static class LockedStatus {
+        final Object targetStatus = new Object();
+        long positionMs;
+        long durationMs = DURATION_MS;
+        long timestampMs;
+        boolean playing;
+    }
+
+    @Test
+    public void snapshotReadsOutperformLockedReads() throws Exception {
+        final LockedStatus currentStatus = new LockedStatus();
+        Result locked = measure("locked", nowMs -> {
+            synchronized (currentStatus) {
+                return currentStatus.playing ? Math.min(currentStatus.positionMs
+                        + nowMs - currentStatus.timestampMs, currentStatus.durationMs) : -1;
+            }
+        }, () -> {
+            synchronized (currentStatus) {
+                synchronized (currentStatus.targetStatus) {
+                    currentStatus.positionMs = (currentStatus.positionMs + 16) % DURATION_MS;
+                    currentStatus.timestampMs = System.nanoTime() / 1000000;
+                    currentStatus.playing = true;
+                    work();
+                }
+            }
+        });
+
+        final AtomicReference<PlaybackSnapshot> snapshot =
+                new AtomicReference<>(PlaybackSnapshot.RELEASED);
+        final long[] positionMs = new long[1];
+        Result lockFree = measure("snapshot", nowMs -> {
+            PlaybackSnapshot current = snapshot.get();
+            return current.playWhenReady ? current.getPositionAt(nowMs) : -1;
+        }, () -> {
+            // The state machine step runs without a lock, and publishes when done.
+            positionMs[0] = (positionMs[0] + 16) % DURATION_MS;
+            work();
+            snapshot.set(new PlaybackSnapshot(false, true, true, true, 1.0f,
+                    positionMs[0], DURATION_MS, 50, System.nanoTime() / 1000000));
+        });
+
+        Logger.logI(TAG, READER_THREADS + " readers, 1 writer holding the status "
+                + (WRITER_WORK_NS / 1000) + " us every " + (WRITER_PERIOD_NS / 1000) + " us");
+        Logger.logI(TAG, "locked:   " + locked);
+        Logger.logI(TAG, "snapshot: " + lockFree);
+
+        assertTrue(locked.opsPerSecond > 0);
+        // On a single core the readers take turns, and do not contend for the lock.
+        assumeTrue(Runtime.getRuntime().availableProcessors() > 1);
+        assertTrue("Snapshot reads are slower than locked reads: " + lockFree + " vs "
+                + locked, lockFree.opsPerSecond > locked.opsPerSecond);
+    }
+
+    /** One status read; returns a value so that the read cannot be optimized away. */
+    private interface Reader {
+        long read(long nowMs);
+    }
+
+    private static class Result {
+        double opsPerSecond;
+
+        @Override
+        public String toString() {
+            return String.format("%,.0f ops/s", opsPerSecond);
+        }
+    }
+
+    /** Emulates the work the player thread does in a state machine step. */
+    private static void work() {
+        long end = System.nanoTime() + WRITER_WORK_NS;
+        while (System.nanoTime() < end) {
+            Thread.onSpinWait();
+        }
+    }
+
+    /** Run the warmup and measurement iterations, and return the mean of the latter. */
+    private static Result measure(String name, Reader reader, Runnable writer)
+            throws Exception {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            Logger.logD(TAG, name + " warmup " + (i + 1) + ": " + iterate(reader, writer));
+        }
+        Result mean = new Result();
+        for (int i = 0; i < MEASUREMENT_ITERATIONS; i++) {
+            Result result = iterate(reader, writer);
+            Logger.logD(TAG, name + " iteration " + (i + 1) + ": " + result);
+            mean.opsPerSecond += result.opsPerSecond / MEASUREMENT_ITERATIONS;
+        }
+        return mean;
+    }
+
+    private static Result iterate(final Reader reader, final Runnable writer)
+            throws Exception {
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final LongAdder reads = new LongAdder();
+        final CountDownLatch started = new CountDownLatch(READER_THREADS + 1);
+        final CountDownLatch done = new CountDownLatch(READER_THREADS + 1);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        for (int i = 0; i < READER_THREADS; i++) {
+            new Thread(() -> {
+                try {
+                    long count = 0;
+                    long sink = 0;
+                    started.countDown();
+                    while (running.get()) {
+                        // Keep the clock out of the measured work, as both variants need it.
+                        long nowMs = System.nanoTime() / 1000000;
+                        for (int j = 0; j < READS_PER_CLOCK; j++) {
+                            sink += reader.read(nowMs);
+                        }
+                        count += READS_PER_CLOCK;
+                    }
+                    reads.add(count + (sink == Long.MIN_VALUE ? 1 : 0));
+                } catch (Throwable t) {
+                    failure.set(t);
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        new Thread(() -> {
+            started.countDown();
+            while (running.get()) {
+                writer.run();
+                LockSupport.parkNanos(WRITER_PERIOD_NS);
+            }
+            done.countDown();
+        }).start();
+
+        started.await();
+        long startNs = System.nanoTime();
+        Thread.sleep(ITERATION_TIME_MS);
+        running.set(false);
+        long elapsedNs = System.nanoTime() - startNs;
+        done.await();
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+        Result result = new Result();
+        result.opsPerSecond = reads.sum() * 1e9 / elapsedNs;
+        return result;
+    }
+}
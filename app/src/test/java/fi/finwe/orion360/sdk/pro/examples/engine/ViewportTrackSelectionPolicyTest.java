@@ -0,0 +1,87 @@
+package fi.finwe.orion360.sdk.pro.examples.engine;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * ViewportTrackSelectionPolicy sizing and hysteresis, which will execute on the development
+ * machine (host).
+ */
+public class ViewportTrackSelectionPolicyTest {
+
+    @Test
+    public void widthIsViewportTimes360OverFov() {
+        ViewportTrackSelectionPolicy policy = new ViewportTrackSelectionPolicy();
+        assertTrue(policy.update(90, 1.0f, 1000, 500, 0));
+        assertEquals(4000, policy.getWidth());
+        assertEquals(2000, policy.getHeight());
+
+        policy.reset();
+        assertTrue(policy.update(60, 1.0f, 1200, 600, 0));
+        assertEquals(7200, policy.getWidth());
+        assertEquals(3600, policy.getHeight());
+
+        // Zooming in narrows the visible field of view.
+        policy.reset();
+        assertTrue(policy.update(90, 2.0f, 1000, 500, 0));
+        assertEquals(8000, policy.getWidth());
+
+        policy.reset();
+        policy.setPixelDensityFactor(0.5f);
+        assertTrue(policy.update(90, 1.0f, 1000, 500, 0));
+        assertEquals(2000, policy.getWidth());
+
+        policy.reset();
+        policy.setPixelDensityFactor(1.0f);
+        assertTrue(policy.update(1, 1.0f, 1000, 500, 0));
+        assertEquals(16384, policy.getWidth());
+    }
+
+    @Test
+    public void smallZoomChangesAreIgnored() {
+        ViewportTrackSelectionPolicy policy = new ViewportTrackSelectionPolicy();
+        assertTrue(policy.update(90, 1.0f, 1000, 500, 0));
+
+        // Zoom in by 20%, below the 25% threshold.
+        assertFalse(policy.update(90, 1.2f, 1000, 500, 5000));
+        assertEquals(4000, policy.getWidth());
+        assertEquals(0, policy.getPendingDelayMs(5000));
+
+        // Zoom in by 50%, then back out by a third.
+        assertTrue(policy.update(90, 1.5f, 1000, 500, 10000));
+        assertEquals(6000, policy.getWidth());
+        assertTrue(policy.update(90, 1.0f, 1000, 500, 15000));
+        assertEquals(4000, policy.getWidth());
+    }
+
+    @Test
+    public void switchesWithinTheIntervalAreRetriedLater() {
+        ViewportTrackSelectionPolicy policy = new ViewportTrackSelectionPolicy();
+        assertTrue(policy.update(90, 1.0f, 1000, 500, 0));
+
+        assertFalse(policy.update(90, 2.0f, 1000, 500, 500));
+        assertEquals(4000, policy.getWidth());
+        assertEquals(1500, policy.getPendingDelayMs(500));
+        assertEquals(1, policy.getPendingDelayMs(2500));
+
+        assertTrue(policy.update(90, 2.0f, 1000, 500, 2000));
+        assertEquals(8000, policy.getWidth());
+        assertEquals(0, policy.getPendingDelayMs(2000));
+
+        // Returning within the threshold cancels a held back switch.
+        assertFalse(policy.update(90, 1.0f, 1000, 500, 2500));
+        assertEquals(1500, policy.getPendingDelayMs(2500));
+        assertFalse(policy.update(90, 2.0f, 1000, 500, 3000));
+        assertEquals(0, policy.getPendingDelayMs(3000));
+    }
+
+    @Test
+    public void hysteresisIsConfigurable() {
+        ViewportTrackSelectionPolicy policy = new ViewportTrackSelectionPolicy();
+        policy.setHysteresis(0.1f, 0);
+        assertTrue(policy.update(90, 1.0f, 1000, 500, 0));
+        assertTrue(policy.update(90, 1.2f, 1000, 500, 1));
+        assertEquals(4800, policy.getWidth());
+    }
+}